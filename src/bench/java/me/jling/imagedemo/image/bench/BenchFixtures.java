@@ -0,0 +1,135 @@
+package me.jling.imagedemo.image.bench;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * 基准用的合成样图：内容由尺寸决定（同参数每次生成的字节相同），便于不同版本之间对比。
+ * <pre>
+ * java -cp ... me.jling.imagedemo.image.bench.BenchFixtures target/fixtures
+ * </pre>
+ */
+public final class BenchFixtures {
+
+    private BenchFixtures() {}
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Path.of(args.length > 0 ? args[0] : "target/fixtures");
+        Files.createDirectories(dir);
+        for (int mp : new int[]{1, 12}) {
+            for (String format : new String[]{"jpg", "png", "tif"}) {
+                System.out.println(write(dir, format, mp, 1));
+            }
+            for (int orientation = 2; orientation <= 8; orientation++) {
+                System.out.println(write(dir, "jpg", mp, orientation));
+            }
+        }
+        System.out.println(heifHeader(dir));
+    }
+
+    /**
+     * 约 megapixels 百万像素、4:3 的样图；orientation &gt; 1 时（仅 JPEG）写入 EXIF Orientation。
+     */
+    public static Path write(Path dir, String format, int megapixels, int orientation) throws IOException {
+        int[] size = size(megapixels);
+        String name = megapixels + "mp" + (orientation > 1 ? "-o" + orientation : "") + "." + format;
+        Path out = dir.resolve(name);
+        if (Files.exists(out)) return out;
+        BufferedImage img = pattern(size[0], size[1]);
+        switch (format) {
+            case "jpg" -> Files.write(out, withOrientation(jpeg(img), orientation));
+            case "png", "tif" -> {
+                if (!ImageIO.write(img, "tif".equals(format) ? "tiff" : format, out.toFile())) {
+                    throw new IOException("No ImageIO writer for " + format);
+                }
+            }
+            default -> throw new IllegalArgumentException("format " + format);
+        }
+        return out;
+    }
+
+    /**
+     * 4:3、偶数边长，像素数约为 megapixels × 10^6。
+     */
+    public static int[] size(int megapixels) {
+        int h = (int) Math.round(Math.sqrt(megapixels * 1e6 * 3 / 4)) & ~1;
+        int w = (h * 4 / 3) & ~1;
+        return new int[]{w, h};
+    }
+
+    /**
+     * 平滑渐变叠加细纹理：既不像纯色那样被编码器压成几字节，也不像噪声那样毫无结构。
+     */
+    public static BufferedImage pattern(int w, int h) {
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] px = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+        int i = 0;
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int t = ((x >> 3) ^ (y >> 3)) & 15;
+                px[i++] = (byte) (x * 255 / w + t);
+                px[i++] = (byte) (y * 255 / h + t);
+                px[i++] = (byte) ((x + y) * 127 / (w + h) + t);
+            }
+        }
+        return img;
+    }
+
+    /**
+     * 只有 ftyp 的 HEIC 文件头：ImageIO 不认识，触发外部工具兜底链。
+     */
+    public static Path heifHeader(Path dir) throws IOException {
+        Path out = dir.resolve("stub.heic");
+        ByteBuffer b = ByteBuffer.allocate(24);
+        b.putInt(24).put("ftypheic".getBytes()).putInt(0).put("mif1heic".getBytes());
+        Files.write(out, b.array());
+        return out;
+    }
+
+    private static byte[] jpeg(BufferedImage img) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0.9f);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(bytes)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(img, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 在 SOI 之后插入只含 Orientation 一项的 EXIF APP1。
+     */
+    static byte[] withOrientation(byte[] jpeg, int orientation) throws IOException {
+        if (orientation <= 1) return jpeg;
+        ByteBuffer tiff = ByteBuffer.allocate(26);
+        tiff.put("MM".getBytes()).putShort((short) 42).putInt(8)       // 大端 TIFF 头，IFD0 紧随其后
+                .putShort((short) 1)                                    // 1 项
+                .putShort((short) 0x0112).putShort((short) 3).putInt(1)  // Orientation, SHORT, count 1
+                .putShort((short) orientation).putShort((short) 0)
+                .putInt(0);                                             // 无下一个 IFD
+        byte[] exif = "Exif\0\0".getBytes();
+        int len = 2 + exif.length + tiff.capacity();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(jpeg.length + len + 2);
+        out.write(jpeg, 0, 2);
+        out.write(new byte[]{(byte) 0xff, (byte) 0xe1, (byte) (len >> 8), (byte) len});
+        out.write(exif);
+        out.write(tiff.array());
+        out.write(jpeg, 2, jpeg.length - 2);
+        return out.toByteArray();
+    }
+}
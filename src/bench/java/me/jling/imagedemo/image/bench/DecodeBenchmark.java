@@ -0,0 +1,117 @@
+package me.jling.imagedemo.image.bench;
+
+import me.jling.imagedemo.image.core.exec.CpuGate;
+import me.jling.imagedemo.image.core.exec.ExternalToolExecutor;
+import me.jling.imagedemo.image.core.sdr.ConverterFixture;
+import me.jling.imagedemo.image.core.sdr.HdrSdrConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link HdrSdrConverter#readNormalized(Path, int)} 的两条路径（解码缓存关闭）：
+ * <ul>
+ *   <li>{@link #imageIO}：JPEG/PNG/TIFF 走进程内 ImageIO，含 EXIF 方向纠正</li>
+ *   <li>{@link #fallbackChain}：HEIC 文件头 → ImageIO 失败 → ffprobe → heif-convert（或其失败后 ffmpeg），全部为替身脚本</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class DecodeBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ImageIOState {
+        @Param({"jpg", "png", "tif"})
+        public String format;
+
+        @Param({"0", "2048"})
+        public int maxEdge;
+
+        Path file;
+        HdrSdrConverter converter;
+        ExternalToolExecutor exec;
+
+        @Setup
+        public void setup() throws IOException {
+            Path dir = Files.createTempDirectory("bench-decode-");
+            // 仅 JPEG 带 EXIF 方向（转置），其他格式 ImageIO 写不出 Orientation
+            file = BenchFixtures.write(dir, format, 12, "jpg".equals(format) ? 6 : 1);
+            exec = executor();
+            converter = converter(exec, null);
+        }
+
+        @TearDown
+        public void tearDown() {
+            exec.destroy();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FallbackState {
+        /** heif-convert：首选 heif-convert 成功；ffmpeg：heif-convert 失败后由 ffmpeg rawvideo 兜底 */
+        @Param({"heif-convert", "ffmpeg"})
+        public String via;
+
+        Path file;
+        HdrSdrConverter converter;
+        ExternalToolExecutor exec;
+
+        @Setup
+        public void setup() throws IOException {
+            Path dir = Files.createTempDirectory("bench-fallback-");
+            Path png = BenchFixtures.write(dir, "png", 1, 1);
+            int[] size = BenchFixtures.size(1);
+            StubTools stubs = StubTools.create(dir.resolve("bin"), png, size[0], size[1], "ffmpeg".equals(via));
+            file = BenchFixtures.heifHeader(dir);
+            exec = executor();
+            converter = converter(exec, stubs);
+        }
+
+        @TearDown
+        public void tearDown() {
+            exec.destroy();
+        }
+    }
+
+    @Benchmark
+    public BufferedImage imageIO(ImageIOState s) throws IOException {
+        return s.converter.readNormalized(s.file, s.maxEdge);
+    }
+
+    @Benchmark
+    public BufferedImage fallbackChain(FallbackState s) throws IOException {
+        return s.converter.readNormalized(s.file, 0);
+    }
+
+    static ExternalToolExecutor executor() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return new ExternalToolExecutor(cpus, cpus, cpus, cpus, 1, 256, 60, 1 << 20);
+    }
+
+    /**
+     * stubs 为 null 时不配置任何外部工具（只测 ImageIO）；缓存与持久存储都关闭，每次调用都真实解码。
+     */
+    static HdrSdrConverter converter(ExternalToolExecutor exec, StubTools stubs) {
+        ConverterFixture.Builder b = ConverterFixture.with(exec).cpu(new CpuGate(0)).set("heifCliTimeoutSec", 60);
+        if (stubs != null) b.ffprobe(stubs.ffprobe()).ffmpeg(stubs.ffmpeg()).heifConvert(stubs.heifConvert());
+        return b.build();
+    }
+}
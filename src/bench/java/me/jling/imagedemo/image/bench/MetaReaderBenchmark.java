@@ -0,0 +1,50 @@
+package me.jling.imagedemo.image.bench;
+
+import me.jling.imagedemo.image.core.tool.ImageInfo;
+import me.jling.imagedemo.image.core.tool.ImageMetaReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ImageMetaReader#read(Path)}：只读文件头，12MP 与 1MP 的耗时应接近。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetaReaderBenchmark {
+
+    @Param({"jpg", "png", "tif"})
+    public String format;
+
+    @Param({"1", "12"})
+    public int megapixels;
+
+    private Path file;
+
+    @Setup
+    public void setup() throws Exception {
+        Path dir = Files.createTempDirectory("bench-meta-");
+        file = BenchFixtures.write(dir, format, megapixels, "jpg".equals(format) ? 6 : 1);
+    }
+
+    @Benchmark
+    public ImageInfo read() {
+        return ImageMetaReader.read(file);
+    }
+}
@@ -0,0 +1,48 @@
+package me.jling.imagedemo.image.bench;
+
+import me.jling.imagedemo.image.core.sdr.Orientation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 方向纠正：3 为原地 180°（连续运行两次回到原图，无需重置），6 为转置到新图。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class OrientationBenchmark {
+
+    @Param({"12", "24", "48"})
+    public int megapixels;
+
+    @Param({"3", "6"})
+    public int orientation;
+
+    private BufferedImage img;
+
+    @Setup
+    public void setup() {
+        int[] size = BenchFixtures.size(megapixels);
+        img = BenchFixtures.pattern(size[0], size[1]);
+    }
+
+    @Benchmark
+    public BufferedImage rotate() {
+        return Orientation.apply(img, orientation);
+    }
+}
@@ -0,0 +1,47 @@
+package me.jling.imagedemo.image.bench;
+
+import me.jling.imagedemo.image.core.tool.SourceImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 格式嗅探：{@link SourceImage#isHeifOrAvif()} 只看文件头，耗时应与文件大小无关。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SniffBenchmark {
+
+    @Param({"heic", "jpg"})
+    public String kind;
+
+    private byte[] bytes;
+
+    @Setup
+    public void setup() throws Exception {
+        Path dir = Files.createTempDirectory("bench-sniff-");
+        Path p = "heic".equals(kind) ? BenchFixtures.heifHeader(dir) : BenchFixtures.write(dir, "jpg", 1, 1);
+        bytes = Files.readAllBytes(p);
+    }
+
+    @Benchmark
+    public boolean isHeifOrAvif() {
+        return SourceImage.of(null, bytes).isHeifOrAvif();
+    }
+}
@@ -0,0 +1,35 @@
+package me.jling.imagedemo.image.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * 确定性的 ffprobe / ffmpeg / heif-convert 替身脚本，离线、无需安装真实工具即可跑外部工具兜底链。
+ * <ul>
+ *   <li>ffprobe：固定输出一路 w×h 的 hevc SDR 视频流</li>
+ *   <li>ffmpeg：向 stdout 写 w×h 的 bgr24 全零帧</li>
+ *   <li>heif-convert：把样图 PNG 复制到输出路径；failing 时直接以 1 退出</li>
+ * </ul>
+ */
+public record StubTools(Path ffprobe, Path ffmpeg, Path heifConvert) {
+
+    public static StubTools create(Path dir, Path png, int w, int h, boolean heifConvertFails) throws IOException {
+        Files.createDirectories(dir);
+        String probe = """
+                {"streams":[{"index":0,"id":"0x1","codec_type":"video","codec_name":"hevc","width":%d,"height":%d,\
+                "pix_fmt":"yuv420p","color_transfer":"bt709","disposition":{"default":1}}]}""".formatted(w, h);
+        return new StubTools(
+                script(dir, "ffprobe", "cat <<'JSON'\n" + probe + "\nJSON"),
+                script(dir, "ffmpeg", "head -c " + (long) w * h * 3 + " /dev/zero"),
+                script(dir, "heif-convert", heifConvertFails ? "exit 1" : "cp '" + png + "' \"$2\""));
+    }
+
+    private static Path script(Path dir, String name, String body) throws IOException {
+        Path p = dir.resolve(name);
+        Files.writeString(p, "#!/bin/sh\n" + body + "\n");
+        Files.setPosixFilePermissions(p, PosixFilePermissions.fromString("rwxr-xr-x"));
+        return p;
+    }
+}
@@ -0,0 +1,249 @@
+package me.jling.imagedemo.image.core.batch;
+
+import lombok.extern.slf4j.Slf4j;
+import me.jling.imagedemo.image.core.sdr.HdrSdrConverter;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * 批量转换：目录/glob 或文件列表，按完成顺序逐个回调结果，结束时给出吞吐汇总。
+ * <p>
+ * 在途任务数由 image.batch.max-in-flight 限制；CPU 步骤与子进程步骤分别由
+ * {@link me.jling.imagedemo.image.core.exec.CpuGate} 与
+ * {@link me.jling.imagedemo.image.core.exec.ExternalToolExecutor} 限流，因此在途数可以远大于核数。
+ */
+@Slf4j
+@Service
+public class BatchConverter implements DisposableBean {
+
+    public static final String DEFAULT_GLOB = "*.{heic,heif,hif,avif,jpg,jpeg,png,tif,tiff}";
+
+    public record BatchItem(Path source, BufferedImage image, Throwable error, long elapsedNanos) {
+        public boolean ok() {
+            return error == null && image != null;
+        }
+    }
+
+    public record BatchSummary(int total, int succeeded, int failed, Duration elapsed, long pixels) {
+        public double filesPerSecond() {
+            double s = elapsed.toNanos() / 1e9;
+            return s > 0 ? total / s : 0;
+        }
+
+        public double megapixelsPerSecond() {
+            double s = elapsed.toNanos() / 1e9;
+            return s > 0 ? pixels / 1e6 / s : 0;
+        }
+    }
+
+    /**
+     * 以 Flow.Publisher 形式推送结果的一次批量任务；summary 在全部文件处理完后完成。
+     * 任务在首个订阅者到达后才开始，避免早到的结果因无人订阅而丢失。
+     */
+    public static final class BatchJob implements Flow.Publisher<BatchItem> {
+        private final SubmissionPublisher<BatchItem> publisher;
+        private final CompletableFuture<BatchSummary> summary = new CompletableFuture<>();
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final Consumer<BatchJob> start;
+
+        private BatchJob(SubmissionPublisher<BatchItem> publisher, Consumer<BatchJob> start) {
+            this.publisher = publisher;
+            this.start = start;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super BatchItem> subscriber) {
+            publisher.subscribe(subscriber);
+            if (started.compareAndSet(false, true)) start.accept(this);
+        }
+
+        public CompletableFuture<BatchSummary> summary() {
+            return summary;
+        }
+    }
+
+    private final HdrSdrConverter converter;
+    private final int maxInFlight;
+    private final ExecutorService workers;
+    private final ExecutorService dispatcher;
+
+    @Value("${image.root:data/images}")
+    private String imageRoot;
+
+    public BatchConverter(HdrSdrConverter converter,
+                          @Value("${image.batch.max-in-flight:0}") int maxInFlight) {
+        this.converter = converter;
+        this.maxInFlight = maxInFlight > 0 ? maxInFlight : Runtime.getRuntime().availableProcessors() * 4;
+        AtomicInteger seq = new AtomicInteger(), dispatchSeq = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(this.maxInFlight, r -> {
+            Thread t = new Thread(r, "batch-convert-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.dispatcher = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "batch-dispatch-" + dispatchSeq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 转换 image.root 下匹配 glob 的文件。
+     */
+    public BatchSummary convertRoot(String glob, Consumer<BatchItem> callback) throws IOException {
+        return convert(Path.of(imageRoot), glob, callback);
+    }
+
+    /**
+     * 转换目录下匹配 glob 的文件（glob 不含 '/' 时按文件名匹配，否则按相对路径匹配）。
+     * 回调可能在多个工作线程上并发调用。
+     */
+    public BatchSummary convert(Path dir, String glob, Consumer<BatchItem> callback) throws IOException {
+        try (Stream<Path> files = listFiles(dir, glob)) {
+            return run(files.iterator(), callback);
+        }
+    }
+
+    public BatchSummary convert(List<Path> files, Consumer<BatchItem> callback) {
+        return run(files.iterator(), callback);
+    }
+
+    public BatchJob publish(List<Path> files) {
+        return publish(sink -> run(files.iterator(), sink));
+    }
+
+    public BatchJob publish(Path dir, String glob) {
+        return publish(sink -> {
+            try (Stream<Path> files = listFiles(dir, glob)) {
+                return run(files.iterator(), sink);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private BatchJob publish(Function<Consumer<BatchItem>, BatchSummary> body) {
+        SubmissionPublisher<BatchItem> pub = new SubmissionPublisher<>(dispatcher, Flow.defaultBufferSize());
+        return new BatchJob(pub, job -> dispatcher.execute(() -> {
+            try {
+                job.summary.complete(body.apply(pub::submit));
+                pub.close();
+            } catch (Throwable t) {
+                job.summary.completeExceptionally(t);
+                pub.closeExceptionally(t);
+            }
+        }));
+    }
+
+    public static Stream<Path> listFiles(Path dir, String glob) throws IOException {
+        String g = glob == null || glob.isBlank() ? DEFAULT_GLOB : glob;
+        PathMatcher m = FileSystems.getDefault().getPathMatcher("glob:" + g);
+        boolean byName = !g.contains("/");
+        return Files.walk(dir)
+                .filter(Files::isRegularFile)
+                .filter(p -> m.matches(byName ? p.getFileName() : dir.relativize(p)));
+    }
+
+    BatchSummary run(Iterator<Path> files, Consumer<BatchItem> sink) {
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        AtomicInteger ok = new AtomicInteger(), failed = new AtomicInteger();
+        AtomicLong pixels = new AtomicLong();
+        int total = 0;
+        long t0 = System.nanoTime();
+        try {
+            while (true) {
+                Path p;
+                try {
+                    if (!files.hasNext()) break;
+                    p = files.next();
+                } catch (UncheckedIOException e) {
+                    // 遍历目录出错（如子目录不可读）：记为一个失败项，继续后面的文件
+                    total++;
+                    failed.incrementAndGet();
+                    emit(sink, new BatchItem(failedPath(e.getCause()), null, e.getCause(), 0));
+                    continue;
+                }
+                inFlight.acquire();
+                total++;
+                workers.execute(() -> {
+                    try {
+                        BatchItem item = convertOne(p);
+                        if (item.ok()) {
+                            ok.incrementAndGet();
+                            pixels.addAndGet((long) item.image().getWidth() * item.image().getHeight());
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                        emit(sink, item);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            log.warn("[batch] interrupted after {} files", total);
+        }
+        BatchSummary s = new BatchSummary(total, ok.get(), failed.get(), Duration.ofNanos(System.nanoTime() - t0), pixels.get());
+        log.info("[batch] done total={} ok={} failed={} elapsed={}ms {} files/s {} MP/s",
+                s.total(), s.succeeded(), s.failed(), s.elapsed().toMillis(),
+                String.format("%.2f", s.filesPerSecond()), String.format("%.2f", s.megapixelsPerSecond()));
+        return s;
+    }
+
+    private static void emit(Consumer<BatchItem> sink, BatchItem item) {
+        try {
+            sink.accept(item);
+        } catch (RuntimeException e) {
+            log.warn("[batch] callback failed for {}: {}", item.source().getFileName(), e.toString());
+        }
+    }
+
+    private static Path failedPath(IOException e) {
+        return e instanceof FileSystemException fse && fse.getFile() != null ? Path.of(fse.getFile()) : Path.of("");
+    }
+
+    private BatchItem convertOne(Path p) {
+        long t0 = System.nanoTime();
+        try {
+            BufferedImage img = converter.readOrigNormalized(p);
+            return new BatchItem(p, img, null, System.nanoTime() - t0);
+        } catch (Throwable t) {
+            log.debug("[batch] {} failed: {}", p.getFileName(), t.toString());
+            return new BatchItem(p, null, t, System.nanoTime() - t0);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        workers.shutdownNow();
+        dispatcher.shutdownNow();
+    }
+}
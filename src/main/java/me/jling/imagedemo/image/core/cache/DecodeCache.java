@@ -0,0 +1,300 @@
+package me.jling.imagedemo.image.core.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import me.jling.imagedemo.image.core.tool.ImageInfo;
+import me.jling.imagedemo.image.core.tool.ImageMetaReader;
+import me.jling.imagedemo.image.core.tool.SourceImage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按内容寻址的解码结果缓存：键为文件内容 SHA-256 加解码参数，同一张原图换路径、重试、重复导出都能命中。
+ * <p>
+ * 像素按栅格字节数计量，超出 image.cache.max-bytes 时按 LRU 淘汰；ffprobe / exiftool 结果与 {@link ImageInfo}
+ * 这类小对象按条数另行 LRU。命中时不再启动任何子进程。
+ * <p>
+ * {@link #image} / {@link #peek} 不做拷贝地返回缓存内的图像，只供内部只读使用（编码、裁剪）；
+ * 要交给外部调用方的结果先经 {@link #copy} 复制，否则调用方在图上作画会改掉之后所有请求看到的缓存。
+ */
+@Slf4j
+@Component
+public class DecodeCache {
+
+    @FunctionalInterface
+    public interface Loader<T> {
+        T load() throws IOException;
+    }
+
+    public record Stats(long hits, long misses, long evictions, int entries, long bytes, long capacityBytes,
+                        long metaHits, long metaMisses) {
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+
+    /** 文件路径上次计算哈希时的大小与修改时间，未变化就复用哈希 */
+    private record Stamp(long size, long modified, String hash) {}
+
+    private static final class Entry {
+        final long weight;
+        final BufferedImage strong;
+        final SoftReference<BufferedImage> soft;
+
+        Entry(BufferedImage img, long weight, boolean softRef) {
+            this.weight = weight;
+            this.strong = softRef ? null : img;
+            this.soft = softRef ? new SoftReference<>(img) : null;
+        }
+
+        BufferedImage get() {
+            return strong != null ? strong : soft.get();
+        }
+    }
+
+    private final long capacityBytes;
+    private final boolean soft;
+    private final int metaLimit;
+
+    // 三张表都按访问顺序排列，各自以自身为锁
+    private final LinkedHashMap<String, Entry> images = new LinkedHashMap<>(64, 0.75f, true);
+    private final LinkedHashMap<String, Object> meta;
+    private final LinkedHashMap<Path, Stamp> stamps;
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder metaHits = new LongAdder();
+    private final LongAdder metaMisses = new LongAdder();
+
+    /**
+     * @param maxBytes       像素缓存上限；0 表示最大堆的 1/8，负数关闭像素缓存
+     * @param soft           以 SoftReference 持有像素，内存紧张时由 GC 回收（回收后按未命中处理）
+     * @param maxMetaEntries 元数据缓存条数；&lt;= 0 关闭
+     */
+    public DecodeCache(@Value("${image.cache.max-bytes:0}") long maxBytes,
+                       @Value("${image.cache.soft:false}") boolean soft,
+                       @Value("${image.cache.max-meta-entries:4096}") int maxMetaEntries) {
+        this.capacityBytes = maxBytes == 0 ? Runtime.getRuntime().maxMemory() / 8 : Math.max(0, maxBytes);
+        this.soft = soft;
+        this.metaLimit = Math.max(0, maxMetaEntries);
+        this.meta = new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                return size() > metaLimit;
+            }
+        };
+        this.stamps = new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Stamp> eldest) {
+                return size() > Math.max(metaLimit, 1024);
+            }
+        };
+    }
+
+    public boolean enabled() {
+        return capacityBytes > 0 || metaLimit > 0;
+    }
+
+    /**
+     * 是否缓存像素；为 false 时 {@link #image} 的结果不会被别的请求拿到，无需复制。
+     */
+    public boolean cachesImages() {
+        return capacityBytes > 0;
+    }
+
+    /**
+     * 与原图不共享栅格的副本。
+     */
+    public static BufferedImage copy(BufferedImage img) {
+        return new BufferedImage(img.getColorModel(), img.copyData(null), img.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * 文件内容的 SHA-256（十六进制）；路径、大小、修改时间都未变时直接复用上次结果。缓存整体关闭时返回 null。
+     * 已经打开了 {@link SourceImage} 时用 {@link #contentKey(SourceImage)}，避免再读一遍文件。
+     */
+    public String contentKey(Path p) throws IOException {
+        String known = knownContentKey(p);
+        if (known != null || !enabled()) return known;
+        try (SourceImage src = SourceImage.open(p)) {
+            return contentKey(src);
+        }
+    }
+
+    /**
+     * 对已读入的源缓冲求哈希，并记下路径的大小与修改时间，之后按路径查询不必再读文件。缓存整体关闭时返回 null。
+     */
+    public String contentKey(SourceImage src) throws IOException {
+        if (!enabled()) return null;
+        Path abs = src.path() == null ? null : src.path().toAbsolutePath().normalize();
+        BasicFileAttributes attrs = abs == null ? null : Files.readAttributes(abs, BasicFileAttributes.class);
+        if (attrs != null) {
+            synchronized (stamps) {
+                Stamp s = stamps.get(abs);
+                if (s != null && s.size() == attrs.size() && s.modified() == attrs.lastModifiedTime().toMillis()) return s.hash();
+            }
+        }
+        MessageDigest md = sha256();
+        md.update(src.buffer());
+        String hash = HexFormat.of().formatHex(md.digest());
+        if (attrs != null) {
+            synchronized (stamps) {
+                stamps.put(abs, new Stamp(attrs.size(), attrs.lastModifiedTime().toMillis(), hash));
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * 只凭路径、大小、修改时间给出此前算过的哈希，不读文件内容；没有记录或缓存关闭时返回 null。
+     */
+    public String knownContentKey(Path p) throws IOException {
+        if (!enabled()) return null;
+        Path abs = p.toAbsolutePath().normalize();
+        BasicFileAttributes attrs = Files.readAttributes(abs, BasicFileAttributes.class);
+        synchronized (stamps) {
+            Stamp s = stamps.get(abs);
+            return s != null && s.size() == attrs.size() && s.modified() == attrs.lastModifiedTime().toMillis() ? s.hash() : null;
+        }
+    }
+
+    /**
+     * 取缓存的解码结果，未命中时调用 loader 并写入。返回的图像就是缓存里那一份，不得修改。
+     */
+    public BufferedImage image(String key, Loader<BufferedImage> loader) throws IOException {
+        if (key == null || capacityBytes <= 0) return loader.load();
+        BufferedImage hit = peek(key);
+        if (hit != null) return hit;
+        BufferedImage img = loader.load();
+        if (img != null) put(key, img);
+        return img;
+    }
+
+    /**
+     * 只查不加载：命中返回缓存里那一份图像（不得修改），否则返回 null（计为一次未命中）。
+     */
+    public BufferedImage peek(String key) {
+        if (key == null || capacityBytes <= 0) return null;
+        BufferedImage img;
+        synchronized (images) {
+            Entry e = images.get(key);
+            img = e == null ? null : e.get();
+            if (e != null && img == null) {
+                // 软引用已被 GC 回收
+                images.remove(key);
+                bytes -= e.weight;
+            }
+        }
+        if (img == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return img;
+    }
+
+    private void put(String key, BufferedImage img) {
+        long weight = weight(img);
+        // 单张超过一半容量的图会把其余条目全部挤出，不值得缓存
+        if (weight > capacityBytes / 2) {
+            log.debug("[cache] skip {} ({} bytes > half of {})", key, weight, capacityBytes);
+            return;
+        }
+        synchronized (images) {
+            Entry old = images.put(key, new Entry(img, weight, soft));
+            if (old != null) bytes -= old.weight;
+            bytes += weight;
+            Iterator<Entry> it = images.values().iterator();
+            while (bytes > capacityBytes && it.hasNext()) {
+                Entry e = it.next();
+                it.remove();
+                bytes -= e.weight;
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * 元数据缓存（探测结果、EXIF 等）；loader 返回 null 表示结果不宜缓存（如工具暂时失败），原样返回。
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T meta(String kind, String key, Loader<T> loader) throws IOException {
+        if (key == null || metaLimit <= 0) return loader.load();
+        String k = kind + ":" + key;
+        synchronized (meta) {
+            Object v = meta.get(k);
+            if (v != null) {
+                metaHits.increment();
+                return (T) v;
+            }
+        }
+        metaMisses.increment();
+        T v = loader.load();
+        if (v != null) {
+            synchronized (meta) {
+                meta.put(k, v);
+            }
+        }
+        return v;
+    }
+
+    /**
+     * {@link ImageMetaReader#read(Path)} 的缓存版本。
+     */
+    public ImageInfo imageInfo(Path p) throws IOException {
+        return meta("info", contentKey(p), () -> ImageMetaReader.read(p));
+    }
+
+    public Stats stats() {
+        int n;
+        long b;
+        synchronized (images) {
+            n = images.size();
+            b = bytes;
+        }
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), n, b, capacityBytes, metaHits.sum(), metaMisses.sum());
+    }
+
+    public void clear() {
+        synchronized (images) {
+            images.clear();
+            bytes = 0;
+        }
+        synchronized (meta) {
+            meta.clear();
+        }
+        synchronized (stamps) {
+            stamps.clear();
+        }
+    }
+
+    static long weight(BufferedImage img) {
+        DataBuffer db = img.getRaster().getDataBuffer();
+        return (long) db.getSize() * db.getNumBanks() * (DataBuffer.getDataTypeSize(db.getDataType()) / 8);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package me.jling.imagedemo.image.core.convert;
+
+import lombok.extern.slf4j.Slf4j;
+import me.jling.imagedemo.image.core.sdr.HdrSdrConverter;
+import me.jling.imagedemo.image.core.sdr.SdrEncoder;
+import me.jling.imagedemo.image.core.store.DerivedStore;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 上传转换：上传先落盘并同时计算 SHA-256，转换在独立线程池上执行。
+ * <p>
+ * 同一内容、同一输出参数的并发请求合并为一次转换（single-flight）：后来者直接等待在途结果，
+ * 结果文件在最后一个请求读完后删除，转换失败时立即移出、不再合并；启用 {@link DerivedStore} 时结果改为持久保存，之后的相同请求直接命中。
+ */
+@Slf4j
+@Service
+public class ConversionService implements DisposableBean {
+
+    /**
+     * 一次转换的结果；用完必须 close，最后一个持有者 close 时删除结果文件。
+     */
+    public final class Lease implements AutoCloseable {
+        private final Flight flight;
+        private final Source source;
+        private boolean closed;
+
+        private Lease(Flight flight, Source source) {
+            this.flight = flight;
+            this.source = source;
+        }
+
+        public Path file() {
+            return flight.output;
+        }
+
+        public String key() {
+            return flight.key;
+        }
+
+        public SdrEncoder.Format format() {
+            return flight.format;
+        }
+
+        public Source source() {
+            return source;
+        }
+
+        /**
+         * 是否搭了其他请求的在途转换（存储命中不算）。
+         */
+        public boolean coalesced() {
+            return source == Source.COALESCED;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) return;
+            closed = true;
+            release(flight);
+        }
+    }
+
+    /**
+     * 结果来源：本请求触发的转换、合并到的在途转换、持久存储命中。
+     */
+    public enum Source {
+        CONVERTED, COALESCED, STORE;
+
+        /** 响应头里使用的小写名称 */
+        public String header() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final class Flight {
+        final String key;
+        final SdrEncoder.Format format;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        volatile Path output;
+        /** 结果已进入持久存储，释放时不删除 */
+        volatile boolean stored;
+        int refs;
+
+        Flight(String key, SdrEncoder.Format format, Path output) {
+            this.key = key;
+            this.format = format;
+            this.output = output;
+        }
+    }
+
+    private final HdrSdrConverter converter;
+    private final DerivedStore store;
+    private final Path spoolDir;
+    private final ExecutorService workers;
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    public ConversionService(HdrSdrConverter converter,
+                             DerivedStore store,
+                             @Value("${image.convert.spool-dir:}") String spoolDir,
+                             @Value("${image.convert.max-in-flight:0}") int maxInFlight) throws IOException {
+        this.converter = converter;
+        this.store = store;
+        this.spoolDir = spoolDir == null || spoolDir.isBlank()
+                ? Path.of(System.getProperty("java.io.tmpdir"), "imagedemo-convert")
+                : Path.of(spoolDir);
+        Files.createDirectories(this.spoolDir);
+        int threads = maxInFlight > 0 ? maxInFlight : Runtime.getRuntime().availableProcessors() * 2;
+        AtomicInteger seq = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "convert-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 读完上传流（落盘 + 计算哈希）后立即返回；转换结果通过 future 交付。
+     *
+     * @param fileName 原始文件名，只用来保留扩展名，方便外部工具识别
+     */
+    public CompletableFuture<Lease> convert(InputStream upload, String fileName, SdrEncoder.Format format,
+                                            int maxEdge) throws IOException {
+        Path source = Files.createTempFile(spoolDir, "upload-", suffix(fileName));
+        String hash;
+        try (DigestInputStream in = new DigestInputStream(upload, sha256());
+             OutputStream out = Files.newOutputStream(source)) {
+            in.transferTo(out);
+            hash = HexFormat.of().formatHex(in.getMessageDigest().digest());
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(source);
+            throw e;
+        }
+        return convert(source, hash, format, maxEdge);
+    }
+
+    /**
+     * source 为已落盘的上传文件，归本服务所有（转换结束或合并后删除）。
+     */
+    CompletableFuture<Lease> convert(Path source, String hash, SdrEncoder.Format format, int maxEdge) throws IOException {
+        // 编码参数也进键：改了质量等配置后不会拿到旧参数的输出
+        String key = hash + "-" + Math.max(0, maxEdge) + "-" + converter.outputOptions(format).tag()
+                + "." + format.extension();
+        Path persisted = store.get(key);
+        if (persisted != null) {
+            // 不进入 flights：释放时不会删除存储里的文件
+            log.info("[convert] stored key={}", key);
+            Files.deleteIfExists(source);
+            Flight hit = new Flight(key, format, persisted);
+            hit.stored = true;
+            hit.done.complete(null);
+            return CompletableFuture.completedFuture(new Lease(hit, Source.STORE));
+        }
+        boolean[] started = {false};
+        Flight flight = flights.compute(key, (k, f) -> {
+            if (f == null) {
+                f = new Flight(k, format, spoolDir.resolve(k));
+                started[0] = true;
+            }
+            f.refs++;
+            return f;
+        });
+
+        if (started[0]) {
+            log.info("[convert] start key={} source={}", key, source.getFileName());
+            workers.execute(() -> run(flight, source, maxEdge));
+        } else {
+            log.info("[convert] coalesced key={} (waiting on in-flight conversion)", key);
+            Files.deleteIfExists(source);
+        }
+
+        Lease lease = new Lease(flight, started[0] ? Source.CONVERTED : Source.COALESCED);
+        return flight.done.handle((v, ex) -> {
+            if (ex != null) {
+                lease.close();
+                throw ex instanceof CompletionException ce ? ce : new CompletionException(ex);
+            }
+            return lease;
+        });
+    }
+
+    private void run(Flight flight, Path source, int maxEdge) {
+        Path part = flight.output.resolveSibling(flight.output.getFileName() + ".part");
+        long t0 = System.nanoTime();
+        Throwable failure = null;
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(part), 1 << 16)) {
+                converter.convert(source, out, flight.format, maxEdge);
+            }
+            Path persisted = store.putFile(flight.key, part);
+            if (persisted != null) {
+                flight.output = persisted;
+                flight.stored = true;
+            } else {
+                Files.move(part, flight.output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            log.info("[convert] done key={} bytes={} in {} ms", flight.key, Files.size(flight.output),
+                    (System.nanoTime() - t0) / 1_000_000);
+        } catch (Throwable t) {
+            log.warn("[convert] failed key={}: {}", flight.key, t.toString());
+            failure = t;
+        } finally {
+            try { Files.deleteIfExists(part); } catch (IOException ignore) {}
+            try { Files.deleteIfExists(source); } catch (IOException ignore) {}
+        }
+        // 临时文件清理完再通知等待者
+        if (failure == null) {
+            flight.done.complete(null);
+        } else {
+            // 先移出 flights：之后的相同请求重新转换，而不是合并到已失败的结果上
+            flights.remove(flight.key, flight);
+            flight.done.completeExceptionally(failure);
+        }
+    }
+
+    private void release(Flight flight) {
+        flights.compute(flight.key, (k, f) -> {
+            if (f != flight) return f;
+            if (--f.refs > 0) return f;
+            if (f.stored) return null;
+            try {
+                Files.deleteIfExists(f.output);
+            } catch (IOException e) {
+                log.warn("[convert] cannot delete {}: {}", f.output, e.toString());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 当前在途（含等待读取）的转换数。
+     */
+    public int inFlight() {
+        return flights.size();
+    }
+
+    private static String suffix(String fileName) {
+        if (fileName == null) return ".bin";
+        String name = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1);
+        int dot = name.lastIndexOf('.');
+        String ext = dot > 0 ? name.substring(dot + 1).toLowerCase(Locale.ROOT) : "";
+        return ext.matches("[a-z0-9]{1,8}") ? "." + ext : ".bin";
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,72 @@
+package me.jling.imagedemo.image.core.exec;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 进程内 CPU 密集步骤（ImageIO 解码、旋转等）的并发闸门；与 {@link ExternalToolExecutor} 的子进程限流相互独立。
+ * <p>
+ * 闸门内的行带并行（色调映射、旋转、增益图合成）跑在与并发上限同大小的 fork/join 池上，见 {@link #bandPool()}，
+ * 因此总的计算线程数不随在途请求数放大。
+ */
+@Component
+public class CpuGate {
+
+    @FunctionalInterface
+    public interface IoCallable<T> {
+        T call() throws IOException;
+    }
+
+    private static final ThreadLocal<ForkJoinPool> CURRENT = new ThreadLocal<>();
+
+    private final Semaphore permits;
+    private final ForkJoinPool bands;
+
+    public CpuGate(@Value("${image.cpu.max-concurrent:0}") int maxConcurrent) {
+        int n = maxConcurrent > 0 ? maxConcurrent : Runtime.getRuntime().availableProcessors();
+        this.permits = new Semaphore(n, true);
+        this.bands = new ForkJoinPool(n, pool -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            t.setName("cpu-band-" + t.getPoolIndex());
+            return t;
+        }, null, false);
+    }
+
+    /**
+     * 行带并行用的池：在 {@link #call} 内为该闸门的池，在 fork/join 工作线程内为其所在的池，其余（CLI、测试）为公共池。
+     */
+    public static ForkJoinPool bandPool() {
+        ForkJoinPool p = CURRENT.get();
+        if (p == null) p = ForkJoinTask.getPool();
+        return p != null ? p : ForkJoinPool.commonPool();
+    }
+
+    public <T> T call(IoCallable<T> task) throws IOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for CPU permit");
+        }
+        ForkJoinPool outer = CURRENT.get();
+        CURRENT.set(bands);
+        try {
+            return task.call();
+        } finally {
+            if (outer == null) CURRENT.remove();
+            else CURRENT.set(outer);
+            permits.release();
+        }
+    }
+
+    public int available() {
+        return permits.availablePermits();
+    }
+}
@@ -0,0 +1,363 @@
+package me.jling.imagedemo.image.core.exec;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 外部命令统一执行器：按工具限流、排队背压、异步排空输出（有上限）、真正生效的超时与取消（杀整个进程树）。
+ */
+@Slf4j
+@Component
+public class ExternalToolExecutor implements DisposableBean {
+
+    public enum Tool {
+        FFMPEG, FFPROBE, EXIFTOOL, HEIF_CONVERT, PYTHON
+    }
+
+    public record Result(int exitCode, String output, boolean truncated) {
+        public boolean ok() {
+            return exitCode == 0;
+        }
+    }
+
+    /**
+     * 流式模式的结果：stdout 由调用方自行消费，stderr 按上限截留。
+     */
+    public record Streamed<T>(int exitCode, T value, String stderr) {
+    }
+
+    @FunctionalInterface
+    public interface StdoutReader<T> {
+        T read(InputStream stdout) throws IOException;
+    }
+
+    /**
+     * 排队已满或等待许可超时。
+     */
+    public static class ToolBusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ToolBusyException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 每次调用结束后回调（在调用线程上）；outcome 为退出码，或 timeout / busy（排队被拒，未启动进程）/ error。
+     */
+    @FunctionalInterface
+    public interface Listener {
+        void completed(Tool tool, String outcome, long nanos);
+    }
+
+    private static final class ToolTimeoutException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ToolTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<Tool, Semaphore> permits = new EnumMap<>(Tool.class);
+    private final Map<Tool, AtomicInteger> queued = new EnumMap<>(Tool.class);
+    private final int maxQueued;
+    private final long queueTimeoutMs;
+    private final int maxOutputBytes;
+
+    private final ExecutorService pumps = Executors.newCachedThreadPool(daemon("tool-io-"));
+    private final ExecutorService async = Executors.newCachedThreadPool(daemon("tool-run-"));
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(daemon("tool-watchdog-"));
+
+    public ExternalToolExecutor(
+            @Value("${heif.cli.max-concurrent.ffmpeg:0}") int ffmpeg,
+            @Value("${heif.cli.max-concurrent.ffprobe:0}") int ffprobe,
+            @Value("${heif.cli.max-concurrent.exiftool:0}") int exiftool,
+            @Value("${heif.cli.max-concurrent.heif-convert:0}") int heifConvert,
+            @Value("${heif.cli.max-concurrent.python:0}") int python,
+            @Value("${heif.cli.max-queued:256}") int maxQueued,
+            @Value("${heif.cli.queue-timeout-sec:60}") long queueTimeoutSec,
+            @Value("${heif.cli.max-output-bytes:1048576}") int maxOutputBytes) {
+        // <= 0 表示按 CPU 核数自动取值：解码类工具吃满一个核，探测类工具多为 I/O 等待
+        int cpus = Runtime.getRuntime().availableProcessors();
+        permits.put(Tool.FFMPEG, new Semaphore(limit(ffmpeg, cpus / 2), true));
+        permits.put(Tool.FFPROBE, new Semaphore(limit(ffprobe, cpus * 2), true));
+        permits.put(Tool.EXIFTOOL, new Semaphore(limit(exiftool, cpus), true));
+        permits.put(Tool.HEIF_CONVERT, new Semaphore(limit(heifConvert, cpus / 2), true));
+        permits.put(Tool.PYTHON, new Semaphore(limit(python, 2), true));
+        for (Tool t : Tool.values()) queued.put(t, new AtomicInteger());
+        this.maxQueued = Math.max(0, maxQueued);
+        this.queueTimeoutMs = TimeUnit.SECONDS.toMillis(Math.max(0, queueTimeoutSec));
+        this.maxOutputBytes = Math.max(1024, maxOutputBytes);
+        log.info("[tool-exec] limits {} queue={}", permitsSnapshot(), maxQueued);
+    }
+
+    private static int limit(int configured, int auto) {
+        return Math.max(1, configured > 0 ? configured : auto);
+    }
+
+    private Map<Tool, Integer> permitsSnapshot() {
+        Map<Tool, Integer> m = new EnumMap<>(Tool.class);
+        permits.forEach((t, s) -> m.put(t, s.availablePermits()));
+        return m;
+    }
+
+    /**
+     * 同步执行，stdout/stderr 合并并截留至多 max-output-bytes；调用线程被中断时杀掉进程树。
+     */
+    public Result run(Tool tool, List<String> cmd, long timeoutSec) throws IOException {
+        Outcome<String> o = execute(tool, cmd, timeoutSec, true, null, new AtomicReference<>());
+        return new Result(o.exitCode(), o.value(), o.truncated());
+    }
+
+    /**
+     * 同步执行并由调用方读取 stdout（例如 rawvideo 帧）；stderr 在后台排空。
+     * 到期时看门狗杀掉进程，阻塞中的读取随之结束。
+     */
+    public <T> Streamed<T> stream(Tool tool, List<String> cmd, long timeoutSec, StdoutReader<T> reader) throws IOException {
+        Outcome<T> o = execute(tool, cmd, timeoutSec, false, reader, new AtomicReference<>());
+        return new Streamed<>(o.exitCode(), o.value(), o.stderr());
+    }
+
+    /**
+     * 异步执行；对返回的 Future 调用 cancel 会杀掉进程树。
+     */
+    public CompletableFuture<Result> submit(Tool tool, List<String> cmd, long timeoutSec) {
+        AtomicReference<Process> ref = new AtomicReference<>();
+        CompletableFuture<Result> cf = new CompletableFuture<>();
+        Future<?> task = async.submit(() -> {
+            try {
+                Outcome<String> o = execute(tool, cmd, timeoutSec, true, null, ref);
+                cf.complete(new Result(o.exitCode(), o.value(), o.truncated()));
+            } catch (Throwable t) {
+                cf.completeExceptionally(t);
+            }
+        });
+        cf.whenComplete((r, t) -> {
+            if (cf.isCancelled()) {
+                task.cancel(true);
+                Process p = ref.get();
+                if (p != null) killTree(p);
+            }
+        });
+        return cf;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public int available(Tool tool) {
+        return permits.get(tool).availablePermits();
+    }
+
+    public int queued(Tool tool) {
+        return queued.get(tool).get();
+    }
+
+    private <T> Outcome<T> execute(Tool tool, List<String> cmd, long timeoutSec, boolean mergeStderr,
+                                    StdoutReader<T> reader, AtomicReference<Process> ref) throws IOException {
+        long t0 = System.nanoTime();
+        String outcome = "error";
+        try {
+            Outcome<T> o = spawn(tool, cmd, t0 + TimeUnit.SECONDS.toNanos(Math.max(1, timeoutSec)), mergeStderr, reader, ref);
+            outcome = String.valueOf(o.exitCode());
+            return o;
+        } catch (ToolBusyException e) {
+            outcome = "busy";
+            throw e;
+        } catch (ToolTimeoutException e) {
+            outcome = "timeout";
+            throw e;
+        } finally {
+            report(tool, outcome, System.nanoTime() - t0);
+        }
+    }
+
+    /**
+     * 通知监听器一次调用结束；不经本类启动进程的调用方（如 {@link PythonWorkerPool}）也由此上报。
+     */
+    void report(Tool tool, String outcome, long nanos) {
+        for (Listener l : listeners) {
+            try {
+                l.completed(tool, outcome, nanos);
+            } catch (RuntimeException e) {
+                log.debug("[tool-exec] listener failed: {}", e.toString());
+            }
+        }
+    }
+
+    private <T> Outcome<T> spawn(Tool tool, List<String> cmd, long deadline, boolean mergeStderr,
+                                  StdoutReader<T> reader, AtomicReference<Process> ref) throws IOException {
+        Semaphore sem = permits.get(tool);
+        acquire(tool, sem, cmd, deadline);
+        try {
+            ProcessBuilder pb = new ProcessBuilder(cmd);
+            pb.redirectErrorStream(mergeStderr);
+            Process p = pb.start();
+            ref.set(p);
+            p.getOutputStream().close();
+            var kill = watchdog.schedule(() -> {
+                if (p.isAlive()) {
+                    log.warn("[tool-exec] deadline exceeded, killing {}", cmd.get(0));
+                    killTree(p);
+                }
+            }, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            try {
+                return await(p, cmd, deadline, mergeStderr, reader);
+            } finally {
+                kill.cancel(false);
+            }
+        } finally {
+            sem.release();
+        }
+    }
+
+    private <T> Outcome<T> await(Process p, List<String> cmd, long deadline, boolean mergeStderr,
+                                  StdoutReader<T> reader) throws IOException {
+        CappedBuffer err = new CappedBuffer(maxOutputBytes);
+        Future<?> errPump = mergeStderr ? null : pumps.submit(() -> drain(p.getErrorStream(), err));
+        CappedBuffer out = new CappedBuffer(maxOutputBytes);
+        Future<?> outPump = reader == null ? pumps.submit(() -> drain(p.getInputStream(), out)) : null;
+        T value = null;
+        try {
+            if (reader != null) {
+                try (InputStream in = p.getInputStream()) {
+                    value = reader.read(in);
+                } catch (IOException e) {
+                    if (System.nanoTime() - deadline >= 0) throw timeout(cmd);
+                    throw e;
+                }
+            }
+            long left = deadline - System.nanoTime();
+            if (left <= 0 || !p.waitFor(left, TimeUnit.NANOSECONDS)) {
+                killTree(p);
+                throw timeout(cmd);
+            }
+            if (outPump != null) outPump.get(5, TimeUnit.SECONDS);
+            if (errPump != null) errPump.get(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            killTree(p);
+            Thread.currentThread().interrupt();
+            throw new IOException("Command interrupted: " + String.join(" ", cmd));
+        } catch (java.util.concurrent.ExecutionException | java.util.concurrent.TimeoutException e) {
+            log.debug("[tool-exec] output pump did not finish for {}: {}", cmd.get(0), e.toString());
+        } catch (IOException | RuntimeException e) {
+            killTree(p);
+            throw e;
+        }
+
+        int exit = p.exitValue();
+        CappedBuffer captured = reader == null ? out : err;
+        String text = captured.toString();
+        if (exit != 0 && !text.isBlank()) {
+            log.info("[heif-cli] non-zero exit output:\n{}", text);
+        } else if (!text.isBlank()) {
+            log.debug("[heif-cli] {}", text.trim());
+        }
+        @SuppressWarnings("unchecked")
+        T v = reader == null ? (T) text : value;
+        return new Outcome<>(exit, v, err.toString(), captured.truncated);
+    }
+
+    private void acquire(Tool tool, Semaphore sem, List<String> cmd, long deadline) throws IOException {
+        if (sem.tryAcquire()) return;
+        AtomicInteger q = queued.get(tool);
+        if (q.incrementAndGet() > maxQueued) {
+            q.decrementAndGet();
+            throw new ToolBusyException("Queue full for " + tool + ": " + cmd.get(0));
+        }
+        try {
+            long waitNs = Math.min(TimeUnit.MILLISECONDS.toNanos(queueTimeoutMs), deadline - System.nanoTime());
+            if (waitNs <= 0 || !sem.tryAcquire(waitNs, TimeUnit.NANOSECONDS)) {
+                throw new ToolBusyException("Timed out waiting for " + tool + " permit: " + cmd.get(0));
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for " + tool + " permit");
+        } finally {
+            q.decrementAndGet();
+        }
+    }
+
+    private static IOException timeout(List<String> cmd) {
+        return new ToolTimeoutException("Command timeout: " + String.join(" ", cmd));
+    }
+
+    static void killTree(Process p) {
+        p.descendants().forEach(ProcessHandle::destroyForcibly);
+        p.destroyForcibly();
+    }
+
+    private static void drain(InputStream in, CappedBuffer buf) {
+        byte[] b = new byte[8192];
+        try (in) {
+            int n;
+            while ((n = in.read(b)) >= 0) buf.write(b, 0, n);
+        } catch (IOException ignore) {}
+    }
+
+    private static ThreadFactory daemon(String prefix) {
+        AtomicInteger seq = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    @Override
+    public void destroy() {
+        async.shutdownNow();
+        pumps.shutdownNow();
+        watchdog.shutdownNow();
+    }
+
+    private record Outcome<T>(int exitCode, T value, String stderr, boolean truncated) {
+    }
+
+    /**
+     * 超出上限的部分直接丢弃，但仍继续读取以免子进程阻塞在写管道上。
+     */
+    private static final class CappedBuffer {
+        private final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        private final int cap;
+        private boolean truncated;
+
+        CappedBuffer(int cap) {
+            this.cap = cap;
+        }
+
+        synchronized void write(byte[] b, int off, int len) {
+            int room = cap - bos.size();
+            if (room > 0) bos.write(b, off, Math.min(room, len));
+            if (len > room) truncated = true;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return bos.toString(StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package me.jling.imagedemo.image.core.exec;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 整图解码的内存预算：解码前按估算的峰值字节数预留，解码（含旋转、缩放）结束后归还。
+ * 堆与堆外直接内存（16-bit 帧所在的 PixelBuffer）各有一份预算，互不挤占。
+ * <p>
+ * 预留按到达顺序排队（公平信号量），大请求排在队首时后来的小请求不会插队；等待超过 image.memory.wait-ms 时
+ * 抛出 {@link BudgetBusyException}（即 {@link ExternalToolExecutor.ToolBusyException}，HTTP 映射为 503）。
+ * 单个请求的估算超过总预算时由调用方先降低分辨率，见 {@link #fits(Demand)}。
+ * <p>
+ * 像素缓冲池里闲置的堆外帧同样计入直接内存预算（{@link #tryReserveDirect(long)}），
+ * 解码请求拿不到直接内存时先让池子让出闲置帧，见 {@link #onDirectShortage(Runnable)}。
+ */
+@Slf4j
+@Component
+public class MemoryBudget {
+
+    /** 预留粒度；信号量按块计数，避免 int 溢出 */
+    private static final int BLOCK = 64 * 1024;
+
+    /**
+     * 在等待上限内没能预留到内存。
+     */
+    public static class BudgetBusyException extends ExternalToolExecutor.ToolBusyException {
+        private static final long serialVersionUID = 1L;
+
+        public BudgetBusyException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 一次解码的峰值估算：堆上的图像与解码器缓冲、堆外的像素缓冲。
+     */
+    public record Demand(long heapBytes, long directBytes) {
+        public static Demand heap(long bytes) {
+            return new Demand(bytes, 0);
+        }
+    }
+
+    /**
+     * 一次预留；close 归还（可重复调用）。
+     */
+    public final class Reservation implements AutoCloseable {
+        private final int heapBlocks;
+        private final int directBlocks;
+        private boolean closed;
+
+        private Reservation(int heapBlocks, int directBlocks) {
+            this.heapBlocks = heapBlocks;
+            this.directBlocks = directBlocks;
+        }
+
+        /** 预留的堆字节数 */
+        public long bytes() {
+            return (long) heapBlocks * BLOCK;
+        }
+
+        public long directBytes() {
+            return (long) directBlocks * BLOCK;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) return;
+            closed = true;
+            heap.release(heapBlocks);
+            direct.release(directBlocks);
+        }
+    }
+
+    /**
+     * 一份预算；容量为 0 表示关闭。
+     */
+    private static final class Pool {
+        final String name;
+        final long capacity;
+        final Semaphore permits;
+
+        Pool(String name, long bytes) {
+            int blocks = bytes < 0 ? 0 : (int) Math.min(Integer.MAX_VALUE, Math.max(1, bytes / BLOCK));
+            this.name = name;
+            this.capacity = (long) blocks * BLOCK;
+            this.permits = new Semaphore(blocks, true);
+        }
+
+        boolean enabled() {
+            return capacity > 0;
+        }
+
+        boolean fits(long bytes) {
+            return !enabled() || bytes <= capacity;
+        }
+
+        /** 超过总预算时按总预算计，即独占执行 */
+        int blocks(long bytes) {
+            return !enabled() || bytes <= 0 ? 0 : (int) Math.min(capacity / BLOCK, (bytes + BLOCK - 1) / BLOCK);
+        }
+
+        long available() {
+            return (long) permits.availablePermits() * BLOCK;
+        }
+
+        /** 不等待；公平模式下有人排队时不插队 */
+        boolean tryAcquire(int blocks) {
+            if (blocks == 0) return true;
+            try {
+                return permits.tryAcquire(blocks, 0, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        void acquire(int blocks, long bytes, long deadline, long waitMs) throws InterruptedIOException, BudgetBusyException {
+            if (blocks == 0) return;
+            try {
+                if (!permits.tryAcquire(blocks, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    throw new BudgetBusyException("Timed out after " + waitMs + " ms waiting for " + (bytes >> 20)
+                            + " MiB of decode " + name + " memory (available " + (available() >> 20)
+                            + " of " + (capacity >> 20) + " MiB)");
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for decode " + name + " memory");
+            }
+        }
+
+        void release(int blocks) {
+            if (blocks > 0) permits.release(blocks);
+        }
+    }
+
+    private final Pool heap;
+    private final Pool direct;
+    private final long waitMs;
+    private volatile Runnable directShortage = () -> {};
+
+    /**
+     * @param budgetBytes       堆预算；0 表示最大堆的一半，负数关闭（预留总是立即成功）
+     * @param directBudgetBytes 直接内存预算（含像素缓冲池里闲置的帧）；0 表示最大堆的一半，
+     *                          即 HotSpot 默认直接内存上限（等于最大堆）的一半；负数关闭
+     * @param waitMs            排队等待上限（两份预算合计）
+     */
+    public MemoryBudget(@Value("${image.memory.budget-bytes:0}") long budgetBytes,
+                        @Value("${image.memory.direct-budget-bytes:0}") long directBudgetBytes,
+                        @Value("${image.memory.wait-ms:30000}") long waitMs) {
+        long half = Runtime.getRuntime().maxMemory() / 2;
+        this.heap = new Pool("heap", budgetBytes == 0 ? half : budgetBytes);
+        this.direct = new Pool("direct", directBudgetBytes == 0 ? half : directBudgetBytes);
+        this.waitMs = Math.max(0, waitMs);
+        if (enabled()) log.info("[memory] decode budget heap {} MiB, direct {} MiB", heap.capacity >> 20, direct.capacity >> 20);
+    }
+
+    /**
+     * 不限额的实例（测试、基准）。
+     */
+    public static MemoryBudget disabled() {
+        return new MemoryBudget(-1, -1, 0);
+    }
+
+    public boolean enabled() {
+        return heap.enabled() || direct.enabled();
+    }
+
+    public long capacity() {
+        return heap.capacity;
+    }
+
+    public long available() {
+        return heap.available();
+    }
+
+    public long directCapacity() {
+        return direct.capacity;
+    }
+
+    public long directAvailable() {
+        return direct.available();
+    }
+
+    /**
+     * 只占堆的请求能否在预算内执行（关闭时总是 true）。
+     */
+    public boolean fits(long bytes) {
+        return fits(Demand.heap(bytes));
+    }
+
+    /**
+     * 这么大的请求能否在两份预算内执行（关闭的一份不限）。
+     */
+    public boolean fits(Demand demand) {
+        return heap.fits(demand.heapBytes()) && direct.fits(demand.directBytes());
+    }
+
+    /**
+     * 只预留堆，见 {@link #reserve(Demand)}。
+     */
+    public Reservation reserve(long bytes) throws InterruptedIOException, BudgetBusyException {
+        return reserve(Demand.heap(bytes));
+    }
+
+    /**
+     * 先堆后直接内存依次预留（向上取整到 64 KiB，超过某份总预算时按该份总预算计）；
+     * 任一份等不到时归还已拿到的部分再抛出。字节数 &lt;= 0 或该份预算关闭时不占用。
+     */
+    public Reservation reserve(Demand demand) throws InterruptedIOException, BudgetBusyException {
+        int heapBlocks = heap.blocks(demand.heapBytes());
+        int directBlocks = direct.blocks(demand.directBytes());
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMs);
+        heap.acquire(heapBlocks, demand.heapBytes(), deadline, waitMs);
+        try {
+            if (!direct.tryAcquire(directBlocks)) {
+                directShortage.run();
+                direct.acquire(directBlocks, demand.directBytes(), deadline, waitMs);
+            }
+        } catch (InterruptedIOException | BudgetBusyException | RuntimeException e) {
+            heap.release(heapBlocks);
+            throw e;
+        }
+        return new Reservation(heapBlocks, directBlocks);
+    }
+
+    /**
+     * 不等待地预留直接内存，供缓冲池为闲置帧记账；超过总预算、不够或有解码请求在排队时返回 null。
+     */
+    public Reservation tryReserveDirect(long bytes) {
+        if (!direct.fits(bytes)) return null;
+        int blocks = direct.blocks(bytes);
+        return direct.tryAcquire(blocks) ? new Reservation(0, blocks) : null;
+    }
+
+    /**
+     * 解码请求拿不到直接内存时、开始排队前调用一次，让闲置占用（像素缓冲池）先归还。
+     */
+    public void onDirectShortage(Runnable reclaim) {
+        this.directShortage = reclaim;
+    }
+}
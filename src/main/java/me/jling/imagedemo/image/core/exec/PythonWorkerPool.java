@@ -0,0 +1,301 @@
+package me.jling.imagedemo.image.core.exec;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import tools.jackson.databind.JsonNode;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 长驻 python worker 池：脚本（heif.cli.gainmapMergePy）只在 worker 启动时加载一次，之后每张图只走一次请求/响应，
+ * 省掉解释器冷启动与 numpy 等模块导入。
+ * <p>
+ * worker 由 classpath 上的 python/script_worker.py 承载，协议为 stdin/stdout 上「4 字节大端长度 + JSON」的帧，
+ * 请求只传文件路径。请求超时或进程崩溃时杀掉该 worker，下次借出时重启；空闲 worker 定期 ping，无响应同样重启。
+ * 每次请求的结果与耗时按 PYTHON 工具上报给 {@link ExternalToolExecutor} 的监听器，与逐次启动 python 的调用计在一起。
+ */
+@Slf4j
+@Component
+public class PythonWorkerPool implements DisposableBean {
+
+    private static final JsonMapper JSON = JsonMapper.builder().build();
+    private static final String SHIM = "/python/script_worker.py";
+    private static final long PING_TIMEOUT_SEC = 5;
+
+    private final ExternalToolExecutor executor;
+    private final String python;
+    private final String script;
+    private final int size;
+    private final long queueTimeoutMs;
+    private final long startTimeoutSec;
+    private final BlockingQueue<Worker> idle;
+    private final List<Worker> all = new ArrayList<>();
+    /** 只跑读超时的 kill 定时器，绝不执行会阻塞的任务，否则所有请求的超时都会失效 */
+    private final ScheduledExecutorService watchdog;
+    /** 健康检查自己的线程：ping 或重启卡住时由 watchdog 按超时杀掉 */
+    private final ScheduledExecutorService health;
+    private final AtomicLong restarts = new AtomicLong();
+    private Path shim;
+
+    /**
+     * @param executor       只用来上报调用结果；null 时不上报
+     * @param size           worker 数；&lt;= 0 或未配置脚本时关闭，调用方回退到每次启动 python
+     * @param healthSec      空闲 worker 的 ping 间隔；&lt;= 0 不做健康检查
+     * @param startTimeoutSec 启动（含脚本导入）的等待上限
+     */
+    public PythonWorkerPool(ExternalToolExecutor executor,
+                            @Value("${heif.cli.python:python3}") String python,
+                            @Value("${heif.cli.gainmapMergePy:}") String script,
+                            @Value("${heif.cli.python-workers.size:2}") int size,
+                            @Value("${heif.cli.python-workers.health-interval-sec:30}") long healthSec,
+                            @Value("${heif.cli.python-workers.start-timeout-sec:60}") long startTimeoutSec,
+                            @Value("${heif.cli.queue-timeout-sec:60}") long queueTimeoutSec) {
+        this.executor = executor;
+        this.python = python == null || python.isBlank() ? "python3" : python;
+        this.script = script == null ? "" : script.trim();
+        this.size = this.script.isEmpty() ? 0 : Math.max(0, size);
+        this.queueTimeoutMs = TimeUnit.SECONDS.toMillis(Math.max(0, queueTimeoutSec));
+        this.startTimeoutSec = Math.max(1, startTimeoutSec);
+        this.idle = new ArrayBlockingQueue<>(Math.max(1, this.size));
+        for (int i = 0; i < this.size; i++) {
+            Worker w = new Worker(i + 1);
+            all.add(w);
+            idle.add(w);
+        }
+        AtomicInteger seq = new AtomicInteger();
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(daemon("py-worker-watchdog-", seq));
+        this.health = Executors.newSingleThreadScheduledExecutor(daemon("py-worker-health-", seq));
+        if (this.size > 0 && healthSec > 0) {
+            health.scheduleWithFixedDelay(this::healthCheck, healthSec, healthSec, TimeUnit.SECONDS);
+        }
+        if (this.size > 0) log.info("[py-worker] pool size={} script={}", this.size, this.script);
+    }
+
+    /**
+     * 关闭的实例（测试、基准）：{@link #enabled()} 为 false。
+     */
+    public static PythonWorkerPool disabled() {
+        return new PythonWorkerPool(null, "python3", "", 0, 0, 1, 0);
+    }
+
+    public boolean enabled() {
+        return size > 0;
+    }
+
+    /**
+     * 配置的解释器（heif.cli.python）；池关闭时调用方逐次启动 python 也用它。
+     */
+    public String python() {
+        return python;
+    }
+
+    /**
+     * 相当于执行 {@code python script args...}，返回脚本的退出码。
+     *
+     * @throws ExternalToolExecutor.ToolBusyException 在 queue-timeout 内借不到 worker
+     * @throws IOException                            worker 超时或崩溃（已杀掉，下次借出时重启）
+     */
+    public int run(List<String> args, long timeoutSec) throws IOException {
+        if (!enabled()) throw new IllegalStateException("python worker pool is disabled");
+        long t0 = System.nanoTime();
+        String outcome = "error";
+        try {
+            Worker w;
+            try {
+                w = idle.poll(queueTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for python worker", e);
+            }
+            if (w == null) {
+                outcome = "busy";
+                throw new ExternalToolExecutor.ToolBusyException("No idle python worker for " + script);
+            }
+            try {
+                w.ensureStarted();
+                JsonNode res = w.call(Map.of("op", "run", "args", args), timeoutSec);
+                int exit = res.path("exit").asInt(1);
+                if (exit != 0 && res.hasNonNull("error")) {
+                    log.warn("[py-worker] #{} exit={}: {}", w.id, exit, res.get("error").asString());
+                }
+                outcome = String.valueOf(exit);
+                return exit;
+            } catch (IOException | RuntimeException e) {
+                if (w.timedOut) outcome = "timeout";
+                w.kill();
+                throw e;
+            } finally {
+                idle.offer(w);
+            }
+        } finally {
+            if (executor != null) executor.report(ExternalToolExecutor.Tool.PYTHON, outcome, System.nanoTime() - t0);
+        }
+    }
+
+    /**
+     * 崩溃、超时、健康检查失败后的重启次数。
+     */
+    public long restarts() {
+        return restarts.get();
+    }
+
+    /**
+     * 只检查当前空闲的 worker，借出中的不打扰；已死的 worker 在这里提前拉起。
+     */
+    void healthCheck() {
+        for (int i = 0; i < size; i++) {
+            Worker w = idle.poll();
+            if (w == null) return;
+            try {
+                if (w.started) {
+                    w.ensureStarted();
+                    w.call(Map.of("op", "ping"), PING_TIMEOUT_SEC);
+                }
+            } catch (IOException | RuntimeException e) {
+                log.warn("[py-worker] #{} health check failed: {}", w.id, e.toString());
+                w.kill();
+            } finally {
+                idle.offer(w);
+            }
+        }
+    }
+
+    private synchronized Path shim() throws IOException {
+        if (shim == null) {
+            try (InputStream in = PythonWorkerPool.class.getResourceAsStream(SHIM)) {
+                if (in == null) throw new IOException("Missing classpath resource " + SHIM);
+                Path p = Files.createTempFile("script_worker-", ".py");
+                Files.copy(in, p, StandardCopyOption.REPLACE_EXISTING);
+                p.toFile().deleteOnExit();
+                shim = p;
+            }
+        }
+        return shim;
+    }
+
+    /**
+     * 单个 worker；同一时刻只被一个线程持有（借出期间不在 idle 队列里）。
+     */
+    private final class Worker {
+        final int id;
+        /** 曾经启动过：之后的启动计为重启 */
+        boolean started;
+        /** 最近一次读帧因到期被看门狗杀掉 */
+        volatile boolean timedOut;
+        Process process;
+        DataInputStream in;
+        DataOutputStream out;
+
+        Worker(int id) {
+            this.id = id;
+        }
+
+        void ensureStarted() throws IOException {
+            if (process != null && process.isAlive()) return;
+            kill();
+            if (started) restarts.incrementAndGet();
+            started = true;
+            long t0 = System.nanoTime();
+            Process p = new ProcessBuilder(python, shim().toString(), script).start();
+            process = p;
+            in = new DataInputStream(p.getInputStream());
+            out = new DataOutputStream(p.getOutputStream());
+            Thread drain = new Thread(() -> drainStderr(p), "py-worker-" + id + "-stderr");
+            drain.setDaemon(true);
+            drain.start();
+            JsonNode ready = read(startTimeoutSec);
+            if (!ready.path("ready").asBoolean()) throw new IOException("python worker did not report ready: " + ready);
+            log.info("[py-worker] #{} started pid={} in {} ms", id, p.pid(), (System.nanoTime() - t0) / 1_000_000);
+        }
+
+        JsonNode call(Map<String, ?> request, long timeoutSec) throws IOException {
+            byte[] body = JSON.writeValueAsBytes(request);
+            out.writeInt(body.length);
+            out.write(body);
+            out.flush();
+            return read(timeoutSec);
+        }
+
+        /**
+         * 读一帧；到期由看门狗杀掉进程，阻塞中的读随之以 EOF 结束。
+         */
+        private JsonNode read(long timeoutSec) throws IOException {
+            Process p = process;
+            timedOut = false;
+            ScheduledFuture<?> timer = watchdog.schedule(() -> {
+                timedOut = true;
+                destroy(p);
+            }, Math.max(1, timeoutSec), TimeUnit.SECONDS);
+            try {
+                int len = in.readInt();
+                if (len < 0 || len > (1 << 24)) throw new IOException("Bad frame length " + len);
+                byte[] buf = new byte[len];
+                in.readFully(buf);
+                return JSON.readTree(buf);
+            } catch (EOFException e) {
+                throw new IOException(p.isAlive() ? "python worker closed stdout" : "python worker #" + id
+                        + " died or timed out after " + timeoutSec + "s", e);
+            } finally {
+                timer.cancel(false);
+            }
+        }
+
+        void kill() {
+            if (process != null) destroy(process);
+            process = null;
+        }
+    }
+
+    private static ThreadFactory daemon(String prefix, AtomicInteger seq) {
+        return r -> {
+            Thread t = new Thread(r, prefix + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private static void destroy(Process p) {
+        p.descendants().forEach(ProcessHandle::destroyForcibly);
+        p.destroyForcibly();
+    }
+
+    private static void drainStderr(Process p) {
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(p.getErrorStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null) log.debug("[py-worker] {}", line);
+        } catch (IOException ignore) {
+        }
+    }
+
+    @Override
+    public void destroy() {
+        health.shutdownNow();
+        watchdog.shutdownNow();
+        for (Worker w : all) w.kill();
+    }
+}
@@ -0,0 +1,124 @@
+package me.jling.imagedemo.image.core.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import me.jling.imagedemo.image.core.exec.CpuGate;
+import me.jling.imagedemo.image.core.exec.ExternalToolExecutor;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 解码链路的分段指标，经 Micrometer 暴露（/actuator/metrics、/actuator/prometheus 等）：
+ * <ul>
+ *   <li>{@value #DECODE}：一次 readNormalized，path 标签为最终成功的路径；{@value #STAGE}：各阶段耗时，stage 标签区分</li>
+ *   <li>{@value #PATH}：按最终成功路径计数（含 failed）</li>
+ *   <li>{@value #TOOL_RUNS} / {@value #TOOL_DURATION}：子进程调用次数与耗时，按 tool、exit（退出码或 timeout/busy/error）</li>
+ *   <li>{@value #TEMP_BYTES}：外部工具写出、再由我们读回的临时文件字节数</li>
+ *   <li>{@value #MISMATCH}：最大流尺寸与期望尺寸不符而放弃 ffmpeg 的次数</li>
+ * </ul>
+ * 阶段以 Observation 记录：有 tracing bridge 时即为请求 span 的子 span。
+ */
+@Component
+public class PipelineMetrics {
+
+    public static final String DECODE = "image.decode";
+    public static final String STAGE = "image.decode.stage";
+    public static final String PATH = "image.decode.path";
+    public static final String TOOL_RUNS = "image.tool.runs";
+    public static final String TOOL_DURATION = "image.tool.duration";
+    public static final String TEMP_BYTES = "image.decode.temp.bytes";
+    public static final String MISMATCH = "image.decode.dimension.mismatch";
+
+    private final MeterRegistry meters;
+    private final ObservationRegistry observations;
+    private final Counter tempBytes;
+    private final Counter mismatch;
+
+    public PipelineMetrics(MeterRegistry meters, ObservationRegistry observations, ExternalToolExecutor executor) {
+        this.meters = meters;
+        this.observations = observations;
+        this.tempBytes = Counter.builder(TEMP_BYTES).baseUnit("bytes")
+                .description("Bytes of intermediate files written by external tools and read back").register(meters);
+        this.mismatch = Counter.builder(MISMATCH)
+                .description("Largest probed stream rejected because its size does not match the image").register(meters);
+        if (executor != null) executor.addListener(this::toolCompleted);
+    }
+
+    /**
+     * 不导出的实例（测试、基准）：计数照常累加到内存，阶段不产生 Observation。
+     */
+    public static PipelineMetrics disabled() {
+        return new PipelineMetrics(new SimpleMeterRegistry(), ObservationRegistry.NOOP, null);
+    }
+
+    /**
+     * 一次完整解码；其中各阶段成为它的子 Observation，成功路径由 {@link #succeeded} 记到它的 path 标签上。
+     */
+    @SuppressWarnings("try")
+    public <T> T decode(String source, CpuGate.IoCallable<T> body) throws IOException {
+        Observation obs = Observation.createNotStarted(DECODE, observations)
+                .contextualName("decode")
+                .highCardinalityKeyValue("source", source)
+                .start();
+        try (Observation.Scope ignored = obs.openScope()) {
+            return body.call();
+        } catch (IOException | RuntimeException | Error e) {
+            meters.counter(PATH, "path", "failed").increment();
+            obs.lowCardinalityKeyValue("path", "failed");
+            obs.error(e);
+            throw e;
+        } finally {
+            obs.stop();
+        }
+    }
+
+    /**
+     * 记录最终成功的解码路径（imageio、heif-convert、ffmpeg、hdr-tonemap 等）。
+     */
+    public void succeeded(String path) {
+        meters.counter(PATH, "path", path).increment();
+        Observation current = observations.getCurrentObservation();
+        if (current != null && DECODE.equals(current.getContext().getName())) {
+            current.lowCardinalityKeyValue("path", path);
+        }
+    }
+
+    /**
+     * 在名为 stage 的阶段内执行 body；异常照常抛出并记在该阶段上。
+     */
+    @SuppressWarnings("try")
+    public <T> T stage(String stage, CpuGate.IoCallable<T> body) throws IOException {
+        Observation obs = Observation.createNotStarted(STAGE, observations)
+                .contextualName(stage)
+                .lowCardinalityKeyValue("stage", stage)
+                .start();
+        try (Observation.Scope ignored = obs.openScope()) {
+            return body.call();
+        } catch (IOException | RuntimeException | Error e) {
+            obs.error(e);
+            throw e;
+        } finally {
+            obs.stop();
+        }
+    }
+
+    public void tempFileRead(long bytes) {
+        tempBytes.increment(bytes);
+    }
+
+    public void dimensionMismatch() {
+        mismatch.increment();
+    }
+
+    private void toolCompleted(ExternalToolExecutor.Tool tool, String outcome, long nanos) {
+        String name = tool.name().toLowerCase().replace('_', '-');
+        meters.counter(TOOL_RUNS, "tool", name, "exit", outcome).increment();
+        Timer.builder(TOOL_DURATION).tag("tool", name).register(meters).record(nanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,192 @@
+package me.jling.imagedemo.image.core.route;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 解码路径路由：按来源特征（容器品牌、相机厂商/型号、HDR 类型、流布局）记录每条解码路径的成功率与耗时，
+ * 据此为同类来源重排尝试顺序。
+ * <p>
+ * 样本足够且成功率过低的路径挪到末尾，只在其余路径都失败时才尝试；其余有样本的路径按「成功率 / 平均耗时」重排，
+ * 样本不足的路径保持默认位置。每次以 explore-rate 的概率按默认顺序尝试，让统计不至于固化。
+ * <p>
+ * 只有产出等价的路径之间才能按统计互换：调用方把产出不同的路径（如 HDR 来源的色调映射路径）作为 pinned 传入，
+ * 它们固定在默认位置、不因成功率低被挪走，其余路径只在相邻两个 pinned 之间的区段内重排。
+ * 统计表按特征分桶、计数用 {@link LongAdder}，记录时不加锁。
+ */
+@Slf4j
+@Component
+public class DecodeRouter {
+
+    /**
+     * 来源特征；未知的字段用 "-"。
+     *
+     * @param container ftyp 品牌或扩展名
+     * @param hdr       pq / hlg / gainmap / sdr
+     * @param layout    视频流数量与网格切片数，如 "v50-g48"
+     */
+    public record Signature(String container, String make, String model, String hdr, String layout) {
+        @Override
+        public String toString() {
+            return container + "|" + make + "|" + model + "|" + hdr + "|" + layout;
+        }
+    }
+
+    public record StrategyStats(String strategy, long attempts, long successes, double meanMillis) {
+        public double successRate() {
+            return attempts == 0 ? 0 : (double) successes / attempts;
+        }
+    }
+
+    private static final class Cell {
+        final LongAdder attempts = new LongAdder();
+        final LongAdder successes = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+
+        StrategyStats snapshot(String strategy) {
+            long n = attempts.sum();
+            return new StrategyStats(strategy, n, successes.sum(), n == 0 ? 0 : nanos.sum() / 1e6 / n);
+        }
+    }
+
+    private final boolean enabled;
+    private final double exploreRate;
+    private final int minSamples;
+    private final double skipBelow;
+    private final int maxSignatures;
+    private final ConcurrentHashMap<Signature, ConcurrentHashMap<String, Cell>> table = new ConcurrentHashMap<>();
+
+    /**
+     * @param exploreRate   按默认顺序尝试的概率（0–1）
+     * @param minSamples    某路径至少尝试这么多次后才参与重排
+     * @param skipBelow     成功率低于该值的路径挪到末尾
+     * @param maxSignatures 统计的特征数上限，超出后新特征不再记录（按默认顺序）
+     */
+    public DecodeRouter(@Value("${image.route.enabled:true}") boolean enabled,
+                        @Value("${image.route.explore-rate:0.05}") double exploreRate,
+                        @Value("${image.route.min-samples:8}") int minSamples,
+                        @Value("${image.route.skip-below:0.1}") double skipBelow,
+                        @Value("${image.route.max-signatures:1024}") int maxSignatures) {
+        this.enabled = enabled;
+        this.exploreRate = Math.max(0, Math.min(1, exploreRate));
+        this.minSamples = Math.max(1, minSamples);
+        this.skipBelow = skipBelow;
+        this.maxSignatures = Math.max(0, maxSignatures);
+    }
+
+    /**
+     * 始终按默认顺序、不做统计的实例（测试、基准）。
+     */
+    public static DecodeRouter disabled() {
+        return new DecodeRouter(false, 0, 1, 0, 0);
+    }
+
+    /**
+     * 本次解码的尝试顺序；defaults 为默认顺序，返回的列表包含其全部元素。
+     */
+    public List<String> order(Signature sig, List<String> defaults) {
+        return order(sig, defaults, Set.of());
+    }
+
+    /**
+     * 同 {@link #order(Signature, List)}，但 pinned 中的路径固定在默认位置，其他路径不会越过它们。
+     */
+    public List<String> order(Signature sig, List<String> defaults, Set<String> pinned) {
+        if (!enabled) return defaults;
+        Map<String, Cell> cells = table.get(sig);
+        if (cells == null) return defaults;
+        if (exploreRate > 0 && ThreadLocalRandom.current().nextDouble() < exploreRate) {
+            log.debug("[route] explore {} -> {}", sig, defaults);
+            return defaults;
+        }
+
+        List<String> known = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        List<String> bad = new ArrayList<>();
+        Map<String, Double> score = new LinkedHashMap<>();
+        String[] out = new String[defaults.size()];
+        for (int i = 0; i < defaults.size(); i++) {
+            String s = defaults.get(i);
+            if (pinned.contains(s)) {
+                place(known, slots, score, out);
+                out[i] = s;
+                continue;
+            }
+            Cell c = cells.get(s);
+            StrategyStats st = c == null ? null : c.snapshot(s);
+            if (st == null || st.attempts() < minSamples) {
+                out[i] = s;
+            } else if (st.successRate() < skipBelow) {
+                bad.add(s);
+            } else {
+                known.add(s);
+                slots.add(i);
+                // 顺序尝试的期望代价最小：按 成功率 / 单次耗时 降序
+                score.put(s, st.successRate() / Math.max(st.meanMillis(), 0.001));
+            }
+        }
+        place(known, slots, score, out);
+
+        List<String> order = new ArrayList<>(defaults.size());
+        for (String s : out) {
+            if (s != null) order.add(s);
+        }
+        order.addAll(bad);
+        if (!order.equals(defaults)) log.debug("[route] {} -> {}", sig, order);
+        return order;
+    }
+
+    /**
+     * 把一个区段内有样本的路径按得分降序填回它们占的位置，然后清空区段。
+     */
+    private static void place(List<String> known, List<Integer> slots, Map<String, Double> score, String[] out) {
+        known.sort(Comparator.comparingDouble((String s) -> score.get(s)).reversed());
+        for (int i = 0; i < known.size(); i++) out[slots.get(i)] = known.get(i);
+        known.clear();
+        slots.clear();
+    }
+
+    /**
+     * 记录一次实际发生的尝试；不适用而跳过的路径不要记录。
+     */
+    public void record(Signature sig, String strategy, boolean success, long nanos) {
+        if (!enabled) return;
+        Map<String, Cell> cells = table.get(sig);
+        if (cells == null) {
+            if (table.size() >= maxSignatures) return;
+            cells = table.computeIfAbsent(sig, k -> new ConcurrentHashMap<>());
+        }
+        Cell c = cells.computeIfAbsent(strategy, k -> new Cell());
+        c.attempts.increment();
+        if (success) c.successes.increment();
+        c.nanos.add(nanos);
+    }
+
+    /**
+     * 当前统计快照，按特征分组。
+     */
+    public Map<Signature, List<StrategyStats>> stats() {
+        Map<Signature, List<StrategyStats>> out = new LinkedHashMap<>();
+        table.forEach((sig, cells) -> {
+            List<StrategyStats> list = new ArrayList<>();
+            cells.forEach((s, c) -> list.add(c.snapshot(s)));
+            out.put(sig, list);
+        });
+        return out;
+    }
+
+    public void clear() {
+        table.clear();
+    }
+}
@@ -0,0 +1,168 @@
+package me.jling.imagedemo.image.core.sdr;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+
+/**
+ * 进程内增益图合成：SDR 基础图 × 上采样后的增益图 → HDR 线性光，再色调映射回 8-bit sRGB。
+ * <p>
+ * 按行并行，直接写入预分配的 TYPE_3BYTE_BGR 栅格；增益到倍率的换算查表完成。
+ */
+public final class GainMapMerger {
+
+    private static final int FACTOR_LUT_SIZE = 4096;
+
+    private GainMapMerger() {}
+
+    public static BufferedImage merge(BufferedImage base, BufferedImage gainMap, GainMapMetadata meta,
+                                      ToneMapper.Operator op) {
+        BufferedImage dst = new BufferedImage(base.getWidth(), base.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        merge(base, gainMap, meta, op, dst);
+        return dst;
+    }
+
+    /**
+     * 合成到调用方提供的 TYPE_3BYTE_BGR 图像（尺寸须与基础图一致）。
+     */
+    public static void merge(BufferedImage base, BufferedImage gainMap, GainMapMetadata meta,
+                             ToneMapper.Operator op, BufferedImage dst) {
+        final int w = base.getWidth(), h = base.getHeight();
+        if (dst.getType() != BufferedImage.TYPE_3BYTE_BGR || dst.getWidth() != w || dst.getHeight() != h) {
+            throw new IllegalArgumentException("dst must be TYPE_3BYTE_BGR " + w + "x" + h);
+        }
+        final byte[] out = ((DataBufferByte) dst.getRaster().getDataBuffer()).getData();
+
+        final GainPlane gm = GainPlane.of(gainMap);
+        final float[] factor = factorLut(meta);
+        final float offSdr = (float) meta.offsetSdr(), offHdr = (float) meta.offsetHdr();
+        final ToneMapper.Curve curve = ToneMapper.curve(op, (float) meta.headroom());
+
+        // 列方向的双线性插值系数对所有行相同，预先算好
+        final int[] gx0 = new int[w], gx1 = new int[w];
+        final float[] fx = new float[w];
+        for (int x = 0; x < w; x++) {
+            float sx = Math.max(0f, (x + 0.5f) * gm.w / w - 0.5f);
+            int x0 = Math.min((int) sx, gm.w - 1);
+            gx0[x] = x0;
+            gx1[x] = Math.min(x0 + 1, gm.w - 1);
+            fx[x] = sx - x0;
+        }
+
+        RowBands.run(h, (y0, y1) -> {
+            int[] row = new int[w];
+            for (int y = y0; y < y1; y++) {
+                readRow(base, y, row);
+                float sy = Math.max(0f, (y + 0.5f) * gm.h / h - 0.5f);
+                int ry0 = Math.min((int) sy, gm.h - 1);
+                int ry1 = Math.min(ry0 + 1, gm.h - 1);
+                float fy = sy - ry0;
+                int di = y * w * 3;
+                for (int x = 0; x < w; x++, di += 3) {
+                    int rgb = row[x];
+                    float r = ToneMapper.srgbToLinear(rgb >> 16);
+                    float g = ToneMapper.srgbToLinear(rgb >> 8);
+                    float b = ToneMapper.srgbToLinear(rgb);
+                    int a = gx0[x], c = gx1[x];
+                    float t = fx[x];
+                    if (gm.channels == 1) {
+                        float k = factor[lutIndex(gm.sample(0, a, c, ry0, ry1, t, fy))];
+                        r = (r + offSdr) * k - offHdr;
+                        g = (g + offSdr) * k - offHdr;
+                        b = (b + offSdr) * k - offHdr;
+                    } else {
+                        r = (r + offSdr) * factor[lutIndex(gm.sample(0, a, c, ry0, ry1, t, fy))] - offHdr;
+                        g = (g + offSdr) * factor[lutIndex(gm.sample(1, a, c, ry0, ry1, t, fy))] - offHdr;
+                        b = (b + offSdr) * factor[lutIndex(gm.sample(2, a, c, ry0, ry1, t, fy))] - offHdr;
+                    }
+                    ToneMapper.writeBgr(curve, Math.max(0f, r), Math.max(0f, g), Math.max(0f, b), out, di);
+                }
+            }
+        });
+    }
+
+    /**
+     * 归一化增益码值 [0,1] → 线性倍率。ISO 语义在 log2 域插值；Apple 语义先按 sRGB 曲线线性化。
+     */
+    static float[] factorLut(GainMapMetadata meta) {
+        float[] lut = new float[FACTOR_LUT_SIZE];
+        double invGamma = 1.0 / (meta.gamma() <= 0 ? 1.0 : meta.gamma());
+        double headroom = meta.headroom();
+        for (int i = 0; i < lut.length; i++) {
+            double v = i / (double) (FACTOR_LUT_SIZE - 1);
+            if (meta.appleLinearGain()) {
+                double g = v <= 0.04045 ? v / 12.92 : Math.pow((v + 0.055) / 1.055, 2.4);
+                lut[i] = (float) (1.0 + (headroom - 1.0) * g);
+            } else {
+                double gv = Math.pow(v, invGamma);
+                double logBoost = meta.gainMapMinLog2() * (1 - gv) + meta.gainMapMaxLog2() * gv;
+                lut[i] = (float) Math.pow(2, logBoost);
+            }
+        }
+        return lut;
+    }
+
+    private static int lutIndex(float v) {
+        int i = (int) (v * (FACTOR_LUT_SIZE - 1) + 0.5f);
+        return i < 0 ? 0 : Math.min(i, FACTOR_LUT_SIZE - 1);
+    }
+
+    private static void readRow(BufferedImage img, int y, int[] row) {
+        int w = row.length;
+        switch (img.getType()) {
+            case BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB -> {
+                int[] d = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+                System.arraycopy(d, y * w, row, 0, w);
+            }
+            case BufferedImage.TYPE_3BYTE_BGR -> {
+                byte[] d = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+                for (int x = 0, i = y * w * 3; x < w; x++, i += 3) {
+                    row[x] = (d[i + 2] & 0xff) << 16 | (d[i + 1] & 0xff) << 8 | (d[i] & 0xff);
+                }
+            }
+            default -> img.getRGB(0, y, w, 1, row, 0, w);
+        }
+    }
+
+    /**
+     * 增益图平面（归一化到 [0,1]），单通道或 RGB。
+     */
+    private static final class GainPlane {
+        final int w, h, channels;
+        final float[] data;
+
+        private GainPlane(int w, int h, int channels, float[] data) {
+            this.w = w;
+            this.h = h;
+            this.channels = channels;
+            this.data = data;
+        }
+
+        static GainPlane of(BufferedImage img) {
+            Raster r = img.getRaster();
+            int w = img.getWidth(), h = img.getHeight();
+            int channels = r.getNumBands() >= 3 ? 3 : 1;
+            float max = (1 << r.getSampleModel().getSampleSize(0)) - 1;
+            float[] data = new float[w * h * channels];
+            int[] buf = new int[w];
+            for (int c = 0; c < channels; c++) {
+                for (int y = 0; y < h; y++) {
+                    r.getSamples(0, y, w, 1, c, buf);
+                    for (int x = 0; x < w; x++) data[(y * w + x) * channels + c] = buf[x] / max;
+                }
+            }
+            return new GainPlane(w, h, channels, data);
+        }
+
+        float sample(int c, int x0, int x1, int y0, int y1, float fx, float fy) {
+            float a = data[(y0 * w + x0) * channels + c];
+            float b = data[(y0 * w + x1) * channels + c];
+            float d = data[(y1 * w + x0) * channels + c];
+            float e = data[(y1 * w + x1) * channels + c];
+            float top = a + (b - a) * fx;
+            float bot = d + (e - d) * fx;
+            return top + (bot - top) * fy;
+        }
+    }
+}
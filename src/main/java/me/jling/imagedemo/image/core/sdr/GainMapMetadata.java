@@ -0,0 +1,90 @@
+package me.jling.imagedemo.image.core.sdr;
+
+import tools.jackson.databind.JsonNode;
+import tools.jackson.databind.json.JsonMapper;
+
+/**
+ * 增益图参数（ISO 21496-1 / Adobe hdrgm 语义，log2 域）。
+ * <p>
+ * Apple 私有格式只给出 headroom，按 {@link #apple(double)} 换算：
+ * min=0、max=log2(headroom)、gamma=1、offset=0，且增益图先按 sRGB 曲线线性化。
+ */
+public record GainMapMetadata(
+        boolean present,
+        double gainMapMinLog2,
+        double gainMapMaxLog2,
+        double gamma,
+        double offsetSdr,
+        double offsetHdr,
+        double hdrCapacityMaxLog2,
+        boolean appleLinearGain
+) {
+
+    public static final GainMapMetadata NONE = new GainMapMetadata(false, 0, 0, 1, 0, 0, 0, false);
+
+    private static final JsonMapper JSON = JsonMapper.builder().build();
+
+    /**
+     * Apple：hdr = sdr · (1 + (headroom − 1) · g)，g 为线性化后的增益图。
+     */
+    public static GainMapMetadata apple(double headroom) {
+        double h = Math.max(1.0, headroom);
+        double log2 = Math.log(h) / Math.log(2);
+        return new GainMapMetadata(true, 0, log2, 1, 0, 0, log2, true);
+    }
+
+    public double headroom() {
+        return Math.pow(2, hdrCapacityMaxLog2);
+    }
+
+    /**
+     * 解析 `exiftool -j -n` 的输出（数组，取第一项）。
+     */
+    public static GainMapMetadata parseExiftoolJson(String json) {
+        if (json == null || json.isBlank()) return NONE;
+        JsonNode root = JSON.readTree(json.substring(Math.max(0, json.indexOf('['))));
+        JsonNode n = root.isArray() ? root.path(0) : root;
+
+        if (n.has("GainMapMax")) {
+            double max = first(n.path("GainMapMax"), 0);
+            return new GainMapMetadata(true,
+                    first(n.path("GainMapMin"), 0),
+                    max,
+                    first(n.path("Gamma"), 1),
+                    first(n.path("OffsetSDR"), 1.0 / 64),
+                    first(n.path("OffsetHDR"), 1.0 / 64),
+                    n.has("HDRCapacityMax") ? first(n.path("HDRCapacityMax"), max) : max,
+                    false);
+        }
+
+        boolean apple = n.has("HDRGainMapVersion") || n.has("HDRGainMapHeadroom");
+        if (!apple) return NONE;
+        if (n.has("HDRGainMapHeadroom")) {
+            return apple(first(n.path("HDRGainMapHeadroom"), 1));
+        }
+        return apple(appleHeadroom(first(n.path("HDRHeadroom"), 1), first(n.path("HDRGain"), 0)));
+    }
+
+    /**
+     * 由 Apple MakerNote 0x0021/0x0030 推算 headroom（Apple 公开的经验公式）。
+     */
+    static double appleHeadroom(double maker33, double maker48) {
+        double stops;
+        if (maker33 < 1.0) {
+            stops = maker48 <= 0.01 ? -20.0 * maker48 + 1.8 : -0.101 * maker48 + 1.601;
+        } else {
+            stops = maker48 <= 0.01 ? -70.0 * maker48 + 3.0 : -0.303 * maker48 + 2.303;
+        }
+        return Math.pow(2, Math.max(stops, 0));
+    }
+
+    private static double first(JsonNode v, double def) {
+        if (v.isArray()) v = v.path(0);
+        if (v.isNumber()) return v.asDouble();
+        try {
+            return Double.parseDouble(v.asString(String.valueOf(def)).trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package me.jling.imagedemo.image.core.sdr;
+
+import me.jling.imagedemo.ImageDemoApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * 命令行转换：{@code HdrSdrCli input.heic output.jpg [maxEdge]}，输出格式按扩展名（.jpg/.jpeg/.png）。
+ * 以非 Web 方式启动 Spring 上下文，工具路径等配置可用 -D 系统属性覆盖。
+ */
+public final class HdrSdrCli {
+
+    private HdrSdrCli() {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: HdrSdrCli <input> <output.jpg|output.png> [maxEdge]");
+            System.exit(2);
+        }
+        Path in = Path.of(args[0]);
+        Path out = Path.of(args[1]).toAbsolutePath();
+        SdrEncoder.Format format = SdrEncoder.Format.of(out);
+        int maxEdge = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+
+        try (ConfigurableApplicationContext ctx = new SpringApplicationBuilder(ImageDemoApplication.class)
+                .web(WebApplicationType.NONE)
+                .logStartupInfo(false)
+                .run()) {
+            HdrSdrConverter converter = ctx.getBean(HdrSdrConverter.class);
+            // 先写临时文件再改名，失败时不留下半截输出
+            Path tmp = Files.createTempFile(out.getParent(), out.getFileName().toString(), ".part");
+            try {
+                try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16)) {
+                    converter.convert(in, os, format, maxEdge);
+                }
+                Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+}
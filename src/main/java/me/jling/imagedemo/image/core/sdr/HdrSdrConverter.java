@@ -1,28 +1,49 @@
 package me.jling.imagedemo.image.core.sdr;
 
-import com.drew.imaging.ImageMetadataReader;
-import com.drew.metadata.Metadata;
-import com.drew.metadata.exif.ExifIFD0Directory;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import me.jling.imagedemo.image.core.cache.DecodeCache;
+import me.jling.imagedemo.image.core.exec.CpuGate;
+import me.jling.imagedemo.image.core.exec.ExternalToolExecutor;
+import me.jling.imagedemo.image.core.exec.MemoryBudget;
+import me.jling.imagedemo.image.core.exec.PythonWorkerPool;
+import me.jling.imagedemo.image.core.metrics.PipelineMetrics;
+import me.jling.imagedemo.image.core.route.DecodeRouter;
+import me.jling.imagedemo.image.core.store.DerivedStore;
+import me.jling.imagedemo.image.core.tool.IsoBmff;
+import me.jling.imagedemo.image.core.tool.SourceImage;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.imageio.ImageIO;
-import java.awt.*;
-import java.awt.geom.AffineTransform;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 @Service
 @Slf4j
+@RequiredArgsConstructor
 public class HdrSdrConverter {
 
+    private final ExternalToolExecutor toolExecutor;
+    private final CpuGate cpuGate;
+    private final DecodeCache cache;
+    private final DerivedStore store;
+    private final PipelineMetrics metrics;
+    private final DecodeRouter router;
+    private final PythonWorkerPool pythonWorkers;
+    private final MemoryBudget memory;
+    private final PixelBufferPool pixels;
+
     @Value("${heif.cli.timeout-sec:120}")
     private int heifCliTimeoutSec;
 
@@ -38,425 +59,1051 @@ public class HdrSdrConverter {
     @Value("${heif.cli.heifConvertPath:heif-convert}")
     private String heifConvertPath;
 
+    @Value("${heif.cli.heifThumbnailerPath:heif-thumbnailer}")
+    private String heifThumbnailerPath;
+
     @Value("${heif.cli.gainmapMergePy:}")
     private String gainmapMergePy;
 
+    @Value("${hdr.gainmap.native:true}")
+    private boolean gainmapNative;
+
+    @Value("${hdr.tonemap.operator:HABLE}")
+    private ToneMapper.Operator tonemapOperator;
+
+    @Value("${hdr.tonemap.peak-nits:1000}")
+    private float tonemapPeakNits;
+
+    @Value("${hdr.tonemap.white-nits:203}")
+    private float tonemapWhiteNits;
+
+    @Value("${image.output.jpeg-quality:0.9}")
+    private float jpegQuality;
+
+    @Value("${image.output.jpeg-progressive:false}")
+    private boolean jpegProgressive;
+
+    @Value("${image.output.jpeg-optimize-huffman:false}")
+    private boolean jpegOptimizeHuffman;
+
+    @Value("${image.output.png-compression:6}")
+    private int pngCompression;
+
     /**
-     * 读取原图并按 EXIF Orientation 纠正方向（仅处理 3/6/8）。
+     * 读取原图并按 EXIF Orientation 纠正方向（1–8，无损翻转/转置）。
      */
     public BufferedImage readOrigNormalized(Path p) throws IOException {
-        BufferedImage img = readAny(p);
-        if (img == null) {
-            throw new IOException("Unable to decode image: " + p);
+        return readNormalized(p, 0);
+    }
+
+    /**
+     * 目标尺寸解码：结果长边不超过 maxEdge（原图更小时不放大），方向已纠正；maxEdge &lt;= 0 表示原尺寸。
+     * <p>
+     * 缩小发生在解码阶段（ImageIO 子采样、ffmpeg scale、heif-thumbnailer 内嵌缩略图），
+     * 方向纠正与色调映射都在小图上进行，耗时与内存随输出尺寸而非原图像素数增长。
+     * <p>
+     * 返回的图像归调用方所有，可以随意修改：缓存命中时给的是副本。
+     */
+    public BufferedImage readNormalized(Path p, int maxEdge) throws IOException {
+        BufferedImage img = readShared(p, maxEdge);
+        return cache.cachesImages() ? DecodeCache.copy(img) : img;
+    }
+
+    /**
+     * 同 {@link #readNormalized}，但结果可能就是解码缓存里那一份，只能读（编码、裁剪）。
+     */
+    private BufferedImage readShared(Path p, int maxEdge) throws IOException {
+        String known = cache.knownContentKey(p);
+        if (known != null) {
+            return cache.image(normalizedKey(known, maxEdge), () -> decodeNormalized(p, maxEdge));
         }
+        // 文件只读一次：哈希与解码共用同一个已打开的源
+        try (SourceImage src = SourceImage.open(p)) {
+            return cache.image(normalizedKey(cache.contentKey(src), maxEdge), () -> decodeNormalized(src, maxEdge));
+        }
+    }
+
+    /**
+     * 解码缓存键：内容哈希 + 目标尺寸；缓存关闭（hash 为 null）时为 null。
+     */
+    private static String normalizedKey(String hash, int maxEdge) {
+        return hash == null ? null : hash + "@" + Math.max(0, maxEdge);
+    }
 
-        log.debug("[readOrigNormalized] decoded {} -> {}x{}", p.getFileName(), img.getWidth(), img.getHeight());
+    private BufferedImage decodeNormalized(Path p, int maxEdge) throws IOException {
+        try (SourceImage src = SourceImage.open(p)) {
+            return decodeNormalized(src, maxEdge);
+        }
+    }
+
+    @SuppressWarnings("try") // 预留只需在解码期间持有
+    private BufferedImage decodeNormalized(SourceImage src, int maxEdge) throws IOException {
+        Path p = src.path();
+        return metrics.decode(String.valueOf(p.getFileName()), () -> {
+            int orientation = src.exifOrientation();
+            boolean rotate = orientation >= 2 && orientation <= 8;
+            int[] dims = memory.enabled() ? sourceDimensions(src) : null;
+            int edge = admittedEdge(src, dims, maxEdge, rotate);
+            try (MemoryBudget.Reservation ignored = memory.reserve(estimateDecode(dims, edge, rotate))) {
+                BufferedImage decoded = readAny(src, edge, null);
+                if (decoded == null) {
+                    throw new IOException("Unable to decode image: " + p);
+                }
+
+                log.debug("[readNormalized] decoded {} -> {}x{} (maxEdge={})",
+                        p.getFileName(), decoded.getWidth(), decoded.getHeight(), edge);
+
+                BufferedImage img = edge > 0
+                        ? metrics.stage("resize", () -> cpuGate.call(() -> fitWithin(decoded, edge)))
+                        : decoded;
+                if (!rotate) return img;
+                return metrics.stage("rotate", () -> cpuGate.call(() -> Orientation.apply(img, orientation)));
+            }
+        });
+    }
+
+    /**
+     * 估算超过整个内存预算时逐步缩小长边，直到放得下；否则原样返回 maxEdge。dims 见 {@link #sourceDimensions}。
+     */
+    private int admittedEdge(SourceImage src, int[] dims, int maxEdge, boolean rotate) {
+        if (dims == null) return maxEdge;
+        MemoryBudget.Demand demand = estimateDecode(dims[0], dims[1], dims[2], maxEdge, rotate);
+        if (memory.fits(demand)) return maxEdge;
+        int edge = maxEdge > 0 ? maxEdge : Math.max(dims[0], dims[1]);
+        while (edge > 64 && !memory.fits(estimateDecode(dims[0], dims[1], dims[2], edge, rotate))) {
+            edge = edge * 3 / 4;
+        }
+        log.warn("[memory] {} ({}x{}, {}-bit) needs ~{} MiB heap + {} MiB direct at maxEdge={}, budget {} + {} MiB; decoding at maxEdge={}",
+                src.path().getFileName(), dims[0], dims[1], dims[2], demand.heapBytes() >> 20, demand.directBytes() >> 20,
+                maxEdge, memory.capacity() >> 20, memory.directCapacity() >> 20, edge);
+        return edge;
+    }
 
-        int orientation = 1;
+    /**
+     * 拿不到尺寸时返回 0（不预留）。
+     */
+    private static MemoryBudget.Demand estimateDecode(int[] dims, int maxEdge, boolean rotate) {
+        return dims == null ? MemoryBudget.Demand.heap(0) : estimateDecode(dims[0], dims[1], dims[2], maxEdge, rotate);
+    }
+
+    /**
+     * 一次整图解码的峰值内存估算，堆与直接内存分开计。
+     * <p>
+     * 解码阶段的缩小只到整数步长，按长边 2 × maxEdge 计；8-bit 每像素按 4 字节图像 + 2 字节解码器中间缓冲，全在堆上。
+     * 高位深（PQ/HLG，ffmpeg 输出 rgb48le）的 16-bit 帧在堆外 {@link PixelBuffer} 里，每像素 6 字节计入直接内存，
+     * 堆上只有 8-bit 色调映射结果，按 4 字节计；之后的缩放与旋转各再持有一份 8-bit 输出。
+     */
+    static MemoryBudget.Demand estimateDecode(int w, int h, int bitDepth, int maxEdge, boolean rotate) {
+        int[] decoded = maxEdge > 0 ? fit(w, h, maxEdge * 2) : new int[]{w, h};
+        int[] out = fit(w, h, maxEdge);
+        long decodedPixels = (long) decoded[0] * decoded[1];
+        long outPixels = (long) out[0] * out[1];
+        long heap = decodedPixels * (bitDepth > 8 ? 4 : 6);
+        long direct = bitDepth > 8 ? decodedPixels * 6 : 0;
+        if (maxEdge > 0) heap += outPixels * 4;
+        if (rotate) heap += outPixels * 4;
+        return new MemoryBudget.Demand(heap, direct);
+    }
+
+    /**
+     * [宽, 高, 位深]：ImageIO 能识别的格式只读文件头，其余（HEIF/AVIF 等）取 ffprobe 结果（有缓存）；拿不到时返回 null。
+     */
+    private int[] sourceDimensions(SourceImage src) {
         try {
-            Metadata md = ImageMetadataReader.readMetadata(p.toFile());
-            ExifIFD0Directory d0 = md.getFirstDirectoryOfType(ExifIFD0Directory.class);
-            if (d0 != null && d0.containsTag(ExifIFD0Directory.TAG_ORIENTATION)) {
-                orientation = d0.getInteger(ExifIFD0Directory.TAG_ORIENTATION);
+            if (!src.isHeifOrAvif()) {
+                int[] size = src.imageIOSize();
+                if (size != null) return new int[]{size[0], size[1], 8};
             }
-        } catch (Exception e) {
-            log.debug("读取 EXIF 方向失败，按默认方向处理: {} {}", p, e.toString());
+            if (ffprobePath == null || ffprobePath.isBlank()) return null;
+            ProbeResult probe = probe(src.path());
+            int[] expected = probe.expectedDimensions();
+            if (expected[0] <= 0 || expected[1] <= 0) return null;
+            ProbeResult.Stream best = probe.bestVideo();
+            return new int[]{expected[0], expected[1], best == null ? 8 : best.bitDepth()};
+        } catch (IOException | RuntimeException e) {
+            log.debug("[memory] cannot size {}: {}", src.path().getFileName(), e.toString());
+            return null;
         }
+    }
 
-        return switch (orientation) {
-            case 3 -> rotate(img, 180);
-            case 6 -> rotate(img, 90);
-            case 8 -> rotate(img, 270);
-            default -> img;
-        };
+    /**
+     * 区域解码：region 与 {@link #readOrigNormalized} 的结果同一坐标系（已转正），输出尺寸为 region × scale。
+     * <p>
+     * HEIF 网格图只解码与区域相交的切片，拼接、裁剪、缩放都在同一个 ffmpeg 滤镜图里完成；
+     * ImageIO 能读的格式用 setSourceRegion + 子采样。两者的峰值内存都只与区域大小相关。
+     */
+    public BufferedImage decodeRegion(Path p, Rectangle region, double scale) throws IOException {
+        if (!(scale > 0)) throw new IllegalArgumentException("scale must be > 0: " + scale);
+        java.util.Objects.requireNonNull(region, "region");
+        try (SourceImage src = SourceImage.open(p)) {
+            // 顺带记下内容哈希，后续 probe / 元数据按路径查缓存时不再读文件
+            cache.contentKey(src);
+            Region rg = Region.of(src, region);
+            int outW = Math.max(1, (int) Math.round(rg.display.width * scale));
+            int outH = Math.max(1, (int) Math.round(rg.display.height * scale));
+            return decodeRegion(src, rg, outW, outH);
+        }
     }
 
-    private BufferedImage readAny(Path p) throws IOException {
-        log.info("[readAny] enter file={} ext={} heifOrAvif?={} ", p.getFileName(), extLower(p), safeIsHeifOrAvif(p));
+    /**
+     * 整图按条带解码并依次交给 sink，输出尺寸为原图 × scale。
+     * HEIF 网格图按切片行（转置方向时按切片列）切条带，任一时刻只持有一条带的像素；其他格式整图作为一条带交付。
+     *
+     * @return 输出的 [宽, 高]
+     */
+    @SuppressWarnings("try") // 预留只需在解码期间持有
+    public int[] decodeStrips(Path p, double scale, StripSink sink) throws IOException {
+        if (!(scale > 0)) throw new IllegalArgumentException("scale must be > 0: " + scale);
+        try (SourceImage src = SourceImage.open(p)) {
+            cache.contentKey(src);
+            Region full = Region.of(src, null);
+            if (full.display == null) {
+                // 非网格的 HEIF/AVIF 等：原尺寸、无需转向时，进程内色调映射可以直接按条带交付
+                int[] streamed = new int[2];
+                StripSink sized = new StripSink() {
+                    @Override
+                    public void begin(int width, int height) throws IOException {
+                        streamed[0] = width;
+                        streamed[1] = height;
+                        sink.begin(width, height);
+                    }
 
-        BufferedImage bi = null;
+                    @Override
+                    public void strip(int y, BufferedImage rows) throws IOException {
+                        sink.strip(y, rows);
+                    }
+                };
+                boolean rotate = full.orientation >= 2 && full.orientation <= 8;
+                boolean direct = scale == 1.0 && !rotate;
+                // 超出总预算的整图按独占预算执行（排队等其他解码结束），不降分辨率
+                try (MemoryBudget.Reservation ignored = memory.reserve(
+                        estimateDecode(memory.enabled() ? sourceDimensions(src) : null, 0, rotate))) {
+                    BufferedImage decoded = readAny(src, 0, direct ? sized : null);
+                    if (decoded == null) throw new IOException("Unable to decode image: " + p);
+                    if (decoded == STREAMED) return streamed;
 
-        try {
-            bi = ImageIO.read(p.toFile());
-            if (bi != null) return bi;
-        } catch (Exception ignore) {}
+                    BufferedImage img = rotate ? cpuGate.call(() -> Orientation.apply(decoded, full.orientation)) : decoded;
+                    int w = Math.max(1, (int) Math.round(img.getWidth() * scale));
+                    int h = Math.max(1, (int) Math.round(img.getHeight() * scale));
+                    sink.begin(w, h);
+                    sink.strip(0, cpuGate.call(() -> resize(img, w, h)));
+                    return new int[]{w, h};
+                }
+            }
+            int outW = Math.max(1, (int) Math.round(full.display.width * scale));
+            int outH = Math.max(1, (int) Math.round(full.display.height * scale));
+            sink.begin(outW, outH);
+            if (full.grid == null) {
+                sink.strip(0, decodeRegion(src, full, outW, outH));
+                return new int[]{outW, outH};
+            }
 
-        boolean forceFfmpeg = safeIsHeifOrAvif(p);
-        if (forceFfmpeg && (ffmpegPath == null || ffmpegPath.isBlank())) {
-            log.warn("[readAny] ImageIO failed or forced-ffmpeg, but ffmpegPath is blank for {}", p);
-            return null;
+            // 条带边界取切片边界在显示坐标中的位置，避免一个条带跨两行切片
+            boolean transpose = full.orientation >= 5;
+            boolean flip = transpose ? full.orientation == 7 || full.orientation == 8
+                    : full.orientation == 3 || full.orientation == 4;
+            int length = full.display.height;
+            int tile = transpose ? full.grid.tileWidth() : full.grid.tileHeight();
+            TreeSet<Integer> edges = new TreeSet<>(List.of(0, length));
+            for (int b = tile; b < length; b += tile) edges.add(flip ? length - b : b);
+
+            Integer prev = null;
+            for (int y : edges) {
+                if (prev != null) {
+                    int y0 = (int) Math.round(prev * (double) outH / length);
+                    int y1 = (int) Math.round(y * (double) outH / length);
+                    if (y1 > y0) {
+                        Region band = Region.of(src, full, new Rectangle(0, prev, full.display.width, y - prev));
+                        sink.strip(y0, decodeRegion(src, band, outW, y1 - y0));
+                    }
+                }
+                prev = y;
+            }
+            return new int[]{outW, outH};
+        }
+    }
+
+    /**
+     * 解码并编码到 out：原尺寸时按条带边解码边编码（HEIF 网格、进程内色调映射），不持有整张 8-bit 图；
+     * maxEdge &gt; 0 或解码缓存命中时先按 {@link #readNormalized(Path, int)} 得到整图再写出。不关闭 out。
+     */
+    public void convert(Path p, OutputStream out, SdrEncoder.Format format, int maxEdge) throws IOException {
+        SdrEncoder.Options opt = outputOptions(format);
+        if (maxEdge > 0) {
+            SdrEncoder.write(readShared(p, maxEdge), out, opt);
+            return;
+        }
+        // 原尺寸结果已在解码缓存里时直接编码，不再走条带解码
+        // 只按路径戳查，不为此读文件；未记录时由 decodeStrips 顺带算哈希
+        BufferedImage cached = cache.peek(normalizedKey(cache.knownContentKey(p), 0));
+        if (cached != null) {
+            SdrEncoder.write(cached, out, opt);
+            return;
         }
+        try (SdrEncoder.Writer w = SdrEncoder.writer(out, opt)) {
+            decodeStrips(p, 1.0, w);
+            w.finish();
+        }
+    }
+
+    public SdrEncoder.Options outputOptions(SdrEncoder.Format format) {
+        return new SdrEncoder.Options(format, jpegQuality, jpegProgressive, jpegOptimizeHuffman, pngCompression);
+    }
+
+    /**
+     * 显示坐标的区域及其在存储坐标中的对应矩形。
+     */
+    private record Region(Rectangle display, Rectangle stored, int orientation, int storedWidth, int storedHeight,
+                          IsoBmff.Grid grid) {
 
-        int[] expected = probeDimensionsByFfprobe(p);
-        int mapIndex = pickBestVideoStream(p)[0];
-        log.info("[readAny] expect={}x{} map=0:v:{} (ffprobe)", expected[0], expected[1], mapIndex);
+        static Region of(SourceImage src, Rectangle region) throws IOException {
+            IsoBmff.Grid grid = src.isHeifOrAvif() ? src.heifGrid() : null;
+            int[] size = grid != null ? new int[]{grid.outputWidth(), grid.outputHeight()} : src.imageIOSize();
+            Region full = new Region(null, null, src.exifOrientation(), size == null ? 0 : size[0],
+                    size == null ? 0 : size[1], grid);
+            return of(src, full, region);
+        }
 
-        Path tmpHdrPng = tryDecodeHeifAvifToSdrPng(p, mapIndex);
-        if (tmpHdrPng != null && Files.exists(tmpHdrPng)) {
+        static Region of(SourceImage src, Region base, Rectangle region) {
+            if (base.storedWidth <= 0) {
+                // 尺寸未知（非网格且 ImageIO 不识别）：整图解码后再裁剪
+                return new Region(region, null, base.orientation, 0, 0, null);
+            }
+            boolean transpose = base.orientation >= 5 && base.orientation <= 8;
+            Rectangle bounds = transpose ? new Rectangle(base.storedHeight, base.storedWidth)
+                    : new Rectangle(base.storedWidth, base.storedHeight);
+            Rectangle display = region == null ? bounds : bounds.intersection(region);
+            if (display.isEmpty()) {
+                throw new IllegalArgumentException("region " + region + " outside image " + bounds.width + "x" + bounds.height
+                        + " (" + src.path() + ")");
+            }
+            Rectangle stored = Orientation.toStored(display, base.orientation, base.storedWidth, base.storedHeight);
+            return new Region(display, stored, base.orientation, base.storedWidth, base.storedHeight, base.grid);
+        }
+    }
+
+    private BufferedImage decodeRegion(SourceImage src, Region rg, int outW, int outH) throws IOException {
+        Path p = src.path();
+        boolean transpose = rg.orientation >= 5 && rg.orientation <= 8;
+        // 存储方向上的输出尺寸；转正放在最后
+        int sw = transpose ? outH : outW, sh = transpose ? outW : outH;
+
+        BufferedImage img = null;
+        if (rg.grid != null) {
             try {
-                BufferedImage biHdr = ImageIO.read(tmpHdrPng.toFile());
-                if (biHdr != null) {
-                    log.info("[readAny] HDR tonemapped decode -> {}x{} for {}", biHdr.getWidth(), biHdr.getHeight(), p.getFileName());
-                    return biHdr;
-                }
-            } catch (Exception e) {
-                log.warn("[readAny] read HDR tmp failed for {}: {}", p.getFileName(), e.toString());
-            } finally {
-                try { Files.deleteIfExists(tmpHdrPng); } catch (Exception ignore) {}
+                img = decodeGridRegion(p, rg.grid, rg.stored, sw, sh);
+            } catch (IOException e) {
+                log.warn("[decodeRegion] tile decode failed for {}: {}", p.getFileName(), e.toString());
             }
+        } else if (rg.stored != null) {
+            int step = Math.max(1, Math.min(rg.stored.width / sw, rg.stored.height / sh));
+            BufferedImage sub = cpuGate.call(() -> src.decodeImageIO(rg.stored, step));
+            if (sub != null) img = cpuGate.call(() -> resize(sub, sw, sh));
         }
+        if (img == null) {
+            log.info("[decodeRegion] cropping a full decode of {}", p.getFileName());
+            BufferedImage full = readShared(p, 0);
+            Rectangle r = rg.display.intersection(new Rectangle(full.getWidth(), full.getHeight()));
+            if (r.isEmpty()) throw new IllegalArgumentException("region " + rg.display + " outside image (" + p + ")");
+            BufferedImage crop = full.getSubimage(r.x, r.y, r.width, r.height);
+            BufferedImage scaled = cpuGate.call(() -> resize(crop, outW, outH));
+            // 尺寸不变时 resize 原样返回，子图仍与缓存共享栅格
+            return scaled == crop ? DecodeCache.copy(crop) : scaled;
+        }
+
+        if (rg.orientation < 2 || rg.orientation > 8) return img;
+        BufferedImage stored = img;
+        return cpuGate.call(() -> Orientation.apply(stored, rg.orientation));
+    }
+
+    /**
+     * 只解码与 stored 相交的网格切片：ffmpeg 以 xstack 拼接、crop 裁到区域、scale 缩到输出尺寸，一次输出 rawvideo。
+     * 切片 item 与 ffmpeg 流的对应优先用 ffprobe 的流 id（即 item ID），否则按 iinf 中编码图像的顺序。
+     */
+    private BufferedImage decodeGridRegion(Path p, IsoBmff.Grid grid, Rectangle stored, int w, int h) throws IOException {
+        if (ffmpegPath == null || ffmpegPath.isBlank()) throw new IOException("ffmpegPath is blank, cannot decode " + p);
+        ProbeResult probe = probe(p);
+        // 老版本 ffmpeg 只把主图暴露为一个流，这时按顺序对应会错位
+        boolean byOrder = probe.videoStreams().size() >= grid.codedItems().size();
+        int tw = grid.tileWidth(), th = grid.tileHeight();
+        int c0 = stored.x / tw, c1 = (stored.x + stored.width - 1) / tw;
+        int r0 = stored.y / th, r1 = (stored.y + stored.height - 1) / th;
 
-        Path tmpHc = null;
-        if (heifConvertPath != null && !heifConvertPath.isBlank()) {
+        StringBuilder graph = new StringBuilder();
+        List<String> layout = new ArrayList<>();
+        ProbeResult.Stream first = null;
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                int item = grid.tileAt(r, c);
+                ProbeResult.Stream s = probe.videoForItem(item);
+                if (s == null && byOrder) s = probe.videoAt(grid.codedItems().indexOf(item));
+                if (s == null) throw new IOException("no ffmpeg stream for tile item " + item + " in " + p);
+                if (first == null) first = s;
+                graph.append("[0:v:").append(s.videoIndex()).append(']');
+                layout.add((c - c0) * tw + "_" + (r - r0) * th);
+            }
+        }
+        if (layout.size() > 1) {
+            graph.append("xstack=inputs=").append(layout.size()).append(":layout=").append(String.join("|", layout)).append(',');
+        }
+        graph.append("crop=").append(stored.width).append(':').append(stored.height).append(':')
+                .append(stored.x - c0 * tw).append(':').append(stored.y - r0 * th)
+                .append(",scale=").append(w).append(':').append(h).append(":flags=area");
+
+        boolean hdr = first.isHdrTransfer();
+        if (hdr) {
+            graph.append(first.colorSpace().contains("2020") ? ":in_color_matrix=bt2020" : "")
+                    .append(":in_range=auto:out_range=full");
+        }
+        graph.append("[out]");
+        log.info("[decodeRegion] {} tiles {}..{} x {}..{} -> {}x{} for {}", layout.size(), c0, c1, r0, r1, w, h, p.getFileName());
+
+        if (!hdr) {
+            return ffmpegRaw(p, List.of("-filter_complex", graph.toString(), "-map", "[out]"),
+                    w, h, RawFrameDecoder.Format.BGR24);
+        }
+        ToneMapper.Options options = toneMapOptions(first);
+        try (PixelBuffer frame = ffmpegRawPixels(p, List.of("-filter_complex", graph.toString(), "-map", "[out]"), w, h)) {
+            return cpuGate.call(() -> ToneMapper.map(frame, options));
+        }
+    }
+
+    /**
+     * readAny 在把结果直接交给条带 sink 时的返回值。
+     */
+    private static final BufferedImage STREAMED = new BufferedImage(1, 1, BufferedImage.TYPE_3BYTE_BGR);
+
+    /** 进程内色调映射每条带的行数 */
+    private static final int STRIP_ROWS = 256;
+
+    /** readAny 的默认尝试顺序；实际顺序由 {@link DecodeRouter} 按来源特征调整 */
+    static final List<String> STRATEGIES = List.of("imageio", "hdr", "heif-thumbnail", "heif-convert", "ffmpeg");
+
+    /** HDR 来源上只有 hdr 路径做色调映射 / 增益图合成，其余路径只出 SDR 底图，不能按统计把它挤到后面 */
+    private static final Set<String> HDR_PINNED = Set.of("hdr");
+
+    /**
+     * 一次 readAny 的输入；ffprobe 与 exiftool 结果按需各取一次（解码缓存关闭时也不重复启动子进程）。
+     */
+    private final class Attempt {
+        final SourceImage src;
+        final Path path;
+        final int maxEdge;
+        final StripSink sink;
+        final boolean heifOrAvif;
+        private ProbeResult probe;
+        private GainMapMetadata gainMap;
+
+        Attempt(SourceImage src, int maxEdge, StripSink sink, boolean heifOrAvif) {
+            this.src = src;
+            this.path = src.path();
+            this.maxEdge = maxEdge;
+            this.sink = sink;
+            this.heifOrAvif = heifOrAvif;
+        }
+
+        ProbeResult probe() throws IOException {
+            if (probe == null) {
+                probe = metrics.stage("probe", () -> HdrSdrConverter.this.probe(path));
+                int[] expected = probe.expectedDimensions();
+                ProbeResult.Stream best = probe.bestVideo();
+                log.info("[readAny] expect={}x{} map=0:v:{} (ffprobe)", expected[0], expected[1],
+                        best == null ? 0 : best.videoIndex());
+            }
+            return probe;
+        }
+
+        GainMapMetadata gainMap() {
+            if (gainMap == null) gainMap = readGainMapMetadata(path);
+            return gainMap;
+        }
+    }
+
+    /**
+     * sink 非空时，能按条带产出的路径（PQ/HLG 进程内色调映射）直接交付并返回 {@link #STREAMED}。
+     * <p>
+     * 各路径每次最多尝试一次，顺序由 {@link DecodeRouter} 决定；工具排队被拒不计为路径失败，全部失败时原样抛出。
+     */
+    private BufferedImage readAny(SourceImage src, int maxEdge, StripSink sink) throws IOException {
+        Path p = src.path();
+        boolean heifOrAvif = metrics.stage("sniff", src::isHeifOrAvif);
+        log.info("[readAny] enter file={} ext={} heifOrAvif?={} maxEdge={}", p.getFileName(), extLower(p), heifOrAvif, maxEdge);
+
+        Attempt a = new Attempt(src, maxEdge, sink, heifOrAvif);
+        DecodeRouter.Signature sig = signature(a);
+        ExternalToolExecutor.ToolBusyException busy = null;
+        for (String strategy : router.order(sig, STRATEGIES, isHdr(sig) ? HDR_PINNED : Set.of())) {
+            if (!applicable(strategy, a)) continue;
+            long t0 = System.nanoTime();
+            BufferedImage bi;
             try {
-                tmpHc = Files.createTempFile("readAny-hc-first-", ".png");
-                int ecHc = runCmd(java.util.List.of(
-                        heifConvertPath, p.toString(), tmpHc.toString()
-                ), heifCliTimeoutSec);
-                if (ecHc == 0 && Files.exists(tmpHc)) {
-                    BufferedImage bi2 = ImageIO.read(tmpHc.toFile());
-                    if (bi2 != null) {
-                        log.info("[readAny] heif-convert primary -> {}x{} for {} (preferred for HEIF/AVIF)",
-                                bi2.getWidth(), bi2.getHeight(), p.getFileName());
-                        return bi2;
-                    }
-                } else {
-                    log.warn("[readAny] heif-convert-first exit={} for {}", ecHc, p.getFileName());
-                }
+                bi = attempt(strategy, a);
+            } catch (ExternalToolExecutor.ToolBusyException e) {
+                log.warn("[readAny] {} busy for {}: {}", strategy, p.getFileName(), e.getMessage());
+                busy = e;
+                continue;
             } catch (Exception e) {
-                log.warn("[readAny] heif-convert read failed for {}: {}", p.getFileName(), e.toString());
-            } finally {
-                if (tmpHc != null) try { Files.deleteIfExists(tmpHc); } catch (Exception ignore) {}
+                log.warn("[readAny] {} failed for {}: {}", strategy, p.getFileName(), e.toString());
+                bi = null;
             }
+            router.record(sig, strategy, bi != null, System.nanoTime() - t0);
+            if (bi != null) return bi;
         }
+        if (busy != null) throw busy;
+        return null;
+    }
 
-        Path tmp = Files.createTempFile("readAny-ff-", ".png");
-        Path tmp2 = null;
-        try {
-            String ct2 = probeColorTransfer(p, mapIndex);
-            String filter = "scale=trunc(iw/2)*2:trunc(ih/2)*2";
-            if (ct2 != null && !ct2.isBlank()) {
-                String ct = ct2.toLowerCase();
-                if (ct.contains("smpte2084") || ct.contains("arib-std-b67")) {
-                    filter += ",zscale=transfer=pq:matrix=bt2020nc:primaries=bt2020,tonemap=linear:desat=0";
-                }
-            }
+    /**
+     * 来源特征：容器品牌（非 ISOBMFF 取扩展名）、EXIF 厂商/型号；HEIF/AVIF 另加 HDR 类型与流布局（这类文件总要探测）。
+     */
+    private DecodeRouter.Signature signature(Attempt a) throws IOException {
+        String container = a.heifOrAvif ? a.src.ftypBrands().trim() : extLower(a.path);
+        String make = orDash(a.src.exifMake());
+        String model = orDash(a.src.exifModel());
+        if (!a.heifOrAvif || ffmpegPath == null || ffmpegPath.isBlank()) {
+            return new DecodeRouter.Signature(container, make, model, "-", "-");
+        }
+        ProbeResult probe = a.probe();
+        ProbeResult.Stream best = probe.bestVideo();
+        String hdr = best != null && best.isHdrTransfer() ? best.colorTransfer()
+                : a.gainMap().present() ? "gainmap" : "sdr";
+        String layout = "v" + probe.videoStreams().size() + (probe.isTiled() ? "-g" + probe.tileCount() : "");
+        return new DecodeRouter.Signature(container, make, model, hdr, layout);
+    }
 
-            int ec = runCmd(java.util.List.of(
-                    ffmpegPath,
-                    "-y",
-                    "-i", p.toString(),
-                    "-map", "0:v:" + mapIndex,
-                    "-vf", filter,
-                    "-frames:v", "1",
-                    tmp.toString()
-            ), heifCliTimeoutSec);
+    private static boolean isHdr(DecodeRouter.Signature sig) {
+        return !"sdr".equals(sig.hdr()) && !"-".equals(sig.hdr());
+    }
 
-            if (ec == 0 && Files.exists(tmp)) {
-                BufferedImage bi2 = ImageIO.read(tmp.toFile());
-                if (bi2 != null) {
-                    int w2 = bi2.getWidth();
-                    int h2 = bi2.getHeight();
-                    if (expected[0] == 0 || expected[1] == 0) {
-                        log.info("[readAny] ffmpeg OK: using decoded frame {}", p.getFileName());
-                        return bi2;
-                    }
-                    double ratio = Math.max(
-                            (double) w2 / Math.max(1, expected[0]),
-                            (double) h2 / Math.max(1, expected[1])
-                    );
-                    if (ratio > 0.7 && ratio < 1.4) {
-                        log.info("[readAny] ffmpeg map 0:v:{} -> decoded {}x{} (expected {}x{})", mapIndex, w2, h2, expected[0], expected[1]);
-                        return bi2;
-                    }
-                    log.warn("[readAny] mismatch (ratio={}) ffmpeg {}x{} vs expected {}x{} for {} — fallback to heif-convert",
-                            ratio, w2, h2, expected[0], expected[1], p.getFileName());
+    private static String orDash(String s) {
+        return s == null || s.isBlank() ? "-" : s.trim();
+    }
+
+    /**
+     * 路径在当前配置与请求下是否可用；不可用的路径直接跳过，不计入统计。
+     */
+    private boolean applicable(String strategy, Attempt a) {
+        boolean ffmpeg = ffmpegPath != null && !ffmpegPath.isBlank();
+        return switch (strategy) {
+            case "imageio" -> true;
+            case "hdr", "ffmpeg" -> ffmpeg;
+            // heif-thumbnailer 自己解码并缩放，不依赖 ffmpeg
+            case "heif-thumbnail" -> a.maxEdge > 0 && a.heifOrAvif
+                    && heifThumbnailerPath != null && !heifThumbnailerPath.isBlank();
+            case "heif-convert" -> heifConvertPath != null && !heifConvertPath.isBlank() && (ffmpeg || !a.heifOrAvif);
+            default -> false;
+        };
+    }
+
+    private BufferedImage attempt(String strategy, Attempt a) throws IOException {
+        Path p = a.path;
+        int maxEdge = a.maxEdge;
+        switch (strategy) {
+            case "imageio" -> {
+                BufferedImage bi = metrics.stage("imageio", () -> cpuGate.call(() -> a.src.decodeImageIO(maxEdge)));
+                if (bi != null) metrics.succeeded("imageio");
+                return bi;
+            }
+            case "hdr" -> {
+                ProbeResult probe = a.probe();
+                ProbeResult.Stream best = probe.bestVideo();
+                BufferedImage biHdr = tryDecodeHdrToSdr(a, probe, best == null ? 0 : best.videoIndex());
+                if (biHdr != null) {
+                    log.info("[readAny] HDR tonemapped decode -> {}x{} for {}", biHdr.getWidth(), biHdr.getHeight(), p.getFileName());
                 }
-            } else {
-                log.warn("[readAny] ffmpeg exit={} or no tmp for {}", ec, p);
+                return biHdr;
             }
-
-            if (heifConvertPath != null && !heifConvertPath.isBlank()) {
-                tmp2 = Files.createTempFile("readAny-hc-", ".png");
-                int ec2 = runCmd(java.util.List.of(
-                        heifConvertPath, p.toString(), tmp2.toString()
-                ), heifCliTimeoutSec);
-                if (ec2 == 0 && Files.exists(tmp2)) {
-                    BufferedImage bi3 = ImageIO.read(tmp2.toFile());
-                    if (bi3 != null) {
-                        log.info("[readAny] heif-convert OK -> {}x{} for {}", bi3.getWidth(), bi3.getHeight(), p.getFileName());
-                        return bi3;
-                    }
-                } else {
-                    log.warn("[readAny] heif-convert exit={} for {}", ec2, p);
+            case "heif-thumbnail" -> {
+                BufferedImage thumb = metrics.stage("heif-thumbnail", () -> heifThumbnail(p, maxEdge));
+                if (thumb != null) metrics.succeeded("heif-thumbnail");
+                return thumb;
+            }
+            case "heif-convert" -> {
+                BufferedImage bi2 = metrics.stage("heif-convert", () -> heifConvert(p, maxEdge));
+                if (bi2 != null) {
+                    log.info("[readAny] heif-convert -> {}x{} for {}", bi2.getWidth(), bi2.getHeight(), p.getFileName());
+                    metrics.succeeded("heif-convert");
                 }
-            } else {
-                log.warn("[readAny] heif-convert path blank; cannot fallback for {}", p);
+                return bi2;
             }
+            case "ffmpeg" -> {
+                return ffmpegFallback(a);
+            }
+            default -> throw new IllegalArgumentException("Unknown decode strategy: " + strategy);
+        }
+    }
+
+    /**
+     * 流尺寸与探测到的整图尺寸（ispe / 网格）是否相符；网格图像的最大流可能只是一个切片，不符时记一次 mismatch。
+     */
+    private boolean coversImage(Path p, ProbeResult probe, ProbeResult.Stream s, String path) {
+        int[] expected = probe.expectedDimensions();
+        double ratio = expected[0] == 0 || expected[1] == 0 ? 1.0 : Math.max(
+                (double) s.width() / expected[0],
+                (double) s.height() / expected[1]
+        );
+        if (ratio > 0.7 && ratio < 1.4) return true;
+        metrics.dimensionMismatch();
+        log.warn("[readAny] mismatch (ratio={}) {} {}x{} vs expected {}x{} for {}",
+                ratio, path, s.width(), s.height(), expected[0], expected[1], p.getFileName());
+        return false;
+    }
+
+    /**
+     * 普通 ffmpeg 解码（HDR 流已在 hdr 路径走过进程内色调映射）；最大流与期望尺寸不符时不解码，返回 null。
+     */
+    private BufferedImage ffmpegFallback(Attempt a) throws IOException {
+        Path p = a.path;
+        ProbeResult probe = a.probe();
+        int[] expected = probe.expectedDimensions();
+        ProbeResult.Stream best = probe.bestVideo();
+        if (best == null) {
+            log.warn("[readAny] no probed video stream, skip ffmpeg for {}", p.getFileName());
             return null;
-        } finally {
-            try { Files.deleteIfExists(tmp); } catch (Exception ignore) {}
-            if (tmp2 != null) try { Files.deleteIfExists(tmp2); } catch (Exception ignore) {}
         }
+        // 先用探测尺寸判断最大流是否就是整图，不符则不必解码
+        if (!coversImage(p, probe, best, "ffmpeg")) return null;
+        // 预览时优先挑内嵌缩略图等较小的流，再由 scale 缩到目标尺寸
+        ProbeResult.Stream s = probe.smallestCovering(best, a.maxEdge);
+        int[] size = fit(s.width(), s.height(), a.maxEdge);
+        int w2 = Math.max(2, size[0] / 2 * 2), h2 = Math.max(2, size[1] / 2 * 2);
+        String filter = w2 == s.width() && h2 == s.height()
+                ? "scale=trunc(iw/2)*2:trunc(ih/2)*2"
+                : "scale=" + w2 + ":" + h2 + ":flags=area";
+        BufferedImage bi2 = metrics.stage("ffmpeg-fallback", () -> ffmpegRawFrame(p, s.videoIndex(), filter, w2, h2));
+        log.info("[readAny] ffmpeg map 0:v:{} -> decoded {}x{} (expected {}x{})",
+                s.videoIndex(), w2, h2, expected[0], expected[1]);
+        metrics.succeeded("ffmpeg");
+        return bi2;
     }
 
-    private int[] probeDimensionsByFfprobe(Path src) {
+    /**
+     * 阶段体自行吞掉异常、以 null 表示失败时使用。
+     */
+    private BufferedImage stageOrNull(String stage, java.util.function.Supplier<BufferedImage> body) {
         try {
-            if (ffprobePath == null || ffprobePath.isBlank()) return new int[]{0,0};
-            var res = runCmdCapture(java.util.List.of(
-                    ffprobePath,
-                    "-v", "error",
-                    "-select_streams", "v:0",
-                    "-show_entries", "stream=width,height",
-                    "-of", "csv=s=x:p=0",
-                    src.toString()
-            ), heifCliTimeoutSec);
-            int exit = res.getKey();
-            String out = res.getValue() == null ? "" : res.getValue().trim();
-            if (exit == 0 && !out.isBlank()) {
-                String line = out.split("\r?\n")[0].trim();
-                String[] parts = line.split("[x,]");
-                if (parts.length >= 2) {
-                    try {
-                        int w = Integer.parseInt(parts[0].trim());
-                        int h = Integer.parseInt(parts[1].trim());
-                        if (w > 0 && h > 0) {
-                            return new int[]{w, h};
-                        }
-                    } catch (NumberFormatException ignore) { }
-                }
-            } else if (exit != 0) {
-                log.warn("[ffprobe] exit={} for {} output=\n{}", exit, src, out);
-            }
-        } catch (Exception e) {
-            log.warn("[ffprobe] failed for {}: {}", src, e.toString());
+            return metrics.stage(stage, body::get);
+        } catch (IOException e) {
+            return null;
         }
-        return new int[]{0,0};
     }
 
-    private int[] pickBestVideoStream(Path src) {
-        if (ffprobePath == null || ffprobePath.isBlank()) return new int[]{0,0,0};
+    /**
+     * heif-convert 把主图解成临时 PNG 再读回；退出码非 0 或没有产出时返回 null。
+     */
+    private BufferedImage heifConvert(Path p, int maxEdge) throws IOException {
+        Path tmp = Files.createTempFile("readAny-hc-", ".png");
         try {
-            var res = runCmdCapture(java.util.List.of(
-                    ffprobePath,
-                    "-v", "error",
-                    "-select_streams", "v",
-                    "-show_entries", "stream=index,width,height",
-                    "-of", "csv=s=x:p=0",
-                    src.toString()
+            int ec = runCmd(ExternalToolExecutor.Tool.HEIF_CONVERT, java.util.List.of(
+                    heifConvertPath, p.toString(), tmp.toString()
             ), heifCliTimeoutSec);
-            int exit = res.getKey();
-            String out = res.getValue() == null ? "" : res.getValue().trim();
-            if (exit != 0 || out.isBlank()) {
-                log.warn("[ffprobe] pickBest exit={} out=\n{}", exit, out);
-                return new int[]{0,0,0};
-            }
-            int bestIdx = 0, bestW = 0, bestH = 0, bestArea = 0;
-            for (String line : out.split("\r?\n")) {
-                String[] parts = line.trim().split("[x,]");
-                if (parts.length < 3) continue;
-                try {
-                    int idx = Integer.parseInt(parts[0].trim());
-                    int w   = Integer.parseInt(parts[1].trim());
-                    int h   = Integer.parseInt(parts[2].trim());
-                    int area = w * h;
-                    if (w > 0 && h > 0 && area > bestArea) { bestArea = area; bestIdx = idx; bestW = w; bestH = h; }
-                } catch (NumberFormatException ignore) { }
+            if (ec != 0 || !Files.exists(tmp)) {
+                log.warn("[readAny] heif-convert exit={} for {}", ec, p.getFileName());
+                return null;
             }
-            if (bestArea > 0) {
-                log.info("[ffprobe] best stream index={} size={}x{}", bestIdx, bestW, bestH);
-                return new int[]{bestIdx, bestW, bestH};
+            return readImage(tmp, maxEdge);
+        } finally {
+            try { Files.deleteIfExists(tmp); } catch (Exception ignore) {}
+        }
+    }
+
+    /**
+     * 单次 ffprobe 拿到全部流信息（按内容哈希缓存在内存与持久存储中）；失败时返回 {@link ProbeResult#EMPTY}。
+     */
+    private ProbeResult probe(Path src) {
+        if (ffprobePath == null || ffprobePath.isBlank()) return ProbeResult.EMPTY;
+        try {
+            String hash = cache.contentKey(src);
+            ProbeResult pr = cache.meta("probe", hash, () -> {
+                String json = storedJson(hash, "ffprobe", () -> ffprobeJson(src));
+                return json == null ? null : ProbeResult.parse(json);
+            });
+            if (pr == null) return ProbeResult.EMPTY;
+            ProbeResult.Stream best = pr.bestVideo();
+            if (best != null) {
+                log.info("[ffprobe] best stream index={} v:{} size={}x{} transfer={} tiles={}",
+                        best.index(), best.videoIndex(), best.width(), best.height(), best.colorTransfer(), pr.tileCount());
             }
+            return pr;
         } catch (Exception e) {
-            log.warn("[ffprobe] pickBest failed for {}: {}", src, e.toString());
+            log.warn("[ffprobe] failed for {}: {}", src, e.toString());
+            return ProbeResult.EMPTY;
         }
-        return new int[]{0,0,0};
     }
 
-    private String probeColorTransfer(Path src, int streamIndex) {
-        if (ffprobePath == null || ffprobePath.isBlank()) return "";
+    /** ffprobe &lt; 7.1 不认识 -show_stream_groups，首次被拒后不再传 */
+    private volatile boolean streamGroupsUnsupported;
+
+    /**
+     * 失败或输出被截断时返回 null，不进入缓存。
+     */
+    private String ffprobeJson(Path src) throws IOException {
+        java.util.List<String> cmd = new java.util.ArrayList<>(java.util.List.of(ffprobePath, "-v", "error", "-show_streams"));
+        if (!streamGroupsUnsupported) cmd.add("-show_stream_groups");
+        cmd.addAll(java.util.List.of("-of", "json", src.toString()));
+        var res = toolExecutor.run(ExternalToolExecutor.Tool.FFPROBE, cmd, heifCliTimeoutSec);
+        String out = res.output() == null ? "" : res.output().trim();
+        if (res.exitCode() != 0 && !streamGroupsUnsupported && out.contains("show_stream_groups")) {
+            log.info("[ffprobe] -show_stream_groups not supported, probing streams only");
+            streamGroupsUnsupported = true;
+            return ffprobeJson(src);
+        }
+        if (res.exitCode() != 0 || out.isBlank()) {
+            log.warn("[ffprobe] exit={} for {} output=\n{}", res.exitCode(), src, out);
+            return null;
+        }
+        if (res.truncated()) {
+            log.warn("[ffprobe] output for {} exceeded heif.cli.max-output-bytes, ignoring", src.getFileName());
+            return null;
+        }
+        return out.substring(Math.max(0, out.indexOf('{')));
+    }
+
+    /**
+     * 工具输出的 JSON 按内容哈希落到 {@link DerivedStore}，重启后不必重新探测；hash 为 null 时直接调用 tool。
+     */
+    private String storedJson(String hash, String kind, DecodeCache.Loader<String> tool) throws IOException {
+        String key = hash == null ? null : hash + "." + kind + ".json";
+        byte[] stored = key == null ? null : store.getBytes(key);
+        if (stored != null) return new String(stored, java.nio.charset.StandardCharsets.UTF_8);
+        String json = tool.load();
+        if (json != null && key != null) store.putBytes(key, json.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        return json;
+    }
+
+    /**
+     * 一次 exiftool 同时判断是否带增益图并取出 headroom / hdrgm 参数。
+     */
+    private GainMapMetadata readGainMapMetadata(Path src) {
+        if (exiftoolPath == null || exiftoolPath.isBlank()) return GainMapMetadata.NONE;
         try {
-            var res = runCmdCapture(java.util.List.of(
-                    ffprobePath,
-                    "-v", "error",
-                    "-select_streams", "v:" + streamIndex,
-                    "-show_entries", "stream=color_transfer",
-                    "-of", "default=nw=1:nk=1",
-                    src.toString()
-            ), heifCliTimeoutSec);
-            if (res.getKey() == 0) {
-                String out = res.getValue() == null ? "" : res.getValue().trim();
-                if (out.contains("=")) out = out.substring(out.indexOf('=') + 1).trim();
-                return out;
-            }
+            String hash = cache.contentKey(src);
+            GainMapMetadata meta = cache.meta("gainmap", hash, () -> {
+                String json = storedJson(hash, "exiftool", () -> exiftoolGainMapJson(src));
+                return json == null ? null : GainMapMetadata.parseExiftoolJson(json);
+            });
+            return meta == null ? GainMapMetadata.NONE : meta;
         } catch (Exception e) {
-            log.debug("[ffprobe] probeColorTransfer failed for {}: {}", src.getFileName(), e.toString());
+            log.debug("[exiftool] readGainMapMetadata failed for {}: {}", src.getFileName(), e.toString());
+            return GainMapMetadata.NONE;
         }
-        return "";
     }
 
-    private boolean hasHdrGainMap(Path src) {
+    /**
+     * 工具调用失败（超时、排队被拒）时返回 null，不进入缓存；没有增益图时返回 "[]"。
+     */
+    private String exiftoolGainMapJson(Path src) {
         try {
-            if (exiftoolPath == null || exiftoolPath.isBlank()) return false;
-            var res = runCmdCapture(java.util.List.of(
+            var res = toolExecutor.run(ExternalToolExecutor.Tool.EXIFTOOL, java.util.List.of(
                     exiftoolPath,
-                    "-s",
-                    "-G1",
+                    "-j",
+                    "-n",
                     "-HDRGainMap*",
+                    "-HDRHeadroom",
+                    "-HDRGain",
+                    "-XMP-hdrgm:all",
                     src.toString()
             ), 20);
-            String out = res.getValue() == null ? "" : res.getValue().trim();
-            return res.getKey() == 0 && !out.isBlank();
+            if (res.truncated()) {
+                log.warn("[exiftool] output for {} exceeded heif.cli.max-output-bytes, ignoring", src.getFileName());
+                return null;
+            }
+            return res.exitCode() != 0 ? "[]" : res.output();
         } catch (Exception e) {
-            log.debug("[exiftool] hasHdrGainMap failed for {}: {}", src.getFileName(), e.toString());
-            return false;
+            log.debug("[exiftool] readGainMapMetadata failed for {}: {}", src.getFileName(), e.toString());
+            return null;
         }
     }
 
-    private Path tryDecodeHeifAvifToSdrPng(Path src, int mapIndex) {
-        boolean hdr = false;
-        String ct = probeColorTransfer(src, mapIndex);
-        if ("smpte2084".equalsIgnoreCase(ct) || "arib-std-b67".equalsIgnoreCase(ct)) hdr = true;
-        if (!hdr && hasHdrGainMap(src)) hdr = true;
-        if (!hdr) return null;
+    private BufferedImage tryDecodeHdrToSdr(Attempt a, ProbeResult probe, int mapIndex) {
+        Path src = a.path;
+        int maxEdge = a.maxEdge;
+        StripSink sink = a.sink;
+        ProbeResult.Stream stream = probe.videoAt(mapIndex);
+        boolean pqOrHlg = stream != null && stream.isHdrTransfer();
+        GainMapMetadata gainMap = pqOrHlg ? GainMapMetadata.NONE : a.gainMap();
+        if (!pqOrHlg && !gainMap.present()) return null;
 
-        try {
-            Path tmp = Files.createTempFile("readAny-tonemap-", ".png");
+        if (gainMap.present() && gainmapNative) {
+            BufferedImage merged = stageOrNull("gainmap-merge", () -> mergeGainMapNative(src, gainMap, maxEdge));
+            if (merged != null) {
+                metrics.succeeded("gainmap-native");
+                return merged;
+            }
+        }
 
+        if (gainMap.present() && gainmapMergePy != null && !gainmapMergePy.isBlank()) {
+            Path tmp = null;
             try {
-                if (gainmapMergePy != null && !gainmapMergePy.isBlank()) {
-                    int ecPy = runCmd(java.util.List.of(
-                            "python3",
-                            gainmapMergePy,
-                            src.toString(),
-                            tmp.toString()
-                    ), heifCliTimeoutSec);
-                    if (ecPy == 0 && Files.exists(tmp)) {
-                        log.info("[readAny] gainmapMergePy OK -> {}", tmp.getFileName());
-                        return tmp;
-                    } else {
-                        log.warn("[readAny] gainmapMergePy exit={} or no tmp for {}", ecPy, src.getFileName());
+                tmp = Files.createTempFile("readAny-tonemap-", ".png");
+                // 有 worker 池时复用已加载脚本的常驻解释器，否则每张图启动一次 python
+                int ecPy = pythonWorkers.enabled()
+                        ? pythonWorkers.run(java.util.List.of(src.toString(), tmp.toString()), heifCliTimeoutSec)
+                        : runCmd(ExternalToolExecutor.Tool.PYTHON, java.util.List.of(
+                                pythonWorkers.python(),
+                                gainmapMergePy,
+                                src.toString(),
+                                tmp.toString()
+                        ), heifCliTimeoutSec);
+                if (ecPy == 0 && Files.exists(tmp)) {
+                    BufferedImage bi = readImage(tmp, maxEdge);
+                    if (bi != null) {
+                        log.info("[readAny] gainmapMergePy OK -> {}x{}", bi.getWidth(), bi.getHeight());
+                        metrics.succeeded("gainmap-python");
+                        return bi;
                     }
+                } else {
+                    log.warn("[readAny] gainmapMergePy exit={} or no tmp for {}", ecPy, src.getFileName());
                 }
             } catch (Exception e) {
                 log.warn("[readAny] gainmapMergePy failed for {}: {}", src.getFileName(), e.toString());
+            } finally {
+                if (tmp != null) try { Files.deleteIfExists(tmp); } catch (Exception ignore) {}
             }
+        }
 
-            int ec = runCmd(java.util.List.of(
-                    ffmpegPath,
-                    "-y",
-                    "-i", src.toString(),
-                    "-map", "0:v:" + mapIndex,
-                    "-vf", "zscale=transfer=pq:matrix=bt2020nc:primaries=bt2020,tonemap=linear:desat=0",
-                    "-frames:v", "1",
-                    tmp.toString()
-            ), heifCliTimeoutSec);
-            if (ec == 0 && Files.exists(tmp)) {
-                log.info("[readAny] ffmpeg tonemap OK -> {}", tmp.getFileName());
-                return tmp;
-            } else {
-                log.warn("[readAny] ffmpeg tonemap exit={} or no tmp for {}", ec, src.getFileName());
+        if (stream == null || !stream.isHdrTransfer()) return null;
+        // 网格 PQ/HLG 图像的最大流只是一个切片，不能当整图色调映射后返回
+        if (!coversImage(src, probe, stream, "hdr")) return null;
+        try {
+            BufferedImage bi = metrics.stage("ffmpeg-tonemap", () -> decodeAndToneMap(src, stream, maxEdge, sink));
+            metrics.succeeded("hdr-tonemap");
+            if (bi == STREAMED) {
+                log.info("[readAny] in-process tonemap streamed ({}) for {}", stream.colorTransfer(), src.getFileName());
+                return bi;
             }
+            log.info("[readAny] in-process tonemap OK ({}) -> {}x{}", stream.colorTransfer(), bi.getWidth(), bi.getHeight());
+            return bi;
         } catch (Exception e) {
-            log.warn("[readAny] tryDecodeHeifAvifToSdrPng failed for {}: {}", src.getFileName(), e.toString());
+            log.warn("[readAny] in-process tonemap failed for {}: {}", src.getFileName(), e.toString());
         }
         return null;
     }
 
-    private boolean safeIsHeifOrAvif(Path p) {
-        try { return isHeifOrAvif(p); } catch (Exception e) { return false; }
+    /**
+     * heif-convert --with-aux 一次导出主图与增益图辅助图像，合成在进程内完成，免去 python 启动与 numpy 导入。
+     * 预览时两张图都按 maxEdge 子采样读入，合成只在小图上进行。
+     */
+    private BufferedImage mergeGainMapNative(Path src, GainMapMetadata meta, int maxEdge) {
+        if (heifConvertPath == null || heifConvertPath.isBlank()) return null;
+        Path dir = null;
+        try {
+            dir = Files.createTempDirectory("readAny-gainmap-");
+            Path primary = dir.resolve("primary.png");
+            int ec = runCmd(ExternalToolExecutor.Tool.HEIF_CONVERT, java.util.List.of(
+                    heifConvertPath, "--with-aux", src.toString(), primary.toString()
+            ), heifCliTimeoutSec);
+            if (ec != 0 || !Files.exists(primary)) {
+                log.warn("[readAny] heif-convert --with-aux exit={} for {}", ec, src.getFileName());
+                return null;
+            }
+            Path aux;
+            try (var files = Files.list(dir)) {
+                aux = files.filter(f -> f.getFileName().toString().toLowerCase().contains("gainmap"))
+                        .findFirst().orElse(null);
+            }
+            BufferedImage base = readImage(primary, maxEdge);
+            if (base == null) return null;
+            if (aux == null) {
+                log.info("[readAny] no gain map aux image in {}, using primary only", src.getFileName());
+                return base;
+            }
+            BufferedImage gm = readImage(aux, maxEdge);
+            if (gm == null) return base;
+            BufferedImage out = cpuGate.call(() -> GainMapMerger.merge(base, gm, meta, tonemapOperator));
+            log.info("[readAny] native gain map merge headroom={} base={}x{} gainmap={}x{}",
+                    String.format("%.2f", meta.headroom()), base.getWidth(), base.getHeight(), gm.getWidth(), gm.getHeight());
+            return out;
+        } catch (Exception e) {
+            log.warn("[readAny] native gain map merge failed for {}: {}", src.getFileName(), e.toString());
+            return null;
+        } finally {
+            if (dir != null) {
+                try (var files = Files.list(dir)) {
+                    files.forEach(f -> { try { Files.deleteIfExists(f); } catch (Exception ignore) {} });
+                } catch (Exception ignore) {}
+                try { Files.deleteIfExists(dir); } catch (Exception ignore) {}
+            }
+        }
+    }
+
+    /**
+     * ffmpeg 只负责把 PQ/HLG 码流解成 rgb48le（保持原传递函数与原色），色调映射在进程内完成。
+     * 预览时缩放放在同一个 scale 滤镜里，色调映射只处理缩小后的帧。
+     */
+    private BufferedImage decodeAndToneMap(Path src, ProbeResult.Stream stream, int maxEdge, StripSink sink) throws IOException {
+        int[] size = fit(stream.width(), stream.height(), maxEdge);
+        String scale = size[0] == stream.width() && size[1] == stream.height()
+                ? "scale=" : "scale=" + size[0] + ":" + size[1] + ":flags=area:";
+        String filter = stream.colorSpace().contains("2020")
+                ? scale + "in_color_matrix=bt2020:in_range=auto:out_range=full"
+                : scale + "in_range=auto:out_range=full";
+        ToneMapper.Options options = toneMapOptions(stream);
+        // 16-bit 帧放在堆外（池化复用），色调映射之前不降精度、不占 GC 堆
+        try (PixelBuffer frame = ffmpegRawPixels(src, List.of("-map", "0:v:" + stream.videoIndex(), "-vf", filter),
+                size[0], size[1])) {
+            if (sink == null) return cpuGate.call(() -> ToneMapper.map(frame, options));
+            // 8-bit 输出按条带交给 sink，不再整张驻留；许可只覆盖每条的色调映射，sink 的编码与写出不占许可
+            sink.begin(frame.width(), frame.height());
+            for (int y = 0; y < frame.height(); y += STRIP_ROWS) {
+                int y0 = y, rows = Math.min(STRIP_ROWS, frame.height() - y);
+                sink.strip(y0, cpuGate.call(() -> ToneMapper.map(frame, y0, rows, options)));
+            }
+            return STREAMED;
+        }
     }
 
-    private boolean isHeifOrAvif(Path file) throws IOException {
-        byte[] buf = new byte[64];
-        try (InputStream in = Files.newInputStream(file)) {
-            int n = in.read(buf);
-            if (n < 12) return false;
+    /**
+     * ffmpeg 输出一帧 rgb48le，直接读进从 {@link PixelBufferPool} 取的堆外缓冲；失败时缓冲已归还。
+     */
+    private PixelBuffer ffmpegRawPixels(Path src, List<String> select, int w, int h) throws IOException {
+        List<String> cmd = rawFrameCommand(src, select, RawFrameDecoder.Format.RGB48LE);
+        PixelBuffer frame = pixels.acquire(w, h, 3, PixelBuffer.SampleType.U16, PixelBuffer.Layout.INTERLEAVED);
+        try {
+            var res = toolExecutor.stream(ExternalToolExecutor.Tool.FFMPEG, cmd,
+                    heifCliTimeoutSec, in -> RawFrameDecoder.decode(in, frame));
+            if (res.exitCode() != 0) {
+                throw new IOException("ffmpeg rawvideo exit=" + res.exitCode() + ": " + res.stderr().trim());
+            }
+            return frame;
+        } catch (IOException | RuntimeException e) {
+            frame.close();
+            throw e;
         }
-        String head = new String(buf, StandardCharsets.ISO_8859_1);
-        int idx = head.indexOf("ftyp");
-        if (idx < 0) return false;
-        String brands = head.substring(idx + 4, Math.min(head.length(), idx + 16)).toLowerCase();
-        return brands.contains("heic") || brands.contains("heix") || brands.contains("heim")
-                || brands.contains("hevc") || brands.contains("avif");
     }
 
-    private static String extLower(Path p) {
-        String name = String.valueOf(p.getFileName());
-        int dot = name.lastIndexOf('.');
-        return dot > 0 ? name.substring(dot + 1).toLowerCase() : "";
+    private ToneMapper.Options toneMapOptions(ProbeResult.Stream stream) {
+        ToneMapper.Transfer transfer = "arib-std-b67".equalsIgnoreCase(stream.colorTransfer())
+                ? ToneMapper.Transfer.HLG : ToneMapper.Transfer.PQ;
+        boolean bt2020 = stream.colorPrimaries().isBlank() || stream.colorPrimaries().contains("2020");
+        return new ToneMapper.Options(transfer, tonemapOperator, tonemapPeakNits, tonemapWhiteNits, bt2020);
     }
 
-    private static BufferedImage rotate(BufferedImage src, int deg) {
-        if (src == null) throw new IllegalArgumentException("rotate: src == null");
-        deg = ((deg % 360) + 360) % 360;
-        if (deg == 0) return src;
-        final int w = src.getWidth(), h = src.getHeight();
-        final int outW = (deg == 90 || deg == 270) ? h : w;
-        final int outH = (deg == 90 || deg == 270) ? w : h;
-        BufferedImage dst = new BufferedImage(outW, outH, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g = dst.createGraphics();
-        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-        AffineTransform at = new AffineTransform();
-        at.translate(outW / 2.0, outH / 2.0);
-        at.rotate(Math.toRadians(deg));
-        at.translate(-w / 2.0, -h / 2.0);
-        g.drawImage(src, at, null);
-        g.dispose();
-        return dst;
-    }
-
-    private int runCmd(java.util.List<String> cmd, long timeoutSec) throws IOException {
-        ProcessBuilder pb = new ProcessBuilder(cmd);
-        pb.redirectErrorStream(true);
-        Process p = pb.start();
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        try (InputStream is = p.getInputStream()) {
-            is.transferTo(bos);
+    /**
+     * ffmpeg 输出单帧 rawvideo 到 stdout，直接读入栅格；w/h 为滤镜后的输出尺寸。
+     */
+    private BufferedImage ffmpegRawFrame(Path src, int mapIndex, String filter, int w, int h) throws IOException {
+        return ffmpegRawFrame(src, mapIndex, filter, w, h, RawFrameDecoder.Format.BGR24);
+    }
+
+    private BufferedImage ffmpegRawFrame(Path src, int mapIndex, String filter, int w, int h,
+                                         RawFrameDecoder.Format fmt) throws IOException {
+        return ffmpegRaw(src, List.of("-map", "0:v:" + mapIndex, "-vf", filter), w, h, fmt);
+    }
+
+    /**
+     * select 为选流与滤镜参数（-map/-vf 或 -filter_complex/-map）。
+     */
+    private BufferedImage ffmpegRaw(Path src, List<String> select, int w, int h,
+                                    RawFrameDecoder.Format fmt) throws IOException {
+        List<String> cmd = rawFrameCommand(src, select, fmt);
+        var res = toolExecutor.stream(ExternalToolExecutor.Tool.FFMPEG, cmd,
+                heifCliTimeoutSec, in -> RawFrameDecoder.decode(in, w, h, fmt));
+        if (res.exitCode() != 0) {
+            throw new IOException("ffmpeg rawvideo exit=" + res.exitCode() + ": " + res.stderr().trim());
         }
+        return res.value();
+    }
+
+    /**
+     * 单帧 rawvideo 到 stdout 的命令。w/h 来自探测的流尺寸，必须关掉自动旋转：
+     * ffmpeg 7.1 起把 HEIF irot/imir 导出为 display matrix 并默认旋转输出，宽高互换而字节数不变，
+     * 读入时不会报错，只会得到错乱的画面。方向统一由 {@link Orientation} 按 EXIF 纠正。
+     */
+    private List<String> rawFrameCommand(Path src, List<String> select, RawFrameDecoder.Format fmt) {
+        List<String> cmd = new ArrayList<>(List.of(ffmpegPath, "-v", "error", "-noautorotate", "-i", src.toString()));
+        cmd.addAll(select);
+        cmd.addAll(List.of("-frames:v", "1", "-f", "rawvideo", "-pix_fmt", fmt.pixFmt(), "pipe:1"));
+        return cmd;
+    }
+
+    /**
+     * heif-thumbnailer：内嵌缩略图长边不小于 size 时直接用它，否则解码主图后缩放；输出长边不超过 size。
+     * 与 heif-convert 同属 libheif 解码，共用 HEIF_CONVERT 的并发配额。
+     */
+    private BufferedImage heifThumbnail(Path src, int maxEdge) {
+        if (heifThumbnailerPath == null || heifThumbnailerPath.isBlank()) return null;
+        Path tmp = null;
         try {
-            if (!p.waitFor(timeoutSec, TimeUnit.SECONDS)) {
-                p.destroyForcibly();
-                throw new IOException("Command timeout: " + String.join(" ", cmd));
+            tmp = Files.createTempFile("readAny-thumb-", ".png");
+            int ec = runCmd(ExternalToolExecutor.Tool.HEIF_CONVERT, java.util.List.of(
+                    heifThumbnailerPath, "-s", String.valueOf(maxEdge), src.toString(), tmp.toString()
+            ), heifCliTimeoutSec);
+            if (ec != 0 || !Files.exists(tmp)) {
+                log.debug("[readAny] heif-thumbnailer exit={} for {}", ec, src.getFileName());
+                return null;
             }
-        } catch (InterruptedException ie) {
-            Thread.currentThread().interrupt();
-            throw new IOException("Command interrupted: " + String.join(" ", cmd));
+            metrics.tempFileRead(Files.size(tmp));
+            BufferedImage bi = ImageIO.read(tmp.toFile());
+            if (bi != null) {
+                log.info("[readAny] heif-thumbnailer -> {}x{} for {}", bi.getWidth(), bi.getHeight(), src.getFileName());
+            }
+            return bi;
+        } catch (Exception e) {
+            log.debug("[readAny] heif-thumbnailer failed for {}: {}", src.getFileName(), e.toString());
+            return null;
+        } finally {
+            if (tmp != null) try { Files.deleteIfExists(tmp); } catch (Exception ignore) {}
         }
-        String out = bos.toString(StandardCharsets.UTF_8);
-        int exit = p.exitValue();
-        if (exit != 0 && !out.isBlank()) {
-            log.info("[heif-cli] non-zero exit output:\n{}", out);
-        } else if (!out.isBlank()) {
-            log.debug("[heif-cli] {}", out.trim());
+    }
+
+    /**
+     * 读取工具输出的中间文件；maxEdge &gt; 0 时按子采样读入。
+     */
+    private BufferedImage readImage(Path file, int maxEdge) throws IOException {
+        try (SourceImage img = SourceImage.open(file)) {
+            metrics.tempFileRead(img.size());
+            return cpuGate.call(() -> img.decodeImageIO(maxEdge));
         }
-        return exit;
     }
 
-    private java.util.AbstractMap.SimpleEntry<Integer, String> runCmdCapture(java.util.List<String> cmd, long timeoutSec) throws IOException {
-        ProcessBuilder pb = new ProcessBuilder(cmd);
-        pb.redirectErrorStream(true);
-        Process p = pb.start();
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        try (InputStream is = p.getInputStream()) {
-            is.transferTo(bos);
+    /**
+     * 等比缩放到长边不超过 maxEdge，不放大；maxEdge &lt;= 0 时原样返回。
+     */
+    static int[] fit(int w, int h, int maxEdge) {
+        int edge = Math.max(w, h);
+        if (maxEdge <= 0 || edge <= maxEdge) return new int[]{w, h};
+        double s = (double) maxEdge / edge;
+        return new int[]{Math.max(1, (int) Math.round(w * s)), Math.max(1, (int) Math.round(h * s))};
+    }
+
+    /**
+     * 解码阶段的缩小只能到整数步长，这里补最后一步：每次最多缩一半（双线性），避免大倍率一次缩放丢细节。
+     */
+    static BufferedImage fitWithin(BufferedImage img, int maxEdge) {
+        int[] target = fit(img.getWidth(), img.getHeight(), maxEdge);
+        return resize(img, target[0], target[1]);
+    }
+
+    static BufferedImage resize(BufferedImage img, int tw, int th) {
+        int[] target = {tw, th};
+        int type = switch (img.getType()) {
+            // 自定义布局（如 16-bit）与索引色没法按原类型新建，统一落到 int 布局
+            case BufferedImage.TYPE_CUSTOM, BufferedImage.TYPE_BYTE_INDEXED, BufferedImage.TYPE_BYTE_BINARY ->
+                    img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+            default -> img.getType();
+        };
+        BufferedImage cur = img;
+        while (cur.getWidth() != target[0] || cur.getHeight() != target[1]) {
+            int w = Math.max(target[0], cur.getWidth() / 2);
+            int h = Math.max(target[1], cur.getHeight() / 2);
+            BufferedImage next = new BufferedImage(w, h, type);
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(cur, 0, 0, w, h, null);
+            g.dispose();
+            cur = next;
         }
-        try {
-            if (!p.waitFor(timeoutSec, TimeUnit.SECONDS)) {
-                p.destroyForcibly();
-                throw new IOException("Command timeout: " + String.join(" ", cmd));
-            }
-        } catch (InterruptedException ie) {
-            Thread.currentThread().interrupt();
-            throw new IOException("Command interrupted: " + String.join(" ", cmd));
-        }
-        String out = bos.toString(StandardCharsets.UTF_8);
-        int exit = p.exitValue();
-        if (exit != 0 && !out.isBlank()) {
-            log.info("[heif-cli] non-zero exit output:\n{}", out);
-        } else if (!out.isBlank()) {
-            log.debug("[heif-cli] {}", out.trim());
-        }
-        return new java.util.AbstractMap.SimpleEntry<>(exit, out);
+        return cur;
+    }
+
+    private static String extLower(Path p) {
+        String name = String.valueOf(p.getFileName());
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(dot + 1).toLowerCase() : "";
+    }
+
+    private int runCmd(ExternalToolExecutor.Tool tool, java.util.List<String> cmd, long timeoutSec) throws IOException {
+        return toolExecutor.run(tool, cmd, timeoutSec).exitCode();
     }
 }
@@ -0,0 +1,290 @@
+package me.jling.imagedemo.image.core.sdr;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+
+/**
+ * EXIF Orientation（1–8）的无损变换：直接在底层 int[]/byte[]/short[] 栅格上做翻转与转置，不插值、保留 alpha 与原图类型。
+ * <p>
+ * 2/3/4（尺寸不变）原地完成并返回原对象；5–8 写入新图像，按 64×64 块遍历以保持缓存局部性，大图按行带并行。
+ */
+public final class Orientation {
+
+    private static final int TILE = 64;
+    private static final long PARALLEL_PIXELS = 1L << 20;
+
+    private Orientation() {}
+
+    /**
+     * 按 EXIF Orientation 把图像转正。注意 2/3/4 会原地修改 src。
+     */
+    public static BufferedImage apply(BufferedImage src, int orientation) {
+        if (src == null) throw new IllegalArgumentException("orientation: src == null");
+        if (orientation < 2 || orientation > 8) return src;
+
+        Layout in = Layout.of(src.getRaster());
+        if (in == null) {
+            // 索引色、位打包等少见布局：先转成标准 int 布局
+            BufferedImage std = new BufferedImage(src.getWidth(), src.getHeight(),
+                    src.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = std.createGraphics();
+            g.drawImage(src, 0, 0, null);
+            g.dispose();
+            src = std;
+            in = Layout.of(src.getRaster());
+        }
+
+        final int w = src.getWidth(), h = src.getHeight();
+        if (orientation <= 4) {
+            inPlace(in, w, h, orientation);
+            return src;
+        }
+
+        WritableRaster dstRaster = src.getRaster().createCompatibleWritableRaster(h, w);
+        BufferedImage dst = new BufferedImage(src.getColorModel(), dstRaster, src.isAlphaPremultiplied(), null);
+        Layout out = Layout.of(dstRaster);
+        transpose(in, out, w, h, orientation);
+        return dst;
+    }
+
+    /**
+     * 堆外缓冲的方向纠正：结果写入从 pool 取的新缓冲并关闭 src；orientation 不在 2–8 时原样返回 src。
+     * 按目标行带并行，逐样本搬运，位深与排列保持不变。
+     */
+    public static PixelBuffer apply(PixelBuffer src, int orientation, PixelBufferPool pool) {
+        if (orientation < 2 || orientation > 8) return src;
+        final int w = src.width(), h = src.height();
+        final boolean transpose = orientation >= 5;
+        final int dw = transpose ? h : w, dh = transpose ? w : h;
+        // 与 transpose() 相同的反向映射：目标 (dx, dy) → 源 (sx, sy)
+        final boolean flipSx = orientation == 2 || orientation == 3 || orientation == 7 || orientation == 8;
+        final boolean flipSy = orientation == 3 || orientation == 4 || orientation == 6 || orientation == 7;
+        PixelBuffer dst = pool.acquire(dw, dh, src.channels(), src.type(), src.layout());
+        try {
+            ByteBuffer in = src.data(), out = dst.data();
+            final int channels = src.channels();
+            final boolean wide = src.type().bytes() == 2;
+            RowBands.Body body = (y0, y1) -> {
+                for (int dy = y0; dy < y1; dy++) {
+                    for (int dx = 0; dx < dw; dx++) {
+                        int ax = transpose ? dy : dx, ay = transpose ? dx : dy;
+                        int sx = flipSx ? w - 1 - ax : ax;
+                        int sy = flipSy ? h - 1 - ay : ay;
+                        for (int c = 0; c < channels; c++) {
+                            int si = src.index(sx, sy, c), di = dst.index(dx, dy, c);
+                            if (wide) out.putShort(di << 1, in.getShort(si << 1));
+                            else out.put(di, in.get(si));
+                        }
+                    }
+                }
+            };
+            if ((long) w * h >= PARALLEL_PIXELS) {
+                RowBands.run(dh, body);
+            } else {
+                body.rows(0, dh);
+            }
+        } catch (RuntimeException e) {
+            dst.close();
+            throw e;
+        }
+        src.close();
+        return dst;
+    }
+
+    /**
+     * 把转正后（显示坐标）的矩形换算到存储坐标：对存储区域裁剪后再 apply，与先 apply 再裁剪结果一致。
+     */
+    public static Rectangle toStored(Rectangle r, int orientation, int storedWidth, int storedHeight) {
+        boolean transpose = orientation >= 5 && orientation <= 8;
+        int x = transpose ? r.y : r.x, w = transpose ? r.height : r.width;
+        int y = transpose ? r.x : r.y, h = transpose ? r.width : r.height;
+        boolean flipX = orientation == 2 || orientation == 3 || orientation == 7 || orientation == 8;
+        boolean flipY = orientation == 3 || orientation == 4 || orientation == 6 || orientation == 7;
+        return new Rectangle(flipX ? storedWidth - x - w : x, flipY ? storedHeight - y - h : y, w, h);
+    }
+
+    /**
+     * 5–8：dst 尺寸为 h×w。源坐标 (sx, sy) 是目标坐标 (dx, dy) 的仿射函数，
+     * 沿 dx 前进时源下标按固定步长变化。
+     */
+    private static void transpose(Layout in, Layout out, int w, int h, int o) {
+        final int dw = h, dh = w;
+        // sx = dy 或 w-1-dy；sy = dx 或 h-1-dx
+        final boolean flipSx = o == 7 || o == 8;
+        final boolean flipSy = o == 6 || o == 7;
+        final int stepX = flipSy ? -in.scanline : in.scanline;   // dx+1 → sy±1
+
+        final int tileRows = (dh + TILE - 1) / TILE;
+        RowBands.Body body = (t0, t1) -> {
+            for (int ty = t0; ty < t1; ty++) {
+                int y0 = ty * TILE, y1 = Math.min(dh, y0 + TILE);
+                for (int x0 = 0; x0 < dw; x0 += TILE) {
+                    int x1 = Math.min(dw, x0 + TILE);
+                    for (int dy = y0; dy < y1; dy++) {
+                        int sx = flipSx ? w - 1 - dy : dy;
+                        int sy = flipSy ? h - 1 - x0 : x0;
+                        int si = in.index(sx, sy);
+                        int di = out.index(x0, dy);
+                        copyRun(in, out, si, stepX, di, x1 - x0);
+                    }
+                }
+            }
+        };
+        if ((long) w * h >= PARALLEL_PIXELS) {
+            RowBands.run(tileRows, 1, body);
+        } else {
+            body.rows(0, tileRows);
+        }
+    }
+
+    private static void copyRun(Layout in, Layout out, int si, int sStep, int di, int n) {
+        final int eps = in.elems;
+        final int dStep = out.pixel;
+        final boolean dense = eps == dStep;
+        switch (in.kind) {
+            case DataBuffer.TYPE_INT -> {
+                int[] s = (int[]) in.data, d = (int[]) out.data;
+                if (eps == 1) {
+                    for (int i = 0; i < n; i++, si += sStep, di += dStep) d[di] = s[si];
+                } else {
+                    for (int i = 0; i < n; i++, si += sStep, di += dStep) System.arraycopy(s, si, d, di, eps);
+                }
+            }
+            case DataBuffer.TYPE_BYTE -> {
+                byte[] s = (byte[]) in.data, d = (byte[]) out.data;
+                if (dense && eps == 1) {
+                    for (int i = 0; i < n; i++, si += sStep) d[di++] = s[si];
+                } else if (dense && eps == 3) {
+                    for (int i = 0; i < n; i++, si += sStep) {
+                        d[di++] = s[si]; d[di++] = s[si + 1]; d[di++] = s[si + 2];
+                    }
+                } else if (dense && eps == 4) {
+                    for (int i = 0; i < n; i++, si += sStep) {
+                        d[di++] = s[si]; d[di++] = s[si + 1]; d[di++] = s[si + 2]; d[di++] = s[si + 3];
+                    }
+                } else {
+                    for (int i = 0; i < n; i++, si += sStep, di += dStep) System.arraycopy(s, si, d, di, eps);
+                }
+            }
+            default -> {
+                short[] s = (short[]) in.data, d = (short[]) out.data;
+                for (int i = 0; i < n; i++, si += sStep, di += dStep) System.arraycopy(s, si, d, di, eps);
+            }
+        }
+    }
+
+    /**
+     * 2：水平镜像；3：旋转 180°；4：垂直镜像。均为逐像素对换，不分配额外缓冲。
+     */
+    private static void inPlace(Layout l, int w, int h, int o) {
+        switch (o) {
+            case 2 -> {
+                RowBands.Body body = (y0, y1) -> {
+                    for (int y = y0; y < y1; y++) swapRun(l, l.index(0, y), l.index(w - 1, y), w / 2, -l.pixel);
+                };
+                run(w, h, body);
+            }
+            case 3 -> {
+                // 行 y 与行 h-1-y 逆序互换；奇数高度的中间行自身逆序
+                int half = h / 2;
+                RowBands.Body body = (y0, y1) -> {
+                    for (int y = y0; y < y1; y++) swapRun(l, l.index(0, y), l.index(w - 1, h - 1 - y), w, -l.pixel);
+                };
+                run(w, half, body);
+                if ((h & 1) == 1) swapRun(l, l.index(0, half), l.index(w - 1, half), w / 2, -l.pixel);
+            }
+            case 4 -> {
+                RowBands.Body body = (y0, y1) -> {
+                    for (int y = y0; y < y1; y++) swapRun(l, l.index(0, y), l.index(0, h - 1 - y), w, l.pixel);
+                };
+                run(w, h / 2, body);
+            }
+            default -> throw new IllegalArgumentException("orientation " + o);
+        }
+    }
+
+    private static void run(int w, int rows, RowBands.Body body) {
+        if ((long) w * rows * 2 >= PARALLEL_PIXELS) {
+            RowBands.run(rows, body);
+        } else {
+            body.rows(0, rows);
+        }
+    }
+
+    /**
+     * 从 a 起正向、从 b 起按 bStep 前进，交换 n 个像素。
+     */
+    private static void swapRun(Layout l, int a, int b, int n, int bStep) {
+        final int eps = l.elems, aStep = l.pixel;
+        switch (l.kind) {
+            case DataBuffer.TYPE_INT -> {
+                int[] d = (int[]) l.data;
+                for (int i = 0; i < n; i++, a += aStep, b += bStep) {
+                    for (int k = 0; k < eps; k++) { int t = d[a + k]; d[a + k] = d[b + k]; d[b + k] = t; }
+                }
+            }
+            case DataBuffer.TYPE_BYTE -> {
+                byte[] d = (byte[]) l.data;
+                for (int i = 0; i < n; i++, a += aStep, b += bStep) {
+                    for (int k = 0; k < eps; k++) { byte t = d[a + k]; d[a + k] = d[b + k]; d[b + k] = t; }
+                }
+            }
+            default -> {
+                short[] d = (short[]) l.data;
+                for (int i = 0; i < n; i++, a += aStep, b += bStep) {
+                    for (int k = 0; k < eps; k++) { short t = d[a + k]; d[a + k] = d[b + k]; d[b + k] = t; }
+                }
+            }
+        }
+    }
+
+    /**
+     * 栅格的底层数组视图：像素 (x, y) 的首个元素位于 base + y·scanline + x·pixel，每像素搬运 elems 个元素。
+     */
+    private record Layout(int kind, Object data, int base, int pixel, int scanline, int elems) {
+
+        int index(int x, int y) {
+            return base + y * scanline + x * pixel;
+        }
+
+        static Layout of(WritableRaster r) {
+            SampleModel sm = r.getSampleModel();
+            DataBuffer db = r.getDataBuffer();
+            if (db.getNumBanks() != 1) return null;
+            int tx = -r.getSampleModelTranslateX(), ty = -r.getSampleModelTranslateY();
+            Object data;
+            int kind = db.getDataType();
+            switch (kind) {
+                case DataBuffer.TYPE_INT -> data = ((DataBufferInt) db).getData();
+                case DataBuffer.TYPE_BYTE -> data = ((DataBufferByte) db).getData();
+                case DataBuffer.TYPE_USHORT -> data = ((DataBufferUShort) db).getData();
+                default -> { return null; }
+            }
+            if (sm instanceof SinglePixelPackedSampleModel sp) {
+                return new Layout(kind, data, db.getOffset() + ty * sp.getScanlineStride() + tx,
+                        1, sp.getScanlineStride(), 1);
+            }
+            if (sm instanceof ComponentSampleModel cs) {
+                int min = Integer.MAX_VALUE, max = 0;
+                for (int off : cs.getBandOffsets()) { min = Math.min(min, off); max = Math.max(max, off); }
+                for (int bank : cs.getBankIndices()) if (bank != 0) return null;
+                // 像素内样本须落在 [0, pixelStride) 内，才能按整段元素搬运
+                if (max - min >= cs.getPixelStride()) return null;
+                return new Layout(kind, data,
+                        db.getOffset() + ty * cs.getScanlineStride() + tx * cs.getPixelStride() + min,
+                        cs.getPixelStride(), cs.getScanlineStride(), max - min + 1);
+            }
+            return null;
+        }
+    }
+}
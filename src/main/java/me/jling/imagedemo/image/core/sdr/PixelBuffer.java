@@ -0,0 +1,319 @@
+package me.jling.imagedemo.image.core.sdr;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 堆外像素缓冲：{@link ByteBuffer#allocateDirect} 分配，按本机字节序存放 8-bit / 16-bit / half-float 样本，
+ * 交错（RGBRGB…）或平面（RR…GG…BB…）排列。大帧不进 GC 堆，HDR 样本保持 16-bit 直到最终色调映射。
+ * <p>
+ * 用完必须 {@link #close()}：来自 {@link PixelBufferPool} 的缓冲归还池中复用，其余交给 GC 回收。
+ * close 之后再访问抛 IllegalStateException；由 {@link #toBufferedImage()} 得到的视图同样随之失效。
+ */
+public final class PixelBuffer implements AutoCloseable {
+
+    public enum SampleType {
+        U8(1, DataBuffer.TYPE_BYTE),
+        U16(2, DataBuffer.TYPE_USHORT),
+        /** IEEE 754 binary16，值域按 [0,1] 归一化 */
+        F16(2, DataBuffer.TYPE_FLOAT);
+
+        final int bytes;
+        final int dataType;
+
+        SampleType(int bytes, int dataType) {
+            this.bytes = bytes;
+            this.dataType = dataType;
+        }
+
+        public int bytes() {
+            return bytes;
+        }
+    }
+
+    public enum Layout { INTERLEAVED, PLANAR }
+
+    private final int width;
+    private final int height;
+    private final int channels;
+    private final SampleType type;
+    private final Layout layout;
+    private final ByteBuffer data;
+    private final PixelBufferPool pool;
+    private volatile boolean closed;
+
+    PixelBuffer(int width, int height, int channels, SampleType type, Layout layout, ByteBuffer data, PixelBufferPool pool) {
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.type = type;
+        this.layout = layout;
+        this.data = data;
+        this.pool = pool;
+    }
+
+    /**
+     * 不经池分配一块缓冲（内容为 0）。
+     */
+    public static PixelBuffer allocate(int width, int height, int channels, SampleType type, Layout layout) {
+        long bytes = byteSize(width, height, channels, type);
+        return new PixelBuffer(width, height, channels, type, layout,
+                ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder()), null);
+    }
+
+    static long byteSize(int width, int height, int channels, SampleType type) {
+        if (width <= 0 || height <= 0 || channels < 1 || channels > 4) {
+            throw new IllegalArgumentException("bad pixel buffer shape " + width + "x" + height + "x" + channels);
+        }
+        long bytes = (long) width * height * channels * type.bytes;
+        if (bytes > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("pixel buffer too large: " + bytes + " bytes");
+        return bytes;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public int channels() {
+        return channels;
+    }
+
+    public SampleType type() {
+        return type;
+    }
+
+    public Layout layout() {
+        return layout;
+    }
+
+    public int byteSize() {
+        return width * height * channels * type.bytes;
+    }
+
+    /**
+     * 底层缓冲的独立视图（position 0、本机字节序），写入直接作用于像素。
+     */
+    public ByteBuffer data() {
+        check();
+        return data.duplicate().position(0).limit(byteSize()).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * 样本下标（以样本计，不是字节）。
+     */
+    public int index(int x, int y, int c) {
+        return layout == Layout.INTERLEAVED
+                ? (y * width + x) * channels + c
+                : c * width * height + y * width + x;
+    }
+
+    /**
+     * 原始样本：U8 为 0–255，U16 为 0–65535，F16 为半精度位模式。
+     */
+    public int sample(int index) {
+        check();
+        return switch (type) {
+            case U8 -> data.get(index) & 0xff;
+            case U16, F16 -> data.getShort(index << 1) & 0xffff;
+        };
+    }
+
+    public void setSample(int index, int value) {
+        check();
+        switch (type) {
+            case U8 -> data.put(index, (byte) value);
+            case U16, F16 -> data.putShort(index << 1, (short) value);
+        }
+    }
+
+    /**
+     * 归一化到 [0,1] 的样本值（F16 原样返回）。
+     */
+    public float getFloat(int index) {
+        check();
+        return switch (type) {
+            case U8 -> (data.get(index) & 0xff) / 255f;
+            case U16 -> (data.getShort(index << 1) & 0xffff) / 65535f;
+            case F16 -> halfToFloat(data.getShort(index << 1));
+        };
+    }
+
+    public void setFloat(int index, float v) {
+        check();
+        switch (type) {
+            case U8 -> data.put(index, (byte) Math.round(clamp01(v) * 255f));
+            case U16 -> data.putShort(index << 1, (short) Math.round(clamp01(v) * 65535f));
+            case F16 -> data.putShort(index << 1, floatToHalf(v));
+        }
+    }
+
+    /**
+     * 16-bit 码值（0–65535），供色调映射按 16-bit 查表：U8 乘 257，F16 按 [0,1] 量化。
+     */
+    int code16(int index) {
+        check();
+        return switch (type) {
+            case U8 -> (data.get(index) & 0xff) * 257;
+            case U16 -> data.getShort(index << 1) & 0xffff;
+            case F16 -> Math.round(clamp01(halfToFloat(data.getShort(index << 1))) * 65535f);
+        };
+    }
+
+    /**
+     * 不复制像素的 BufferedImage 视图：交错布局用 PixelInterleavedSampleModel，平面布局每个通道一个 bank。
+     * 3 通道为 RGB、4 通道为 RGBA、1 通道为灰度；Java2D 对自定义 DataBuffer 走通用路径，适合兼容而非热点循环。
+     */
+    public BufferedImage toBufferedImage() {
+        check();
+        SampleModel sm = layout == Layout.INTERLEAVED
+                ? new PixelInterleavedSampleModel(type.dataType, width, height, channels, width * channels, bandOffsets())
+                : new BandedSampleModel(type.dataType, width, height, channels);
+        WritableRaster raster = Raster.createWritableRaster(sm, new View(), null);
+        boolean alpha = channels == 2 || channels == 4;
+        ColorSpace cs = ColorSpace.getInstance(channels <= 2 ? ColorSpace.CS_GRAY : ColorSpace.CS_sRGB);
+        int bits = type.bytes * 8;
+        int[] nBits = new int[channels];
+        java.util.Arrays.fill(nBits, type == SampleType.F16 ? 32 : bits);
+        ComponentColorModel cm = new ComponentColorModel(cs, nBits, alpha, false,
+                alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE, type.dataType);
+        return new BufferedImage(cm, raster, false, null);
+    }
+
+    private int[] bandOffsets() {
+        int[] o = new int[channels];
+        for (int i = 0; i < channels; i++) o[i] = i;
+        return o;
+    }
+
+    /**
+     * 按 bank / 元素下标把 Raster 的访问转到堆外缓冲；平面布局下 bank 即通道。
+     */
+    private final class View extends DataBuffer {
+        View() {
+            super(type.dataType, width * height * (layout == Layout.INTERLEAVED ? channels : 1),
+                    layout == Layout.INTERLEAVED ? 1 : channels);
+        }
+
+        private int at(int bank, int i) {
+            check();
+            return layout == Layout.INTERLEAVED ? i : bank * width * height + i;
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            int idx = at(bank, i);
+            return type == SampleType.F16 ? Math.round(getFloat(idx) * 65535f) : sample(idx);
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            int idx = at(bank, i);
+            if (type == SampleType.F16) setFloat(idx, val / 65535f);
+            else setSample(idx, val);
+        }
+
+        @Override
+        public float getElemFloat(int bank, int i) {
+            int idx = at(bank, i);
+            return type == SampleType.F16 ? getFloat(idx) : sample(idx);
+        }
+
+        @Override
+        public void setElemFloat(int bank, int i, float val) {
+            int idx = at(bank, i);
+            if (type == SampleType.F16) setFloat(idx, val);
+            else setSample(idx, Math.round(val));
+        }
+
+        @Override
+        public double getElemDouble(int bank, int i) {
+            return getElemFloat(bank, i);
+        }
+
+        @Override
+        public void setElemDouble(int bank, int i, double val) {
+            setElemFloat(bank, i, (float) val);
+        }
+    }
+
+    private void check() {
+        if (closed) throw new IllegalStateException("PixelBuffer already closed");
+    }
+
+    /**
+     * 底层缓冲（池内部使用，不做关闭检查）。
+     */
+    ByteBuffer raw() {
+        return data;
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        if (pool != null) pool.release(data);
+    }
+
+    private static float clamp01(float v) {
+        return v < 0f ? 0f : Math.min(1f, v);
+    }
+
+    /**
+     * binary16 → float（含非规格化数、Inf、NaN）。
+     */
+    static float halfToFloat(short h) {
+        int bits = h & 0xffff;
+        int sign = (bits & 0x8000) << 16;
+        int exp = (bits >>> 10) & 0x1f;
+        int mant = bits & 0x3ff;
+        if (exp == 0x1f) return Float.intBitsToFloat(sign | 0x7f800000 | mant << 13);
+        if (exp == 0) {
+            if (mant == 0) return Float.intBitsToFloat(sign);
+            // 非规格化：规格化后再按 float 编码
+            while ((mant & 0x400) == 0) {
+                mant <<= 1;
+                exp--;
+            }
+            exp++;
+            mant &= 0x3ff;
+        }
+        return Float.intBitsToFloat(sign | (exp + 112) << 23 | mant << 13);
+    }
+
+    /**
+     * float → binary16，就近舍入；超出范围饱和为 Inf。
+     */
+    static short floatToHalf(float f) {
+        int bits = Float.floatToRawIntBits(f);
+        int sign = (bits >>> 16) & 0x8000;
+        int exp = ((bits >>> 23) & 0xff) - 112;
+        int mant = bits & 0x7fffff;
+        if (((bits >>> 23) & 0xff) == 0xff) return (short) (sign | 0x7c00 | (mant != 0 ? 0x200 : 0));
+        if (exp >= 0x1f) return (short) (sign | 0x7c00);
+        if (exp <= 0) {
+            if (exp < -10) return (short) sign;
+            mant |= 0x800000;
+            int shift = 14 - exp;
+            int half = mant >> shift;
+            if ((mant >> (shift - 1) & 1) != 0) half++;
+            return (short) (sign | half);
+        }
+        int half = sign | exp << 10 | mant >> 13;
+        if ((mant & 0x1000) != 0) half++;
+        return (short) half;
+    }
+}
@@ -0,0 +1,125 @@
+package me.jling.imagedemo.image.core.sdr;
+
+import lombok.extern.slf4j.Slf4j;
+import me.jling.imagedemo.image.core.exec.MemoryBudget;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link PixelBuffer} 的跨请求复用池：归还的堆外缓冲按容量保留，下次取容量够用且不超过两倍的那块。
+ * <p>
+ * 直接内存无法主动释放，只能等 GC 回收包装对象；复用避免了同尺寸大帧反复 allocateDirect 与清零。
+ * 池内总字节数超过 image.pixel.pool-bytes 时不再收留，多出的缓冲交给 GC；单块就超过上限的大帧
+ * （如默认 256 MiB 下 48MP 的 rgb48，约 279 MiB）在池空时仍收留一块，因此池内最多超出上限一帧。
+ * <p>
+ * 闲置的缓冲计入 {@link MemoryBudget} 的直接内存预算：收留前不等待地预留，预留不到就交给 GC；
+ * 借出时归还预留（由解码请求自己的预留承担）；解码请求等不到直接内存时整池清空。
+ */
+@Slf4j
+@Component
+public class PixelBufferPool {
+
+    public record Stats(long hits, long misses, int pooled, long pooledBytes, long capacityBytes) {}
+
+    /** 闲置缓冲及其在直接内存预算里的预留 */
+    private record Entry(ByteBuffer buf, MemoryBudget.Reservation held) {
+        int capacity() {
+            return buf.capacity();
+        }
+    }
+
+    private final long capacityBytes;
+    private final MemoryBudget budget;
+    /** 按容量升序 */
+    private final List<Entry> free = new ArrayList<>();
+    private long pooledBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param capacityBytes 池内保留的总字节数上限；&lt;= 0 不复用
+     * @param budget        闲置缓冲计入其直接内存预算
+     */
+    public PixelBufferPool(@Value("${image.pixel.pool-bytes:268435456}") long capacityBytes, MemoryBudget budget) {
+        this.capacityBytes = Math.max(0, capacityBytes);
+        this.budget = budget;
+        if (this.capacityBytes > 0) budget.onDirectShortage(this::trim);
+    }
+
+    /**
+     * 不复用的实例（测试、基准）：每次新分配，close 后交给 GC。
+     */
+    public static PixelBufferPool disabled() {
+        return new PixelBufferPool(0, MemoryBudget.disabled());
+    }
+
+    /**
+     * 取一块缓冲；复用时内容为上次使用留下的数据，调用方应整块写满后再读。
+     */
+    public PixelBuffer acquire(int width, int height, int channels, PixelBuffer.SampleType type,
+                               PixelBuffer.Layout layout) {
+        int bytes = (int) PixelBuffer.byteSize(width, height, channels, type);
+        ByteBuffer buf = take(bytes);
+        if (buf == null) {
+            misses.increment();
+            buf = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        } else {
+            hits.increment();
+        }
+        buf.clear();
+        return new PixelBuffer(width, height, channels, type, layout, buf, this);
+    }
+
+    private synchronized ByteBuffer take(int bytes) {
+        for (int i = 0; i < free.size(); i++) {
+            Entry e = free.get(i);
+            if (e.capacity() < bytes) continue;
+            if (e.capacity() > 2L * bytes) return null;
+            return evict(i).buf();
+        }
+        return null;
+    }
+
+    private Entry evict(int i) {
+        Entry e = free.remove(i);
+        pooledBytes -= e.capacity();
+        e.held().close();
+        return e;
+    }
+
+    synchronized void release(ByteBuffer buf) {
+        if (capacityBytes <= 0) return;
+        int cap = buf.capacity();
+        // 放不下时先挤掉最小的几块，大帧更值得复用
+        while (pooledBytes + cap > capacityBytes && !free.isEmpty() && free.get(0).capacity() < cap) {
+            evict(0);
+        }
+        // 池空时无论大小都收下这一块，否则超过上限的帧永远得不到复用
+        if (pooledBytes + cap > capacityBytes && !free.isEmpty()) return;
+        MemoryBudget.Reservation held = budget.tryReserveDirect(cap);
+        if (held == null) return;
+        int i = 0;
+        while (i < free.size() && free.get(i).capacity() < cap) i++;
+        free.add(i, new Entry(buf, held));
+        pooledBytes += cap;
+    }
+
+    /**
+     * 丢弃所有闲置缓冲并归还其预留。
+     */
+    public synchronized void trim() {
+        if (free.isEmpty()) return;
+        log.debug("[pixel-pool] trim {} buffers ({} MiB) for a waiting decode", free.size(), pooledBytes >> 20);
+        while (!free.isEmpty()) evict(free.size() - 1);
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), free.size(), pooledBytes, capacityBytes);
+    }
+}
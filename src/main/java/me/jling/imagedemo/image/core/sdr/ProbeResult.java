@@ -0,0 +1,207 @@
+package me.jling.imagedemo.image.core.sdr;
+
+import tools.jackson.databind.JsonNode;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一次 ffprobe（-show_streams [-show_stream_groups] -of json）的解析结果，不可变，单次解码内复用。
+ */
+public record ProbeResult(
+        List<Stream> streams,
+        int gridWidth,
+        int gridHeight,
+        int tileWidth,
+        int tileHeight,
+        int tileCount
+) {
+
+    public static final ProbeResult EMPTY = new ProbeResult(List.of(), 0, 0, 0, 0, 0);
+
+    private static final JsonMapper JSON = JsonMapper.builder().build();
+
+    public record Stream(
+            int index,
+            int videoIndex,
+            String codecType,
+            String codecName,
+            int width,
+            int height,
+            String pixFmt,
+            String colorTransfer,
+            String colorPrimaries,
+            String colorSpace,
+            boolean defaultDisposition,
+            int itemId
+    ) {
+        public int area() {
+            return Math.max(0, width) * Math.max(0, height);
+        }
+
+        public boolean isVideo() {
+            return "video".equals(codecType);
+        }
+
+        public boolean isHdrTransfer() {
+            return "smpte2084".equalsIgnoreCase(colorTransfer) || "arib-std-b67".equalsIgnoreCase(colorTransfer);
+        }
+
+        public int bitDepth() {
+            String f = pixFmt == null ? "" : pixFmt;
+            if (f.contains("16")) return 16;
+            if (f.contains("12")) return 12;
+            if (f.contains("10")) return 10;
+            return 8;
+        }
+    }
+
+    public ProbeResult {
+        streams = List.copyOf(streams);
+    }
+
+    public boolean isEmpty() {
+        return streams.isEmpty();
+    }
+
+    public List<Stream> videoStreams() {
+        return streams.stream().filter(Stream::isVideo).toList();
+    }
+
+    /**
+     * 第一个视频流（等价于 ffmpeg 的 v:0），没有则返回 null。
+     */
+    public Stream firstVideo() {
+        for (Stream s : streams) {
+            if (s.isVideo()) return s;
+        }
+        return null;
+    }
+
+    /**
+     * 面积最大的视频流；网格切片与缩略图都比主图小，取最大者即主图。
+     */
+    public Stream bestVideo() {
+        Stream best = null;
+        for (Stream s : streams) {
+            if (!s.isVideo() || s.area() <= 0) continue;
+            if (best == null || s.area() > best.area()) best = s;
+        }
+        return best;
+    }
+
+    /**
+     * 预览用的视频流：宽高比与 ref 一致、长边不小于 minEdge 的最小流（内嵌缩略图或较小的图像），没有则返回 ref。
+     * 网格切片不参与挑选。
+     */
+    public Stream smallestCovering(Stream ref, int minEdge) {
+        if (ref == null || minEdge <= 0) return ref;
+        Stream pick = ref;
+        for (Stream s : streams) {
+            if (!s.isVideo() || s.area() <= 0 || s.area() >= pick.area()) continue;
+            if (isTiled() && s.width() == tileWidth && s.height() == tileHeight) continue;
+            if (Math.max(s.width(), s.height()) < minEdge) continue;
+            double aspect = (double) s.width() * ref.height() / ((double) s.height() * ref.width());
+            if (Math.abs(aspect - 1) > 0.01) continue;
+            pick = s;
+        }
+        return pick;
+    }
+
+    /**
+     * HEIF item ID 对应的视频流（ffprobe 的 id 字段即 item ID），没有则返回 null。
+     */
+    public Stream videoForItem(int itemId) {
+        for (Stream s : streams) {
+            if (s.isVideo() && s.itemId() == itemId) return s;
+        }
+        return null;
+    }
+
+    public Stream videoAt(int videoIndex) {
+        for (Stream s : streams) {
+            if (s.isVideo() && s.videoIndex() == videoIndex) return s;
+        }
+        return null;
+    }
+
+    /**
+     * 期望尺寸：有网格信息时取网格画布，否则取 v:0。
+     */
+    public int[] expectedDimensions() {
+        if (gridWidth > 0 && gridHeight > 0) return new int[]{gridWidth, gridHeight};
+        Stream s = firstVideo();
+        return s == null ? new int[]{0, 0} : new int[]{s.width(), s.height()};
+    }
+
+    public boolean isTiled() {
+        return tileCount > 1;
+    }
+
+    public static ProbeResult parse(String json) {
+        if (json == null || json.isBlank()) return EMPTY;
+        JsonNode root = JSON.readTree(json);
+
+        List<Stream> list = new ArrayList<>();
+        int videoIdx = 0;
+        for (JsonNode n : root.path("streams").values()) {
+            String type = n.path("codec_type").asString("");
+            boolean video = "video".equals(type);
+            list.add(new Stream(
+                    n.path("index").asInt(list.size()),
+                    video ? videoIdx++ : -1,
+                    type,
+                    n.path("codec_name").asString(""),
+                    n.path("width").asInt(0),
+                    n.path("height").asInt(0),
+                    n.path("pix_fmt").asString(""),
+                    n.path("color_transfer").asString(""),
+                    n.path("color_primaries").asString(""),
+                    n.path("color_space").asString(""),
+                    n.path("disposition").path("default").asInt(0) == 1,
+                    parseId(n.path("id").asString(""))
+            ));
+        }
+
+        // 新版 ffprobe 会给出 Tile Grid stream group，老版本只能靠同尺寸视频流数量推断
+        int gridW = 0, gridH = 0;
+        for (JsonNode g : root.path("stream_groups").values()) {
+            if (g.path("type").asString("").toLowerCase().contains("tile")) {
+                // ffprobe 7.1 把画布尺寸放在 components[0]（component_type = Tile Grid）里
+                JsonNode c = g.path("components").path(0);
+                gridW = g.path("width").asInt(c.path("width").asInt(0));
+                gridH = g.path("height").asInt(c.path("height").asInt(0));
+                break;
+            }
+        }
+
+        Map<Long, Integer> sizeCount = new HashMap<>();
+        for (Stream s : list) {
+            if (s.isVideo() && s.area() > 0) {
+                sizeCount.merge(((long) s.width() << 32) | s.height(), 1, Integer::sum);
+            }
+        }
+        int tileW = 0, tileH = 0, tiles = 0;
+        for (var e : sizeCount.entrySet()) {
+            if (e.getValue() > tiles) {
+                tiles = e.getValue();
+                tileW = (int) (e.getKey() >>> 32);
+                tileH = (int) (e.getKey() & 0xffffffffL);
+            }
+        }
+        if (tiles <= 1) { tileW = 0; tileH = 0; tiles = 0; }
+
+        return new ProbeResult(list, gridW, gridH, tileW, tileH, tiles);
+    }
+
+    private static int parseId(String id) {
+        try {
+            return id.startsWith("0x") ? Integer.parseInt(id.substring(2), 16) : Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
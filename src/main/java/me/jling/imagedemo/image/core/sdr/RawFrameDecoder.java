@@ -0,0 +1,158 @@
+package me.jling.imagedemo.image.core.sdr;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 从外部进程 stdout 直接读取 rawvideo 帧到栅格，省去临时 PNG 的编码/解码与落盘。
+ */
+public final class RawFrameDecoder {
+
+    private static final int CHUNK = 64 * 1024;
+
+    public enum Format {
+        /** 8-bit，字节序 B,G,R，与 TYPE_3BYTE_BGR 的内存布局一致 */
+        BGR24("bgr24", 3),
+        /** 16-bit 小端 R,G,B，保留 HDR 精度 */
+        RGB48LE("rgb48le", 6);
+
+        private final String pixFmt;
+        private final int bytesPerPixel;
+
+        Format(String pixFmt, int bytesPerPixel) {
+            this.pixFmt = pixFmt;
+            this.bytesPerPixel = bytesPerPixel;
+        }
+
+        public String pixFmt() {
+            return pixFmt;
+        }
+
+        public long frameBytes(int w, int h) {
+            return (long) w * h * bytesPerPixel;
+        }
+    }
+
+    private RawFrameDecoder() {}
+
+    /**
+     * 从 stdout 读取恰好一帧 w×h 的 rawvideo；字节数与预期不符时抛 IOException。
+     */
+    public static BufferedImage decode(InputStream stdout, int w, int h, Format fmt) throws IOException {
+        BufferedImage img = read(stdout, w, h, fmt);
+        if (stdout.read() != -1) {
+            throw new IOException("rawvideo frame larger than " + w + "x" + h + " " + fmt.pixFmt());
+        }
+        return img;
+    }
+
+    /**
+     * 按块读取一帧 rawvideo 到新分配的栅格。
+     */
+    public static BufferedImage read(InputStream in, int w, int h, Format fmt) throws IOException {
+        checkSize(w, h, fmt);
+        return switch (fmt) {
+            case BGR24 -> readBgr24(in, w, h);
+            case RGB48LE -> readRgb48le(in, w, h);
+        };
+    }
+
+    /**
+     * 从 stdout 读取恰好一帧 rgb48le 到堆外缓冲 dst（16-bit、3 通道、交错）；本机小端时整块拷贝，不逐样本转换。
+     */
+    public static PixelBuffer decode(InputStream stdout, PixelBuffer dst) throws IOException {
+        if (dst.type() != PixelBuffer.SampleType.U16 || dst.channels() != 3 || dst.layout() != PixelBuffer.Layout.INTERLEAVED) {
+            throw new IllegalArgumentException("rgb48le needs a 16-bit interleaved RGB buffer");
+        }
+        checkSize(dst.width(), dst.height(), Format.RGB48LE);
+        ByteBuffer out = dst.data();
+        boolean swap = out.order() != ByteOrder.LITTLE_ENDIAN;
+        byte[] chunk = new byte[CHUNK];
+        while (out.hasRemaining()) {
+            int n = stdout.read(chunk, 0, Math.min(chunk.length, out.remaining()));
+            if (n < 0) throw new IOException("rawvideo truncated: " + out.position() + "/" + out.limit() + " bytes");
+            if (swap) {
+                // 读到奇数字节时最后一个字节留到下一轮，保证成对交换
+                int even = n & ~1;
+                for (int i = 0; i < even; i += 2) {
+                    out.put(chunk[i + 1]).put(chunk[i]);
+                }
+                if (even < n) {
+                    int next = stdout.read();
+                    if (next < 0) throw new IOException("rawvideo truncated inside a sample");
+                    out.put((byte) next).put(chunk[even]);
+                }
+            } else {
+                out.put(chunk, 0, n);
+            }
+        }
+        if (stdout.read() != -1) {
+            throw new IOException("rawvideo frame larger than " + dst.width() + "x" + dst.height() + " rgb48le");
+        }
+        return dst;
+    }
+
+    private static BufferedImage readBgr24(InputStream in, int w, int h) throws IOException {
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] data = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+        int off = 0;
+        while (off < data.length) {
+            int n = in.read(data, off, Math.min(CHUNK, data.length - off));
+            if (n < 0) throw new IOException("rawvideo truncated: " + off + "/" + data.length + " bytes");
+            off += n;
+        }
+        return img;
+    }
+
+    private static BufferedImage readRgb48le(InputStream in, int w, int h) throws IOException {
+        short[] data = new short[w * h * 3];
+        byte[] chunk = new byte[CHUNK];
+        int pending = 0;
+        int pos = 0;
+        while (pos < data.length) {
+            int n = in.read(chunk, pending, chunk.length - pending);
+            if (n < 0) throw new IOException("rawvideo truncated: " + (pos * 2L) + "/" + (data.length * 2L) + " bytes");
+            int avail = pending + n;
+            int i = 0;
+            for (; i + 1 < avail && pos < data.length; i += 2) {
+                data[pos++] = (short) ((chunk[i] & 0xff) | (chunk[i + 1] & 0xff) << 8);
+            }
+            pending = avail - i;
+            if (pending > 0) System.arraycopy(chunk, i, chunk, 0, pending);
+        }
+        return wrapRgb48(data, w, h);
+    }
+
+    /**
+     * 把交错的 16-bit RGB 样本包装成 BufferedImage（不复制）。
+     */
+    static BufferedImage wrapRgb48(short[] data, int w, int h) {
+        DataBufferUShort db = new DataBufferUShort(data, data.length);
+        PixelInterleavedSampleModel sm = new PixelInterleavedSampleModel(
+                DataBuffer.TYPE_USHORT, w, h, 3, w * 3, new int[]{0, 1, 2});
+        WritableRaster raster = Raster.createWritableRaster(sm, db, null);
+        ComponentColorModel cm = new ComponentColorModel(
+                ColorSpace.getInstance(ColorSpace.CS_sRGB), new int[]{16, 16, 16},
+                false, false, Transparency.OPAQUE, DataBuffer.TYPE_USHORT);
+        return new BufferedImage(cm, raster, false, null);
+    }
+
+    private static void checkSize(int w, int h, Format fmt) throws IOException {
+        if (w <= 0 || h <= 0) throw new IOException("rawvideo size unknown: " + w + "x" + h);
+        if (fmt.frameBytes(w, h) > Integer.MAX_VALUE - 8) {
+            throw new IOException("rawvideo frame too large: " + w + "x" + h + " " + fmt.pixFmt());
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package me.jling.imagedemo.image.core.sdr;
+
+import me.jling.imagedemo.image.core.exec.CpuGate;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 按行带二分切块，在 {@link CpuGate#bandPool()} 上并行执行逐行处理（闸门内不超过 CPU 并发上限）。
+ */
+final class RowBands {
+
+    static final int DEFAULT_ROWS = 32;
+
+    @FunctionalInterface
+    interface Body {
+        /** 处理 [y0, y1) 行 */
+        void rows(int y0, int y1);
+    }
+
+    private RowBands() {}
+
+    static void run(int height, Body body) {
+        run(height, DEFAULT_ROWS, body);
+    }
+
+    static void run(int height, int rowsPerTask, Body body) {
+        if (height <= 0) return;
+        if (height <= rowsPerTask) {
+            body.rows(0, height);
+            return;
+        }
+        CpuGate.bandPool().invoke(new Band(body, Math.max(1, rowsPerTask), 0, height));
+    }
+
+    // 只在进程内 fork/join，不会被序列化
+    @SuppressWarnings("serial")
+    private static final class Band extends RecursiveAction {
+        private final Body body;
+        private final int rows, y0, y1;
+
+        Band(Body body, int rows, int y0, int y1) {
+            this.body = body;
+            this.rows = rows;
+            this.y0 = y0;
+            this.y1 = y1;
+        }
+
+        @Override
+        protected void compute() {
+            if (y1 - y0 > rows) {
+                int mid = (y0 + y1) >>> 1;
+                invokeAll(new Band(body, rows, y0, mid), new Band(body, rows, mid, y1));
+            } else {
+                body.rows(y0, y1);
+            }
+        }
+    }
+}
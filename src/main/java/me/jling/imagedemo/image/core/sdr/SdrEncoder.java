@@ -0,0 +1,539 @@
+package me.jling.imagedemo.image.core.sdr;
+
+import ar.com.hjg.pngj.FilterType;
+import ar.com.hjg.pngj.ImageInfo;
+import ar.com.hjg.pngj.ImageLineByte;
+import ar.com.hjg.pngj.PngWriter;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.awt.Graphics;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * SDR 输出编码：按条带接收 8-bit 行，边产出边写出，不拼出整张 8-bit 图像。
+ * <p>
+ * PNG 用 pngj 逐行写；JPEG 走 ImageIO，编码在独立线程上按行向条带队列拉取（队列最多积压两条带）。
+ * 渐进式 JPEG 与 Huffman 优化例外，见 {@link Options}。
+ */
+public final class SdrEncoder {
+
+    private SdrEncoder() {}
+
+    public enum Format {
+        PNG, JPEG;
+
+        /**
+         * 按扩展名判断：.png 为 PNG，.jpg/.jpeg 为 JPEG。
+         */
+        public static Format of(Path p) {
+            String name = String.valueOf(p.getFileName());
+            int dot = name.lastIndexOf('.');
+            return parse(dot < 0 ? name : name.substring(dot + 1));
+        }
+
+        /**
+         * png / jpg / jpeg（不区分大小写）。
+         */
+        public static Format parse(String name) {
+            return switch (name == null ? "" : name.toLowerCase(Locale.ROOT)) {
+                case "png" -> PNG;
+                case "jpg", "jpeg" -> JPEG;
+                default -> throw new IllegalArgumentException("Unsupported output format: " + name);
+            };
+        }
+
+        public String extension() {
+            return this == PNG ? "png" : "jpg";
+        }
+
+        public String mediaType() {
+            return this == PNG ? "image/png" : "image/jpeg";
+        }
+    }
+
+    /**
+     * @param jpegQuality         0–1
+     * @param jpegProgressive     渐进式 JPEG（体积略小，编码更慢）；需要整帧缓冲，见下
+     * @param jpegOptimizeHuffman 按实际像素生成 Huffman 表（体积小几个百分点）；需要整帧缓冲，见下
+     * @param pngCompressionLevel zlib 等级 0–9
+     *                            <p>
+     *                            渐进式与 Huffman 优化都要求 libjpeg 先把整幅图像的 DCT 系数留在内存里再编码，
+     *                            4:2:0 时约等于整张 8-bit RGB 图；开启任一项，条带写出就不再省内存。默认都关闭。
+     */
+    public record Options(Format format, float jpegQuality, boolean jpegProgressive, boolean jpegOptimizeHuffman,
+                          int pngCompressionLevel) {
+
+        public static Options of(Format format) {
+            return new Options(format, 0.9f, false, false, 6);
+        }
+
+        /**
+         * 编码是否需要整帧系数缓冲（见类注释）。
+         */
+        public boolean jpegFullFrame() {
+            return format == Format.JPEG && (jpegProgressive || jpegOptimizeHuffman);
+        }
+
+        /**
+         * 影响输出字节的参数，如 q900-p-h、z6；用于派生结果的存储键，参数不同的输出不会互相命中。
+         */
+        public String tag() {
+            if (format == Format.PNG) return "z" + pngCompressionLevel;
+            return "q" + Math.round(jpegQuality * 1000) + (jpegProgressive ? "-p" : "") + (jpegOptimizeHuffman ? "-h" : "");
+        }
+    }
+
+    /**
+     * 条带写出端：{@link #begin} 后按行序交付条带，最后 {@link #finish}；未 finish 就 close 视为放弃。
+     */
+    public abstract static class Writer implements StripSink, Closeable {
+        protected int width, height;
+        private int nextRow;
+        private boolean finished;
+
+        @Override
+        public final void begin(int width, int height) throws IOException {
+            if (this.width != 0) throw new IllegalStateException("begin called twice");
+            if (width <= 0 || height <= 0) throw new IllegalArgumentException("size " + width + "x" + height);
+            this.width = width;
+            this.height = height;
+            open();
+        }
+
+        @Override
+        public final void strip(int y, BufferedImage rows) throws IOException {
+            if (width == 0) throw new IllegalStateException("strip before begin");
+            if (y != nextRow || rows.getWidth() != width || y + rows.getHeight() > height) {
+                throw new IllegalArgumentException("strip y=" + y + " " + rows.getWidth() + "x" + rows.getHeight()
+                        + " does not continue row " + nextRow + " of " + width + "x" + height);
+            }
+            write(y, rows);
+            nextRow += rows.getHeight();
+        }
+
+        /**
+         * 写完文件尾并刷出；行数不足时报错。
+         */
+        public final void finish() throws IOException {
+            if (nextRow != height || width == 0) {
+                throw new IOException("incomplete image: " + nextRow + " of " + height + " rows");
+            }
+            finished = true;
+            end();
+        }
+
+        @Override
+        public final void close() throws IOException {
+            if (!finished) abort();
+        }
+
+        protected abstract void open() throws IOException;
+
+        protected abstract void write(int y, BufferedImage rows) throws IOException;
+
+        protected abstract void end() throws IOException;
+
+        protected abstract void abort();
+    }
+
+    public static Writer writer(OutputStream out, Options opt) {
+        return opt.format() == Format.PNG ? new Png(out, opt) : new Jpeg(out, opt);
+    }
+
+    public static Writer writer(WritableByteChannel ch, Options opt) {
+        return writer(Channels.newOutputStream(ch), opt);
+    }
+
+    /**
+     * 已在内存中的整图直接作为一条带写出。
+     */
+    public static void write(BufferedImage img, OutputStream out, Options opt) throws IOException {
+        try (Writer w = writer(out, opt)) {
+            w.begin(img.getWidth(), img.getHeight());
+            w.strip(0, img);
+            w.finish();
+        }
+    }
+
+    /**
+     * 堆外 RGB 缓冲按条带写出，堆上任一时刻只有一条带的 8-bit 拷贝；16-bit / half 样本视为已是 SDR 信号，直接量化到 8-bit。
+     */
+    public static void write(PixelBuffer px, OutputStream out, Options opt) throws IOException {
+        if (px.channels() < 3) throw new IllegalArgumentException("need RGB pixels, got " + px.channels() + " channels");
+        try (Writer w = writer(out, opt)) {
+            w.begin(px.width(), px.height());
+            for (int y = 0; y < px.height(); y += PIXEL_STRIP_ROWS) {
+                w.strip(y, bgrRows(px, y, Math.min(PIXEL_STRIP_ROWS, px.height() - y)));
+            }
+            w.finish();
+        }
+    }
+
+    private static final int PIXEL_STRIP_ROWS = 256;
+
+    private static BufferedImage bgrRows(PixelBuffer px, int y0, int rows) {
+        int w = px.width();
+        BufferedImage strip = new BufferedImage(w, rows, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] out = ((DataBufferByte) strip.getRaster().getDataBuffer()).getData();
+        RowBands.run(rows, (r0, r1) -> {
+            for (int r = r0; r < r1; r++) {
+                int di = r * w * 3;
+                for (int x = 0; x < w; x++, di += 3) {
+                    out[di] = to8(px, px.index(x, y0 + r, 2));
+                    out[di + 1] = to8(px, px.index(x, y0 + r, 1));
+                    out[di + 2] = to8(px, px.index(x, y0 + r, 0));
+                }
+            }
+        });
+        return strip;
+    }
+
+    private static byte to8(PixelBuffer px, int i) {
+        return px.type() == PixelBuffer.SampleType.U8 ? (byte) px.sample(i) : (byte) Math.round(px.getFloat(i) * 255f);
+    }
+
+    private static final class Png extends Writer {
+        private final OutputStream out;
+        private final Options opt;
+        private PngWriter png;
+        private ImageLineByte line;
+        private int[] argb;
+
+        Png(OutputStream out, Options opt) {
+            this.out = out;
+            this.opt = opt;
+        }
+
+        @Override
+        protected void open() {
+            ImageInfo info = new ImageInfo(width, height, 8, false);
+            png = new PngWriter(out, info);
+            png.setShouldCloseStream(false);
+            png.setCompLevel(Math.max(0, Math.min(9, opt.pngCompressionLevel())));
+            png.setFilterType(FilterType.FILTER_ADAPTIVE_FAST);
+            line = new ImageLineByte(info);
+        }
+
+        @Override
+        protected void write(int y, BufferedImage rows) {
+            byte[] dst = line.getScanline();
+            for (int r = 0; r < rows.getHeight(); r++) {
+                rgbRow(rows, r, dst);
+                png.writeRow(line);
+            }
+        }
+
+        /**
+         * 一行转成 RGB 字节；BGR/int 布局按采样模型的步长直接读底层数组（子图也适用），其余走 getRGB。
+         */
+        private void rgbRow(BufferedImage img, int y, byte[] dst) {
+            int w = img.getWidth();
+            Raster r = img.getRaster();
+            int tx = -r.getSampleModelTranslateX(), ty = -r.getSampleModelTranslateY();
+            if (img.getType() == BufferedImage.TYPE_3BYTE_BGR
+                    && r.getSampleModel() instanceof ComponentSampleModel sm
+                    && r.getDataBuffer() instanceof DataBufferByte db) {
+                byte[] src = db.getData();
+                int[] bo = sm.getBandOffsets();
+                int ps = sm.getPixelStride();
+                int si = db.getOffset() + (ty + y) * sm.getScanlineStride() + tx * ps;
+                for (int x = 0, di = 0; x < w; x++, si += ps, di += 3) {
+                    dst[di] = src[si + bo[0]];
+                    dst[di + 1] = src[si + bo[1]];
+                    dst[di + 2] = src[si + bo[2]];
+                }
+                return;
+            }
+            int[] row;
+            int si;
+            if ((img.getType() == BufferedImage.TYPE_INT_RGB || img.getType() == BufferedImage.TYPE_INT_ARGB)
+                    && r.getSampleModel() instanceof SinglePixelPackedSampleModel sm
+                    && r.getDataBuffer() instanceof DataBufferInt db) {
+                row = db.getData();
+                si = db.getOffset() + (ty + y) * sm.getScanlineStride() + tx;
+            } else {
+                if (argb == null) argb = new int[w];
+                row = img.getRGB(0, y, w, 1, argb, 0, w);
+                si = 0;
+            }
+            for (int x = 0, di = 0; x < w; x++, si++, di += 3) {
+                int p = row[si];
+                dst[di] = (byte) (p >> 16);
+                dst[di + 1] = (byte) (p >> 8);
+                dst[di + 2] = (byte) p;
+            }
+        }
+
+        @Override
+        protected void end() throws IOException {
+            png.end();
+            out.flush();
+        }
+
+        @Override
+        protected void abort() {
+            if (png != null) png.close();
+        }
+    }
+
+    /**
+     * ImageIO 的 JPEG 编码器要一个完整的 RenderedImage，并按行向其栅格 createChild 取像素。
+     * 这里给它一个单 tile 的图像，tile 是不持有像素的 {@link StripRaster}：按行号从队列里取对应条带。
+     */
+    private static final class Jpeg extends Writer {
+        private static final Object END = new Object();
+        private static final Object ABORT = new Object();
+
+        private final OutputStream out;
+        private final Options opt;
+        private final BlockingQueue<Object> strips = new ArrayBlockingQueue<>(2);
+        private Thread encoder;
+        private volatile Throwable failure;
+        private volatile boolean done;
+
+        Jpeg(OutputStream out, Options opt) {
+            this.out = out;
+            this.opt = opt;
+        }
+
+        @Override
+        protected void open() throws IOException {
+            ImageWriter iw = ImageIO.getImageWritersByFormatName("jpeg").next();
+            ImageWriteParam param = iw.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(Math.max(0f, Math.min(1f, opt.jpegQuality())));
+            // 两项都会让 libjpeg 缓存整帧系数，只在调用方明确要求时开启
+            if (opt.jpegProgressive()) param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            if (opt.jpegOptimizeHuffman() && param instanceof JPEGImageWriteParam jp) jp.setOptimizeHuffmanTables(true);
+
+            StripImage image = new StripImage(width, height, new StripRaster(width, height, this::take));
+            encoder = new Thread(() -> {
+                try (StreamOutput ios = new StreamOutput(out)) {
+                    iw.setOutput(ios);
+                    iw.write(null, new IIOImage(image, null, null), param);
+                    ios.flush();
+                } catch (Throwable t) {
+                    failure = t;
+                } finally {
+                    iw.dispose();
+                    done = true;
+                    strips.clear();
+                }
+            }, "sdr-jpeg-encode");
+            encoder.setDaemon(true);
+            encoder.start();
+        }
+
+        @Override
+        protected void write(int y, BufferedImage rows) throws IOException {
+            BufferedImage bgr = rows;
+            if (rows.getType() != BufferedImage.TYPE_3BYTE_BGR) {
+                bgr = new BufferedImage(rows.getWidth(), rows.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+                Graphics g = bgr.getGraphics();
+                try {
+                    g.drawImage(rows, 0, 0, null);
+                } finally {
+                    g.dispose();
+                }
+            }
+            put(new Strip(y, bgr));
+        }
+
+        @Override
+        protected void end() throws IOException {
+            put(END);
+            try {
+                encoder.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("jpeg encode interrupted");
+            }
+            if (failure != null) throw new IOException("jpeg encode failed: " + failure, failure);
+            out.flush();
+        }
+
+        @Override
+        protected void abort() {
+            if (encoder == null) return;
+            strips.clear();
+            strips.offer(ABORT);
+            encoder.interrupt();
+        }
+
+        private void put(Object item) throws IOException {
+            try {
+                while (!strips.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                    if (done) break;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("jpeg encode interrupted");
+            }
+            if (done && failure != null) throw new IOException("jpeg encode failed: " + failure, failure);
+        }
+
+        private Strip take() {
+            try {
+                Object o = strips.take();
+                if (o instanceof Strip s) return s;
+                throw new IllegalStateException(o == END ? "rows missing at end of image" : "aborted");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("aborted");
+            }
+        }
+    }
+
+    private record Strip(int y, BufferedImage rows) {}
+
+    /**
+     * 只在 createChild 时按需取条带的栅格；编码器严格自上而下读取，所以只保留当前条带。
+     */
+    private static final class StripRaster extends Raster {
+        private final Supplier<Strip> next;
+        private Strip current;
+
+        StripRaster(int w, int h, Supplier<Strip> next) {
+            // 数据缓冲只是占位，像素都在条带里
+            super(sampleModel(w, h), new DataBufferByte(1), new Point(0, 0));
+            this.next = next;
+        }
+
+        private static SampleModel sampleModel(int w, int h) {
+            return new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, w, h, 3, w * 3, new int[]{2, 1, 0});
+        }
+
+        @Override
+        public Raster createChild(int parentX, int parentY, int width, int height,
+                                  int childMinX, int childMinY, int[] bandList) {
+            while (current == null || parentY >= current.y() + current.rows().getHeight()) {
+                current = next.get();
+            }
+            if (parentY < current.y() || parentY + height > current.y() + current.rows().getHeight()) {
+                throw new IllegalStateException("rows " + parentY + ".." + (parentY + height) + " span strips");
+            }
+            return current.rows().getRaster().createChild(parentX, parentY - current.y(), width, height,
+                    childMinX, childMinY, bandList);
+        }
+    }
+
+    /**
+     * 单 tile 的 RenderedImage 外壳；getData 会要求整图像素，这里直接拒绝。
+     */
+    private static final class StripImage implements RenderedImage {
+        private static final ColorModel BGR = new BufferedImage(1, 1, BufferedImage.TYPE_3BYTE_BGR).getColorModel();
+
+        private final int width, height;
+        private final StripRaster tile;
+
+        StripImage(int width, int height, StripRaster tile) {
+            this.width = width;
+            this.height = height;
+            this.tile = tile;
+        }
+
+        @Override public Vector<RenderedImage> getSources() { return null; }
+        @Override public Object getProperty(String name) { return java.awt.Image.UndefinedProperty; }
+        @Override public String[] getPropertyNames() { return null; }
+        @Override public ColorModel getColorModel() { return BGR; }
+        @Override public SampleModel getSampleModel() { return tile.getSampleModel(); }
+        @Override public int getWidth() { return width; }
+        @Override public int getHeight() { return height; }
+        @Override public int getMinX() { return 0; }
+        @Override public int getMinY() { return 0; }
+        @Override public int getNumXTiles() { return 1; }
+        @Override public int getNumYTiles() { return 1; }
+        @Override public int getMinTileX() { return 0; }
+        @Override public int getMinTileY() { return 0; }
+        @Override public int getTileWidth() { return width; }
+        @Override public int getTileHeight() { return height; }
+        @Override public int getTileGridXOffset() { return 0; }
+        @Override public int getTileGridYOffset() { return 0; }
+        @Override public Raster getTile(int tileX, int tileY) { return tile; }
+        @Override public Raster getData() { throw new UnsupportedOperationException("streamed image"); }
+        @Override public Raster getData(Rectangle rect) { throw new UnsupportedOperationException("streamed image"); }
+        @Override public WritableRaster copyData(WritableRaster raster) { throw new UnsupportedOperationException("streamed image"); }
+    }
+
+    /**
+     * 只进不退的 ImageOutputStream，直接写到底层流，不经过 ImageIO 的内存/文件缓存。
+     */
+    private static final class StreamOutput extends ImageOutputStreamImpl {
+        private final OutputStream out;
+
+        StreamOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            flushBits();
+            out.write(b);
+            streamPos++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            flushBits();
+            out.write(b, off, len);
+            streamPos += len;
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new IOException("write-only stream");
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            throw new IOException("write-only stream");
+        }
+
+        @Override
+        public void seek(long pos) throws IOException {
+            if (pos != streamPos) throw new IOException("seek not supported on streamed output");
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // 不关闭调用方的流
+            super.close();
+        }
+    }
+}
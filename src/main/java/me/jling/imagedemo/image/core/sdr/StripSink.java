@@ -0,0 +1,18 @@
+package me.jling.imagedemo.image.core.sdr;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * 按条带接收解码结果：先 {@link #begin} 告知整图尺寸，再自上而下、互不重叠地交付条带。
+ */
+public interface StripSink {
+
+    default void begin(int width, int height) throws IOException {}
+
+    /**
+     * @param y    条带在输出图中的起始行
+     * @param rows 条带像素，宽度等于整图宽度
+     */
+    void strip(int y, BufferedImage rows) throws IOException;
+}
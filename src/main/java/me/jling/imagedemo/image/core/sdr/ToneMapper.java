@@ -0,0 +1,303 @@
+package me.jling.imagedemo.image.core.sdr;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+
+/**
+ * 进程内 HDR → SDR 色调映射：16-bit PQ/HLG/线性 BT.2020 帧 → 8-bit sRGB（BT.709）。
+ * <p>
+ * 传递函数与 sRGB 编码均查表；按行带切块，用 fork/join 并行（见 {@link RowBands}）。
+ */
+public final class ToneMapper {
+
+    public enum Transfer { LINEAR, PQ, HLG }
+
+    public enum Operator { LINEAR, REINHARD, HABLE }
+
+    /**
+     * @param peakNits   源内容峰值亮度；线性输入时 65535 对应该值
+     * @param whiteNits  SDR 参考白（BT.2408 建议 203 nits）
+     * @param bt2020     输入原色是否为 BT.2020（否则视为 BT.709）
+     */
+    public record Options(Transfer transfer, Operator operator, float peakNits, float whiteNits, boolean bt2020) {
+        public static Options of(Transfer transfer, Operator operator) {
+            return new Options(transfer, operator, 1000f, 203f, true);
+        }
+    }
+
+    private static final int SRGB_LUT_SIZE = 16384;
+
+    private static final float[][] BT2020_TO_BT709 = {
+            {1.6605f, -0.5876f, -0.0728f},
+            {-0.1246f, 1.1329f, -0.0083f},
+            {-0.0182f, -0.1006f, 1.1187f}
+    };
+
+    private static final byte[] SRGB_LUT = buildSrgbLut();
+    private static final float[] SRGB_DECODE = buildSrgbDecode();
+
+    private ToneMapper() {}
+
+    /**
+     * 对 16-bit 交错 RGB 图像（如 rgb48le 原始帧）做色调映射，返回 TYPE_3BYTE_BGR。
+     */
+    public static BufferedImage map(BufferedImage src, Options opt) {
+        Raster r = src.getRaster();
+        if (r.getDataBuffer() instanceof DataBufferUShort db
+                && r.getSampleModel() instanceof ComponentSampleModel sm
+                && sm.getNumBands() == 3 && r.getSampleModelTranslateX() == 0 && r.getSampleModelTranslateY() == 0) {
+            int[] bo = sm.getBandOffsets();
+            return map(db.getData(), db.getOffset() + bo[0], bo[1] - bo[0], bo[2] - bo[0],
+                    sm.getPixelStride(), sm.getScanlineStride(), src.getWidth(), src.getHeight(), opt);
+        }
+        // 非标准布局：先拷成交错 ushort
+        int w = src.getWidth(), h = src.getHeight();
+        short[] data = new short[w * h * 3];
+        int[] row = new int[w * 3];
+        for (int y = 0; y < h; y++) {
+            r.getPixels(0, y, w, 1, row);
+            int scale = r.getSampleModel().getDataType() == DataBuffer.TYPE_BYTE ? 257 : 1;
+            for (int i = 0; i < row.length; i++) data[y * w * 3 + i] = (short) (row[i] * scale);
+        }
+        return map(data, 0, 1, 2, 3, w * 3, w, h, opt);
+    }
+
+    /**
+     * 按条带色调映射并逐条交给 sink：8-bit 输出任一时刻只有一条带（rows 行）在内存里。
+     * 调用方负责先调用 {@link StripSink#begin}。
+     */
+    public static void mapStrips(BufferedImage src, Options opt, int rows, StripSink sink) throws IOException {
+        Raster r = src.getRaster();
+        int w = src.getWidth(), h = src.getHeight();
+        int step = Math.max(1, rows);
+        if (r.getDataBuffer() instanceof DataBufferUShort db
+                && r.getSampleModel() instanceof ComponentSampleModel sm
+                && sm.getNumBands() == 3 && r.getSampleModelTranslateX() == 0 && r.getSampleModelTranslateY() == 0) {
+            int[] bo = sm.getBandOffsets();
+            for (int y = 0; y < h; y += step) {
+                int n = Math.min(step, h - y);
+                sink.strip(y, map(db.getData(), db.getOffset() + bo[0] + y * sm.getScanlineStride(), bo[1] - bo[0],
+                        bo[2] - bo[0], sm.getPixelStride(), sm.getScanlineStride(), w, n, opt));
+            }
+            return;
+        }
+        for (int y = 0; y < h; y += step) {
+            int n = Math.min(step, h - y);
+            sink.strip(y, map(src.getSubimage(0, y, w, n), opt));
+        }
+    }
+
+    /**
+     * 堆外缓冲（任意位深与排列，前 3 个通道为 RGB）的色调映射，返回 TYPE_3BYTE_BGR。
+     */
+    public static BufferedImage map(PixelBuffer src, Options opt) {
+        return map(src, 0, src.height(), opt);
+    }
+
+    /**
+     * 只映射 [y0, y0 + h) 这些行，返回 w × h 的 TYPE_3BYTE_BGR；调用方自行分条带时使用。
+     */
+    public static BufferedImage map(PixelBuffer src, int y0, int h, Options opt) {
+        if (src.channels() < 3) throw new IllegalArgumentException("need RGB pixels, got " + src.channels() + " channels");
+        int w = src.width();
+        BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] out = ((DataBufferByte) dst.getRaster().getDataBuffer()).getData();
+        Kernel k = new Kernel(opt);
+        float[] lut = k.eotf;
+        boolean packed16 = src.type() == PixelBuffer.SampleType.U16 && src.layout() == PixelBuffer.Layout.INTERLEAVED;
+        ShortBuffer shorts = packed16 ? src.data().asShortBuffer() : null;
+        int gOff = src.index(0, 0, 1) - src.index(0, 0, 0);
+        int bOff = src.index(0, 0, 2) - src.index(0, 0, 0);
+        int pixelStride = src.index(1 % w, 0, 0) - src.index(0, 0, 0);
+        RowBands.run(h, (r0, r1) -> {
+            for (int r = r0; r < r1; r++) {
+                int si = src.index(0, y0 + r, 0);
+                int di = r * w * 3;
+                if (packed16) {
+                    for (int x = 0; x < w; x++, si += 3, di += 3) {
+                        k.pixel(lut[shorts.get(si) & 0xffff], lut[shorts.get(si + 1) & 0xffff],
+                                lut[shorts.get(si + 2) & 0xffff], out, di);
+                    }
+                } else {
+                    for (int x = 0; x < w; x++, si += pixelStride, di += 3) {
+                        k.pixel(lut[src.code16(si)], lut[src.code16(si + gOff)], lut[src.code16(si + bOff)], out, di);
+                    }
+                }
+            }
+        });
+        return dst;
+    }
+
+    /**
+     * 交错 ushort 输入的核心入口；gOff/bOff 为相对 R 样本的偏移。
+     */
+    public static BufferedImage map(short[] data, int offset, int gOff, int bOff, int pixelStride, int scanlineStride,
+                                    int w, int h, Options opt) {
+        BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] out = ((DataBufferByte) dst.getRaster().getDataBuffer()).getData();
+        Kernel k = new Kernel(opt);
+        float[] lut = k.eotf;
+        RowBands.run(h, (y0, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                int si = offset + y * scanlineStride;
+                int di = y * w * 3;
+                for (int x = 0; x < w; x++, si += pixelStride, di += 3) {
+                    k.pixel(lut[data[si] & 0xffff], lut[data[si + gOff] & 0xffff], lut[data[si + bOff] & 0xffff], out, di);
+                }
+            }
+        });
+        return dst;
+    }
+
+    /**
+     * 每次映射的参数与查表；EOTF 表把 16-bit 码值直接映射为以 SDR 白为 1.0 的相对线性光。
+     */
+    private static final class Kernel {
+        final float[] eotf;
+        final Transfer transfer;
+        final Curve curve;
+        final float[][] m;
+        final float hlgGammaMinus1;
+        final float hlgScale;
+
+        Kernel(Options o) {
+            this.transfer = o.transfer();
+            this.curve = curve(o.operator(), o.peakNits() / o.whiteNits());
+            this.m = o.bt2020() ? BT2020_TO_BT709 : null;
+            this.eotf = Luts.eotf(o.transfer(), o.peakNits(), o.whiteNits());
+            // BT.2100 HLG OOTF：系统 gamma = 1.2 + 0.42·log10(Lw/1000)
+            this.hlgGammaMinus1 = (float) (1.2 + 0.42 * Math.log10(o.peakNits() / 1000.0)) - 1f;
+            this.hlgScale = o.peakNits() / o.whiteNits();
+        }
+
+        void pixel(float r, float g, float b, byte[] out, int o) {
+            if (transfer == Transfer.HLG) {
+                // eotf 表给出场景线性 [0,1]，在 BT.2020 亮度上施加 OOTF
+                float ys = 0.2627f * r + 0.6780f * g + 0.0593f * b;
+                float f = ys > 0 ? hlgScale * (float) Math.pow(ys, hlgGammaMinus1) : 0f;
+                r *= f; g *= f; b *= f;
+            }
+            if (m != null) {
+                float r2 = m[0][0] * r + m[0][1] * g + m[0][2] * b;
+                float g2 = m[1][0] * r + m[1][1] * g + m[1][2] * b;
+                float b2 = m[2][0] * r + m[2][1] * g + m[2][2] * b;
+                r = Math.max(0f, r2); g = Math.max(0f, g2); b = Math.max(0f, b2);
+            }
+            writeBgr(curve, r, g, b, out, o);
+        }
+    }
+
+    /**
+     * 色调曲线：以 SDR 白为 1.0 的相对线性光 → [0,1]。
+     */
+    @FunctionalInterface
+    interface Curve {
+        float apply(float x);
+    }
+
+    static Curve curve(Operator op, float peak) {
+        float p = Math.max(1f, peak);
+        return switch (op) {
+            case LINEAR -> x -> Math.min(1f, x);
+            case REINHARD -> x -> Math.min(1f, x * (1f + x / (p * p)) / (1f + x));
+            case HABLE -> {
+                float white = hable(p);
+                yield x -> Math.min(1f, hable(x) / white);
+            }
+        };
+    }
+
+    /**
+     * 按最大通道缩放（保持色相，等价 ffmpeg tonemap desat=0），再做 sRGB 编码写入 B,G,R。
+     */
+    static void writeBgr(Curve curve, float r, float g, float b, byte[] out, int o) {
+        float sig = Math.max(r, Math.max(g, b));
+        if (sig > 1e-6f) {
+            float s = curve.apply(sig) / sig;
+            r *= s; g *= s; b *= s;
+        }
+        out[o] = SRGB_LUT[srgbIndex(b)];
+        out[o + 1] = SRGB_LUT[srgbIndex(g)];
+        out[o + 2] = SRGB_LUT[srgbIndex(r)];
+    }
+
+    private static int srgbIndex(float v) {
+        int i = (int) (v * (SRGB_LUT_SIZE - 1) + 0.5f);
+        return i < 0 ? 0 : Math.min(i, SRGB_LUT_SIZE - 1);
+    }
+
+    /**
+     * 8-bit sRGB 码值 → 线性光 [0,1]。
+     */
+    static float srgbToLinear(int code) {
+        return SRGB_DECODE[code & 0xff];
+    }
+
+    private static float[] buildSrgbDecode() {
+        float[] lut = new float[256];
+        for (int i = 0; i < 256; i++) {
+            double v = i / 255.0;
+            lut[i] = (float) (v <= 0.04045 ? v / 12.92 : Math.pow((v + 0.055) / 1.055, 2.4));
+        }
+        return lut;
+    }
+
+    private static float hable(float x) {
+        final float a = 0.15f, b = 0.50f, c = 0.10f, d = 0.20f, e = 0.02f, f = 0.30f;
+        return (x * (a * x + c * b) + d * e) / (x * (a * x + b) + d * f) - e / f;
+    }
+
+    /**
+     * 传递函数查表，按参数缓存（常见配置只有一两组）。
+     */
+    private static final class Luts {
+        private static final java.util.Map<String, float[]> CACHE = new java.util.concurrent.ConcurrentHashMap<>();
+
+        static float[] eotf(Transfer t, float peakNits, float whiteNits) {
+            return CACHE.computeIfAbsent(t + ":" + peakNits + ":" + whiteNits, key -> build(t, peakNits, whiteNits));
+        }
+
+        private static float[] build(Transfer t, float peakNits, float whiteNits) {
+            float[] lut = new float[65536];
+            for (int i = 0; i < lut.length; i++) {
+                double e = i / 65535.0;
+                lut[i] = (float) switch (t) {
+                    case LINEAR -> e * peakNits / whiteNits;
+                    case PQ -> pqEotf(e) / whiteNits;
+                    case HLG -> hlgInverseOetf(e);
+                };
+            }
+            return lut;
+        }
+
+        /** SMPTE ST 2084，返回绝对亮度（nits） */
+        static double pqEotf(double e) {
+            final double m1 = 2610.0 / 16384, m2 = 2523.0 / 4096 * 128;
+            final double c1 = 3424.0 / 4096, c2 = 2413.0 / 4096 * 32, c3 = 2392.0 / 4096 * 32;
+            double p = Math.pow(e, 1 / m2);
+            return 10000.0 * Math.pow(Math.max(p - c1, 0) / (c2 - c3 * p), 1 / m1);
+        }
+
+        /** BT.2100 HLG 反 OETF，返回场景线性 [0,1] */
+        static double hlgInverseOetf(double e) {
+            final double a = 0.17883277, b = 1 - 4 * a, c = 0.5 - a * Math.log(4 * a);
+            return e <= 0.5 ? e * e / 3 : (Math.exp((e - c) / a) + b) / 12;
+        }
+    }
+
+    private static byte[] buildSrgbLut() {
+        byte[] lut = new byte[SRGB_LUT_SIZE];
+        for (int i = 0; i < lut.length; i++) {
+            double v = i / (double) (SRGB_LUT_SIZE - 1);
+            double s = v <= 0.0031308 ? 12.92 * v : 1.055 * Math.pow(v, 1 / 2.4) - 0.055;
+            lut[i] = (byte) Math.round(Math.max(0, Math.min(1, s)) * 255);
+        }
+        return lut;
+    }
+}
@@ -0,0 +1,413 @@
+package me.jling.imagedemo.image.core.store;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * 持久化的派生结果存储（转换输出、探测元数据），按内容寻址，重启后仍然有效。
+ * <p>
+ * 目录布局：{@code index.bin}（内存映射的定长记录索引）、{@code objects/xx/<key>}（结果文件）、{@code tmp/}（写入中的临时文件）。
+ * 启动时只顺序读一遍索引，不遍历 objects；写入先落 tmp 再原子改名，改名成功后才登记索引。
+ * 超过 image.store.max-bytes 时由后台线程按最近访问时间淘汰，孤儿文件（崩溃时已改名但未登记）也在后台清理。
+ */
+@Slf4j
+@Component
+public class DerivedStore implements DisposableBean {
+
+    public record Stats(int entries, long bytes, long maxBytes) {}
+
+    /**
+     * 把内容写到给定的临时文件。
+     */
+    @FunctionalInterface
+    public interface Producer {
+        void writeTo(Path tmp) throws IOException;
+    }
+
+    // 索引：16 字节文件头 + 定长记录；记录内 0 状态、1 键长、8 大小、16 最近访问时间（毫秒）、24 起为键
+    static final int HEADER = 16;
+    static final int RECORD = 128;
+    static final int MAX_KEY = RECORD - 24;
+    private static final int MAGIC = 0x49445354;
+    private static final int VERSION = 1;
+    private static final int INITIAL_SLOTS = 1024;
+
+    /** 最近访问过的条目不参与淘汰，避免删掉正在被读取的文件 */
+    static final long EVICT_GRACE_MS = 10_000;
+
+    private static final Pattern KEY = Pattern.compile("[A-Za-z0-9_@-][A-Za-z0-9._@-]*");
+
+    private final Path root;
+    private final Path objects;
+    private final Path tmp;
+    private final long maxBytes;
+    private final long openedAt = System.currentTimeMillis();
+
+    // 索引映射与空闲槽位的修改都在 this 上同步
+    private FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int capacity;
+    private final ArrayDeque<Integer> free = new ArrayDeque<>();
+    private final ConcurrentHashMap<String, Integer> slots = new ConcurrentHashMap<>();
+    private long bytes;
+
+    private final ExecutorService maintenance;
+    private final AtomicBoolean evictionQueued = new AtomicBoolean();
+
+    /**
+     * @param dir      存储目录；为空时关闭（所有读取未命中，写入被忽略）
+     * @param maxBytes 结果文件总大小上限
+     * @param reset    启动时清空已有内容
+     */
+    public DerivedStore(@Value("${image.store.dir:}") String dir,
+                        @Value("${image.store.max-bytes:2147483648}") long maxBytes,
+                        @Value("${demo.storage.reset:false}") boolean reset) throws IOException {
+        this.maxBytes = maxBytes;
+        if (dir == null || dir.isBlank()) {
+            root = objects = tmp = null;
+            maintenance = null;
+            return;
+        }
+        root = Path.of(dir);
+        objects = root.resolve("objects");
+        tmp = root.resolve("tmp");
+        if (reset) deleteTree(root);
+        Files.createDirectories(objects);
+        Files.createDirectories(tmp);
+
+        long t0 = System.nanoTime();
+        loadIndex();
+        log.info("[store] opened {} with {} entries ({} bytes) in {} ms",
+                root, slots.size(), bytes, (System.nanoTime() - t0) / 1_000_000);
+
+        maintenance = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "derived-store");
+            t.setDaemon(true);
+            return t;
+        });
+        maintenance.execute(() -> {
+            reconcileNow();
+            evictNow();
+        });
+    }
+
+    /**
+     * 关闭状态的存储（测试、一次性命令行）。
+     */
+    public static DerivedStore disabled() {
+        try {
+            return new DerivedStore("", 0, false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public boolean enabled() {
+        return root != null;
+    }
+
+    /**
+     * 已存结果的路径并刷新访问时间；不存在时返回 null。
+     */
+    public Path get(String key) {
+        if (!enabled()) return null;
+        Integer slot = slots.get(key);
+        if (slot == null) return null;
+        Path p = objectPath(key);
+        if (!Files.exists(p)) {
+            unregister(key);
+            return null;
+        }
+        touch(key, System.currentTimeMillis());
+        return p;
+    }
+
+    synchronized void touch(String key, long millis) {
+        Integer slot = slots.get(key);
+        if (slot != null) index.putLong(offset(slot) + 16, millis);
+    }
+
+    public byte[] getBytes(String key) throws IOException {
+        Path p = get(key);
+        if (p == null) return null;
+        try {
+            return Files.readAllBytes(p);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 由 producer 写临时文件，完成后原子改名进入存储；存储关闭时返回 null。
+     */
+    public Path put(String key, Producer producer) throws IOException {
+        if (!enabled()) return null;
+        checkKey(key);
+        Path t = Files.createTempFile(tmp, "put-", ".tmp");
+        try {
+            producer.writeTo(t);
+            return putFile(key, t);
+        } finally {
+            Files.deleteIfExists(t);
+        }
+    }
+
+    public Path putBytes(String key, byte[] data) throws IOException {
+        return put(key, t -> Files.write(t, data));
+    }
+
+    /**
+     * 把已有文件移入存储（同一文件系统时为改名，否则先复制到 tmp 再改名）；存储关闭时返回 null 且不动 file。
+     */
+    public Path putFile(String key, Path file) throws IOException {
+        if (!enabled()) return null;
+        checkKey(key);
+        Path target = objectPath(key);
+        Files.createDirectories(target.getParent());
+        long size = Files.size(file);
+        synchronized (this) {
+            try {
+                Files.move(file, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Path t = Files.createTempFile(tmp, "put-", ".tmp");
+                try {
+                    Files.copy(file, t, StandardCopyOption.REPLACE_EXISTING);
+                    Files.move(t, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    Files.deleteIfExists(file);
+                } finally {
+                    Files.deleteIfExists(t);
+                }
+            }
+            register(key, size);
+        }
+        if (bytes() > maxBytes && evictionQueued.compareAndSet(false, true)) {
+            maintenance.execute(() -> {
+                evictionQueued.set(false);
+                evictNow();
+            });
+        }
+        return target;
+    }
+
+    public void remove(String key) throws IOException {
+        if (!enabled()) return;
+        synchronized (this) {
+            unregister(key);
+            Files.deleteIfExists(objectPath(key));
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(slots.size(), bytes(), maxBytes);
+    }
+
+    private synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * 按最近访问时间从旧到新删除，直到降到上限的 90%。
+     */
+    void evictNow() {
+        if (!enabled() || bytes() <= maxBytes) return;
+        record Candidate(String key, int slot, long lastAccess) {}
+        List<Candidate> all = new ArrayList<>(slots.size());
+        synchronized (this) {
+            slots.forEach((k, slot) -> all.add(new Candidate(k, slot, index.getLong(offset(slot) + 16))));
+        }
+        all.sort(Comparator.comparingLong(Candidate::lastAccess));
+
+        long target = maxBytes / 10 * 9, now = System.currentTimeMillis();
+        int removed = 0;
+        long freed = 0;
+        for (Candidate c : all) {
+            if (bytes() <= target || now - c.lastAccess() < EVICT_GRACE_MS) break;
+            synchronized (this) {
+                // 快照之后被访问或被覆盖的条目跳过
+                Integer slot = slots.get(c.key());
+                if (slot == null || slot != c.slot() || index.getLong(offset(slot) + 16) != c.lastAccess()) continue;
+                long size = index.getLong(offset(c.slot()) + 8);
+                unregister(c.key());
+                try {
+                    Files.deleteIfExists(objectPath(c.key()));
+                } catch (IOException e) {
+                    log.warn("[store] cannot delete {}: {}", c.key(), e.toString());
+                }
+                removed++;
+                freed += size;
+            }
+        }
+        if (removed > 0) log.info("[store] evicted {} entries, freed {} bytes, now {} bytes", removed, freed, bytes());
+    }
+
+    /**
+     * 清理 tmp 残留、未登记的孤儿文件，以及文件已丢失的索引项；只处理本次启动之前的文件。
+     */
+    void reconcileNow() {
+        if (!enabled()) return;
+        long t0 = System.nanoTime();
+        int orphans = 0, stale = 0;
+        try (Stream<Path> files = Files.list(tmp)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                if (olderThanOpen(p)) Files.deleteIfExists(p);
+            }
+        } catch (IOException e) {
+            log.warn("[store] tmp cleanup failed: {}", e.toString());
+        }
+        try (Stream<Path> files = Files.walk(objects)) {
+            for (Path p : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                synchronized (this) {
+                    if (!slots.containsKey(p.getFileName().toString()) && olderThanOpen(p)) {
+                        Files.deleteIfExists(p);
+                        orphans++;
+                    }
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("[store] orphan scan failed: {}", e.toString());
+        }
+        for (String key : List.copyOf(slots.keySet())) {
+            synchronized (this) {
+                if (slots.containsKey(key) && !Files.exists(objectPath(key))) {
+                    unregister(key);
+                    stale++;
+                }
+            }
+        }
+        log.info("[store] reconciled in {} ms: {} orphan files, {} stale index entries",
+                (System.nanoTime() - t0) / 1_000_000, orphans, stale);
+    }
+
+    private boolean olderThanOpen(Path p) throws IOException {
+        try {
+            return Files.getLastModifiedTime(p).toMillis() < openedAt;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        indexChannel = FileChannel.open(root.resolve("index.bin"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = indexChannel.size();
+        boolean valid = false;
+        if (size >= HEADER) {
+            MappedByteBuffer head = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+            valid = head.getInt(0) == MAGIC && head.getInt(4) == VERSION;
+        }
+        if (!valid) {
+            // 索引缺失或损坏：从空索引开始，旧文件由后台 reconcile 当作孤儿清理
+            if (size > 0) log.warn("[store] index in {} is invalid, starting empty", root);
+            indexChannel.truncate(0);
+            size = 0;
+        }
+        map(Math.max(INITIAL_SLOTS, (int) ((size - HEADER) / RECORD)));
+        index.putInt(0, MAGIC);
+        index.putInt(4, VERSION);
+
+        byte[] key = new byte[MAX_KEY];
+        for (int slot = 0; slot < capacity; slot++) {
+            int off = offset(slot);
+            int len = index.get(off + 1) & 0xff;
+            if (index.get(off) != 1 || len == 0 || len > MAX_KEY) {
+                free.add(slot);
+                continue;
+            }
+            index.get(off + 24, key, 0, len);
+            slots.put(new String(key, 0, len, StandardCharsets.US_ASCII), slot);
+            bytes += index.getLong(off + 8);
+        }
+    }
+
+    private void map(int slotCount) throws IOException {
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) slotCount * RECORD);
+        for (int s = capacity; s < slotCount && capacity > 0; s++) free.add(s);
+        capacity = slotCount;
+    }
+
+    private synchronized void register(String key, long size) throws IOException {
+        Integer slot = slots.get(key);
+        if (slot != null) {
+            bytes -= index.getLong(offset(slot) + 8);
+        } else {
+            if (free.isEmpty()) map(capacity * 2);
+            slot = free.poll();
+        }
+        int off = offset(slot);
+        byte[] k = key.getBytes(StandardCharsets.US_ASCII);
+        index.putLong(off + 8, size);
+        index.putLong(off + 16, System.currentTimeMillis());
+        index.put(off + 24, k);
+        index.put(off + 1, (byte) k.length);
+        // 状态字节最后写，崩溃时半条记录不会被当成有效
+        index.put(off, (byte) 1);
+        slots.put(key, slot);
+        bytes += size;
+    }
+
+    private synchronized void unregister(String key) {
+        Integer slot = slots.remove(key);
+        if (slot == null) return;
+        int off = offset(slot);
+        bytes -= index.getLong(off + 8);
+        index.put(off, (byte) 0);
+        free.add(slot);
+    }
+
+    private static int offset(int slot) {
+        return HEADER + slot * RECORD;
+    }
+
+    private Path objectPath(String key) {
+        return objects.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    private static void checkKey(String key) {
+        if (key == null || key.length() < 2 || key.length() > MAX_KEY || !KEY.matcher(key).matches()) {
+            throw new IllegalArgumentException("Invalid store key: " + key);
+        }
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        if (!enabled()) return;
+        maintenance.shutdownNow();
+        synchronized (this) {
+            index.force();
+            indexChannel.close();
+        }
+    }
+}
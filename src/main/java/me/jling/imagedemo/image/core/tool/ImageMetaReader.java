@@ -1,43 +1,194 @@
 package me.jling.imagedemo.image.core.tool;
 
 import com.drew.imaging.ImageMetadataReader;
-import com.drew.metadata.Directory;
+import com.drew.imaging.jpeg.JpegMetadataReader;
+import com.drew.metadata.Metadata;
 import com.drew.metadata.exif.ExifIFD0Directory;
+import com.drew.metadata.exif.ExifReader;
+import com.drew.metadata.exif.ExifSubIFDDirectory;
 import com.drew.metadata.exif.GpsDirectory;
 
 import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
 
 public class ImageMetaReader {
 
+    /** 流式读取时最多读入（并缓存）的字节数 */
+    static final int HEADER_LIMIT = 4 << 20;
+
+    private static final java.time.format.DateTimeFormatter EXIF_TIME =
+            java.time.format.DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss");
+
     public static ImageInfo read(byte[] bytes) {
+        return read(SourceImage.of(null, bytes).newImageInputStream());
+    }
+
+    public static ImageInfo read(Path path) {
+        try (SourceImage src = SourceImage.open(path)) {
+            return read(src.newImageInputStream());
+        } catch (IOException e) {
+            return new ImageInfo(0, 0, null, null, null, null, null, null);
+        }
+    }
+
+    /**
+     * 只读取文件头：读过的字节缓存在堆上，JPEG 读到 SOF/SOS 为止，其余格式最多读前 {@link #HEADER_LIMIT} 字节，
+     * 元数据落在这之后的文件（少见）拿不到 EXIF 或尺寸。本地文件请用 {@link #read(Path)}。
+     */
+    public static ImageInfo read(InputStream in) {
+        try (ImageInputStream iis = new MemoryCacheImageInputStream(new HeadInputStream(in, HEADER_LIMIT))) {
+            return read(iis);
+        } catch (IOException e) {
+            return new ImageInfo(0, 0, null, null, null, null, null, null);
+        }
+    }
+
+    private static ImageInfo read(ImageInputStream iis) {
         int w=0, h=0;
-        try (var in = new ByteArrayInputStream(bytes)) {
-            BufferedImage bi = ImageIO.read(in);
-            if (bi != null) { w = bi.getWidth(); h = bi.getHeight(); }
+        try {
+            int[] size = headerSize(iis);
+            if (size != null) { w = size[0]; h = size[1]; }
         } catch (Exception ignore){}
 
         Double lat=null,lng=null; String make=null,model=null;
         java.time.Instant ts=null; String place=null;
         try {
-            var meta = ImageMetadataReader.readMetadata(new ByteArrayInputStream(bytes));
-            for (Directory dir : meta.getDirectories()) {
-                if (dir instanceof GpsDirectory gps) {
-                    var loc = gps.getGeoLocation();
-                    if (loc != null && !loc.isZero()) { lat = loc.getLatitude(); lng = loc.getLongitude(); }
-                }
-                if (dir.containsTag(ExifIFD0Directory.TAG_MAKE))   make  = dir.getString(ExifIFD0Directory.TAG_MAKE);
-                if (dir.containsTag(ExifIFD0Directory.TAG_MODEL))  model = dir.getString(ExifIFD0Directory.TAG_MODEL);
-                if (dir.containsTag(0x9003)) {
-                    var s = dir.getString(0x9003);
-                    ts = java.time.LocalDateTime.parse(s, java.time.format.DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss"))
+            iis.seek(0);
+            Metadata meta = readExif(iis);
+            GpsDirectory gps = meta.getFirstDirectoryOfType(GpsDirectory.class);
+            if (gps != null) {
+                var loc = gps.getGeoLocation();
+                if (loc != null && !loc.isZero()) { lat = loc.getLatitude(); lng = loc.getLongitude(); }
+            }
+            ExifIFD0Directory ifd0 = meta.getFirstDirectoryOfType(ExifIFD0Directory.class);
+            if (ifd0 != null) {
+                make  = ifd0.getString(ExifIFD0Directory.TAG_MAKE);
+                model = ifd0.getString(ExifIFD0Directory.TAG_MODEL);
+            }
+            ExifSubIFDDirectory sub = meta.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
+            if (sub != null && sub.containsTag(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL)) {
+                try {
+                    ts = java.time.LocalDateTime.parse(sub.getString(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL), EXIF_TIME)
                             .atZone(java.time.ZoneId.systemDefault()).toInstant();
-                }
+                } catch (java.time.format.DateTimeParseException ignore) {}
             }
             // 有经纬度时可用逆地理服务补充 placeText
         } catch (Exception ignore){}
 
         return new ImageInfo(w, h, lat, lng, place, ts, make, model);
     }
+
+    /**
+     * HEIF/AVIF 读 ispe 盒子；其余格式只让 ImageReader 解析文件头，不解码像素。
+     */
+    static int[] headerSize(ImageInputStream iis) throws IOException {
+        iis.seek(0);
+        byte[] head = new byte[12];
+        iis.readFully(head);
+        if (head[4] == 'f' && head[5] == 't' && head[6] == 'y' && head[7] == 'p') {
+            String brand = new String(head, 8, 4, java.nio.charset.StandardCharsets.ISO_8859_1);
+            if (brand.startsWith("hei") || brand.startsWith("hev") || brand.startsWith("avi")
+                    || brand.startsWith("mif1") || brand.startsWith("msf1")) {
+                int[] size = IsoBmff.primaryImageSize(iis);
+                if (size != null) return size;
+            }
+        }
+
+        iis.seek(0);
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) return null;
+        ImageReader reader = readers.next();
+        try {
+            iis.seek(0);
+            reader.setInput(iis, false, true);
+            return new int[]{reader.getWidth(0), reader.getHeight(0)};
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * JPEG 只跑 EXIF 段解析器（跳过 XMP/ICC/IPTC 等）；其他格式交给通用入口。
+     */
+    private static Metadata readExif(ImageInputStream iis) throws Exception {
+        int b0 = iis.read(), b1 = iis.read();
+        iis.seek(0);
+        InputStream in = new ImageInputStreamAdapter(iis);
+        if (b0 == 0xFF && b1 == 0xD8) {
+            return JpegMetadataReader.readMetadata(in, List.of(new ExifReader()));
+        }
+        long len = iis.length();
+        return len > 0 ? ImageMetadataReader.readMetadata(in, len) : ImageMetadataReader.readMetadata(in);
+    }
+
+    private static final class ImageInputStreamAdapter extends InputStream {
+        private final ImageInputStream iis;
+
+        ImageInputStreamAdapter(ImageInputStream iis) {
+            this.iis = iis;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return iis.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return iis.read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            return iis.skipBytes(n);
+        }
+    }
+
+    /**
+     * 读满 limit 字节后报告 EOF，不再从底层流读取。
+     */
+    private static final class HeadInputStream extends FilterInputStream {
+        private long left;
+
+        HeadInputStream(InputStream in, long limit) {
+            super(in);
+            this.left = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (left <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) left--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (left <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, left));
+            if (n > 0) left -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long k = in.skip(Math.min(n, left));
+            left -= k;
+            return k;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), left);
+        }
+    }
 }
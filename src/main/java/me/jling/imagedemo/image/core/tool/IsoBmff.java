@@ -0,0 +1,325 @@
+package me.jling.imagedemo.image.core.tool;
+
+import javax.imageio.stream.ImageInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HEIF/AVIF（ISOBMFF）最小盒子解析：只读 meta 下与尺寸、网格结构相关的盒子，不解码像素。
+ */
+public final class IsoBmff {
+
+    /** 长度未知的流中 size==0（延续到文件尾）盒子的假定长度 */
+    private static final long UNKNOWN_LENGTH_BOX = 16L * 1024 * 1024;
+
+    private IsoBmff() {}
+
+    /**
+     * 主图（pitm）关联的 ispe 尺寸；找不到关联时取最大的 ispe；没有则返回 null。
+     */
+    public static int[] primaryImageSize(ImageInputStream in) throws IOException {
+        in.seek(0);
+        Meta meta = readMeta(in);
+        if (meta == null || meta.ispe.isEmpty()) return null;
+
+        if (meta.primaryItem >= 0) {
+            for (int[] assoc : meta.associations) {
+                if (assoc[0] != meta.primaryItem) continue;
+                for (int i = 1; i < assoc.length; i++) {
+                    int[] size = meta.ispeAt(assoc[i]);
+                    if (size != null) return size;
+                }
+            }
+        }
+        int[] best = null;
+        for (int[] s : meta.ispe) {
+            if (s != null && (best == null || (long) s[0] * s[1] > (long) best[0] * best[1])) best = s;
+        }
+        return best == null ? null : new int[]{best[0], best[1]};
+    }
+
+    /**
+     * 主图为 grid 派生图像时的网格结构。
+     *
+     * @param tiles        dimg 引用顺序（行优先）的切片 item ID
+     * @param codedItems   iinf 中编码图像 item（hvc1/av01）的出现顺序，ffmpeg 按此顺序建流
+     */
+    public record Grid(int primaryItem, int rows, int columns, int outputWidth, int outputHeight,
+                       int tileWidth, int tileHeight, List<Integer> tiles, List<Integer> codedItems) {
+
+        public Grid {
+            tiles = List.copyOf(tiles);
+            codedItems = List.copyOf(codedItems);
+        }
+
+        public int tileAt(int row, int column) {
+            return tiles.get(row * columns + column);
+        }
+    }
+
+    /**
+     * 解析主图的网格结构；主图不是 grid、或切片数与行列不符时返回 null。
+     */
+    public static Grid primaryGrid(ImageInputStream in) throws IOException {
+        in.seek(0);
+        Meta meta = readMeta(in);
+        if (meta == null || meta.primaryItem < 0) return null;
+        if (meta.itemTypes.getOrDefault(meta.primaryItem, 0) != fourcc("grid")) return null;
+
+        List<Integer> tiles = meta.dimg.get(meta.primaryItem);
+        long[] loc = meta.locations.get(meta.primaryItem);
+        if (tiles == null || tiles.isEmpty() || loc == null) return null;
+
+        // ImageGrid：version, flags, rows-1, columns-1, 输出宽高（flags&1 时为 32 位）
+        long offset = loc[0] == 1 ? meta.idatOffset + loc[1] : loc[1];
+        if (loc[0] == 1 && meta.idatOffset < 0) return null;
+        in.seek(offset);
+        in.skipBytes(1);
+        int flags = in.readUnsignedByte();
+        int rows = in.readUnsignedByte() + 1;
+        int columns = in.readUnsignedByte() + 1;
+        int ow, oh;
+        if ((flags & 1) != 0) {
+            ow = (int) in.readUnsignedInt();
+            oh = (int) in.readUnsignedInt();
+        } else {
+            ow = in.readUnsignedShort();
+            oh = in.readUnsignedShort();
+        }
+        if (tiles.size() != rows * columns) return null;
+
+        int[] tileSize = meta.itemSize(tiles.get(0));
+        if (tileSize == null) return null;
+
+        List<Integer> coded = new ArrayList<>();
+        for (var e : meta.itemOrder) {
+            int type = meta.itemTypes.get(e);
+            if (type == fourcc("hvc1") || type == fourcc("av01")) coded.add(e);
+        }
+        return new Grid(meta.primaryItem, rows, columns, ow, oh, tileSize[0], tileSize[1], tiles, coded);
+    }
+
+    /**
+     * meta 盒子的关键信息；ipco 中的属性按出现顺序编号（从 1 起），非 ispe 属性占位为 null。
+     */
+    static final class Meta {
+        int primaryItem = -1;
+        final List<int[]> ispe = new ArrayList<>();
+        /** 每项：[itemId, propertyIndex...] */
+        final List<int[]> associations = new ArrayList<>();
+        /** infe：itemId → item_type，以及出现顺序 */
+        final Map<Integer, Integer> itemTypes = new HashMap<>();
+        final List<Integer> itemOrder = new ArrayList<>();
+        /** iref/dimg：派生图像 → 输入图像（保持引用顺序） */
+        final Map<Integer, List<Integer>> dimg = new HashMap<>();
+        /** iloc：itemId → [construction_method, 首个 extent 的绝对偏移（idat 时相对 idat 内容）, 长度] */
+        final Map<Integer, long[]> locations = new HashMap<>();
+        long idatOffset = -1;
+
+        int[] ispeAt(int propertyIndex) {
+            int i = propertyIndex - 1;
+            return i >= 0 && i < ispe.size() ? ispe.get(i) : null;
+        }
+
+        int[] itemSize(int itemId) {
+            for (int[] assoc : associations) {
+                if (assoc[0] != itemId) continue;
+                for (int i = 1; i < assoc.length; i++) {
+                    int[] size = ispeAt(assoc[i]);
+                    if (size != null) return size;
+                }
+            }
+            return null;
+        }
+    }
+
+    static Meta readMeta(ImageInputStream in) throws IOException {
+        long len = in.length();
+        long pos = 0;
+        while (len < 0 || pos + 8 <= len) {
+            in.seek(pos);
+            long[] hdr = header(in, pos);
+            if (hdr == null) return null;
+            long size = hdr[0];
+            long body = hdr[1];
+            if (hdr[2] == fourcc("meta")) {
+                Meta meta = new Meta();
+                readChildren(in, body + 4, pos + size, meta);
+                return meta;
+            }
+            if (size <= 0) return null;
+            pos += size;
+        }
+        return null;
+    }
+
+    private static void readChildren(ImageInputStream in, long from, long to, Meta meta) throws IOException {
+        long pos = from;
+        while (pos + 8 <= to) {
+            in.seek(pos);
+            long[] hdr = header(in, pos);
+            if (hdr == null || hdr[0] <= 0) return;
+            long end = Math.min(to, pos + hdr[0]);
+            int type = (int) hdr[2];
+            in.seek(hdr[1]);
+            if (type == fourcc("pitm")) {
+                int version = in.readUnsignedByte();
+                in.skipBytes(3);
+                meta.primaryItem = version == 0 ? in.readUnsignedShort() : (int) in.readUnsignedInt();
+            } else if (type == fourcc("iprp")) {
+                readChildren(in, hdr[1], end, meta);
+            } else if (type == fourcc("ipco")) {
+                readProperties(in, hdr[1], end, meta);
+            } else if (type == fourcc("ipma")) {
+                readAssociations(in, end, meta);
+            } else if (type == fourcc("iinf")) {
+                readItemInfos(in, end, meta);
+            } else if (type == fourcc("iref")) {
+                readReferences(in, end, meta);
+            } else if (type == fourcc("iloc")) {
+                readLocations(in, meta);
+            } else if (type == fourcc("idat")) {
+                meta.idatOffset = hdr[1];
+            }
+            pos = end;
+        }
+    }
+
+    private static void readProperties(ImageInputStream in, long from, long to, Meta meta) throws IOException {
+        long pos = from;
+        while (pos + 8 <= to) {
+            in.seek(pos);
+            long[] hdr = header(in, pos);
+            if (hdr == null || hdr[0] <= 0) return;
+            if (hdr[2] == fourcc("ispe")) {
+                in.seek(hdr[1] + 4);
+                int w = (int) in.readUnsignedInt();
+                int h = (int) in.readUnsignedInt();
+                meta.ispe.add(new int[]{w, h});
+            } else {
+                meta.ispe.add(null);
+            }
+            pos += hdr[0];
+        }
+    }
+
+    private static void readAssociations(ImageInputStream in, long end, Meta meta) throws IOException {
+        int version = in.readUnsignedByte();
+        int flags = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+        long count = in.readUnsignedInt();
+        for (long e = 0; e < count && in.getStreamPosition() < end; e++) {
+            int item = version < 1 ? in.readUnsignedShort() : (int) in.readUnsignedInt();
+            int n = in.readUnsignedByte();
+            int[] assoc = new int[n + 1];
+            assoc[0] = item;
+            for (int i = 0; i < n; i++) {
+                assoc[i + 1] = (flags & 1) != 0 ? in.readUnsignedShort() & 0x7fff : in.readUnsignedByte() & 0x7f;
+            }
+            meta.associations.add(assoc);
+        }
+    }
+
+    private static void readItemInfos(ImageInputStream in, long end, Meta meta) throws IOException {
+        int version = in.readUnsignedByte();
+        in.skipBytes(3);
+        long count = version == 0 ? in.readUnsignedShort() : in.readUnsignedInt();
+        long pos = in.getStreamPosition();
+        for (long i = 0; i < count && pos + 8 <= end; i++) {
+            in.seek(pos);
+            long[] hdr = header(in, pos);
+            if (hdr == null || hdr[0] <= 0) return;
+            if (hdr[2] == fourcc("infe")) {
+                in.seek(hdr[1]);
+                int v = in.readUnsignedByte();
+                in.skipBytes(3);
+                // version 0/1 没有 item_type，网格图像不会用到
+                if (v >= 2) {
+                    int id = v == 2 ? in.readUnsignedShort() : (int) in.readUnsignedInt();
+                    in.skipBytes(2);
+                    meta.itemTypes.put(id, in.readInt());
+                    meta.itemOrder.add(id);
+                }
+            }
+            pos += hdr[0];
+        }
+    }
+
+    private static void readReferences(ImageInputStream in, long end, Meta meta) throws IOException {
+        int version = in.readUnsignedByte();
+        in.skipBytes(3);
+        long pos = in.getStreamPosition();
+        while (pos + 8 <= end) {
+            in.seek(pos);
+            long[] hdr = header(in, pos);
+            if (hdr == null || hdr[0] <= 0) return;
+            if (hdr[2] == fourcc("dimg")) {
+                in.seek(hdr[1]);
+                int from = version == 0 ? in.readUnsignedShort() : (int) in.readUnsignedInt();
+                int n = in.readUnsignedShort();
+                List<Integer> to = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) to.add(version == 0 ? in.readUnsignedShort() : (int) in.readUnsignedInt());
+                meta.dimg.put(from, to);
+            }
+            pos += hdr[0];
+        }
+    }
+
+    private static void readLocations(ImageInputStream in, Meta meta) throws IOException {
+        int version = in.readUnsignedByte();
+        in.skipBytes(3);
+        int b = in.readUnsignedByte();
+        int offsetSize = b >> 4, lengthSize = b & 0xf;
+        b = in.readUnsignedByte();
+        int baseOffsetSize = b >> 4, indexSize = version >= 1 ? b & 0xf : 0;
+        long count = version < 2 ? in.readUnsignedShort() : in.readUnsignedInt();
+        for (long i = 0; i < count; i++) {
+            int id = version < 2 ? in.readUnsignedShort() : (int) in.readUnsignedInt();
+            int method = version >= 1 ? in.readUnsignedShort() & 0xf : 0;
+            in.skipBytes(2);
+            long base = readSized(in, baseOffsetSize);
+            int extents = in.readUnsignedShort();
+            long first = -1, length = 0;
+            for (int e = 0; e < extents; e++) {
+                readSized(in, indexSize);
+                long off = readSized(in, offsetSize);
+                long len = readSized(in, lengthSize);
+                if (e == 0) { first = base + off; length = len; }
+            }
+            if (first >= 0) meta.locations.put(id, new long[]{method, first, length});
+        }
+    }
+
+    private static long readSized(ImageInputStream in, int bytes) throws IOException {
+        return switch (bytes) {
+            case 0 -> 0;
+            case 4 -> in.readUnsignedInt();
+            case 8 -> in.readLong();
+            default -> throw new IOException("iloc field size " + bytes);
+        };
+    }
+
+    /**
+     * 读盒子头：[总长, 内容起始位置, 类型]；size==0 表示延续到文件尾。
+     */
+    private static long[] header(ImageInputStream in, long pos) throws IOException {
+        long size = in.readUnsignedInt();
+        int type = in.readInt();
+        long body = pos + 8;
+        if (size == 1) {
+            size = in.readLong();
+            body += 8;
+        } else if (size == 0) {
+            long len = in.length();
+            size = len < 0 ? UNKNOWN_LENGTH_BOX : len - pos;
+        }
+        if (size < body - pos) return null;
+        return new long[]{size, body, type};
+    }
+
+    static int fourcc(String s) {
+        return s.charAt(0) << 24 | s.charAt(1) << 16 | s.charAt(2) << 8 | s.charAt(3);
+    }
+}
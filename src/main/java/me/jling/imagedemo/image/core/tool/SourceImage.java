@@ -0,0 +1,297 @@
+package me.jling.imagedemo.image.core.tool;
+
+import com.drew.imaging.ImageMetadataReader;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifIFD0Directory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+/**
+ * 源文件只读一次：小文件读入堆内，大文件 {@link FileChannel#map} 映射；格式嗅探、元数据与 ImageIO 解码共享同一块缓冲。
+ */
+public final class SourceImage implements AutoCloseable {
+
+    /** 超过该大小改用内存映射 */
+    static final long MAP_THRESHOLD = 256 * 1024;
+
+    private final Path path;
+    private final ByteBuffer data;
+
+    private String brands;
+    private Metadata metadata;
+    private boolean metadataRead;
+
+    private SourceImage(Path path, ByteBuffer data) {
+        this.path = path;
+        this.data = data.asReadOnlyBuffer();
+    }
+
+    public static SourceImage open(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Source too large: " + path + " (" + size + " bytes)");
+            if (size > MAP_THRESHOLD) {
+                return new SourceImage(path, ch.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            }
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining() && ch.read(buf) >= 0) { }
+            buf.flip();
+            return new SourceImage(path, buf);
+        }
+    }
+
+    public static SourceImage of(Path path, byte[] bytes) {
+        return new SourceImage(path, ByteBuffer.wrap(bytes));
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    public int size() {
+        return data.limit();
+    }
+
+    /**
+     * 只读视图，position 为 0。
+     */
+    public ByteBuffer buffer() {
+        return data.duplicate();
+    }
+
+    public InputStream newInputStream() {
+        return new ByteBufferInputStream(buffer());
+    }
+
+    public ImageInputStream newImageInputStream() {
+        return new ByteBufferImageInputStream(buffer());
+    }
+
+    /**
+     * ftyp 之后 12 字节内的品牌（小写）；非 ISOBMFF 返回空串。
+     */
+    public String ftypBrands() {
+        if (brands == null) {
+            int n = Math.min(64, data.limit());
+            if (n < 12) {
+                brands = "";
+            } else {
+                byte[] buf = new byte[n];
+                data.duplicate().get(buf);
+                String head = new String(buf, StandardCharsets.ISO_8859_1);
+                int idx = head.indexOf("ftyp");
+                brands = idx < 0 ? "" : head.substring(idx + 4, Math.min(head.length(), idx + 16)).toLowerCase();
+            }
+        }
+        return brands;
+    }
+
+    public boolean isHeifOrAvif() {
+        String b = ftypBrands();
+        return b.contains("heic") || b.contains("heix") || b.contains("heim")
+                || b.contains("hevc") || b.contains("avif");
+    }
+
+    /**
+     * metadata-extractor 结果（惰性、只解析一次）；失败时返回 null。
+     */
+    public Metadata metadata() {
+        if (!metadataRead) {
+            metadataRead = true;
+            try (InputStream in = newInputStream()) {
+                metadata = ImageMetadataReader.readMetadata(in, data.limit());
+            } catch (Exception e) {
+                metadata = null;
+            }
+        }
+        return metadata;
+    }
+
+    public int exifOrientation() {
+        Metadata md = metadata();
+        if (md == null) return 1;
+        ExifIFD0Directory d0 = md.getFirstDirectoryOfType(ExifIFD0Directory.class);
+        if (d0 == null || !d0.containsTag(ExifIFD0Directory.TAG_ORIENTATION)) return 1;
+        Integer o = d0.getInteger(ExifIFD0Directory.TAG_ORIENTATION);
+        return o == null ? 1 : o;
+    }
+
+    /**
+     * EXIF 相机厂商；没有时返回 null。
+     */
+    public String exifMake() {
+        return ifd0String(ExifIFD0Directory.TAG_MAKE);
+    }
+
+    /**
+     * EXIF 相机型号；没有时返回 null。
+     */
+    public String exifModel() {
+        return ifd0String(ExifIFD0Directory.TAG_MODEL);
+    }
+
+    private String ifd0String(int tag) {
+        Metadata md = metadata();
+        ExifIFD0Directory d0 = md == null ? null : md.getFirstDirectoryOfType(ExifIFD0Directory.class);
+        return d0 == null ? null : d0.getString(tag);
+    }
+
+    /**
+     * ImageIO.read 读完会自行关闭流；缓冲流无外部资源，未找到解码器时无需关闭。
+     */
+    public BufferedImage decodeImageIO() throws IOException {
+        return ImageIO.read(newImageInputStream());
+    }
+
+    /**
+     * 目标尺寸解码：按 maxEdge 求整数步长做 setSourceSubsampling，结果长边不小于 maxEdge（原图更小时为原尺寸）。
+     * 没有可用解码器时返回 null；maxEdge &lt;= 0 等同 {@link #decodeImageIO()}。
+     */
+    public BufferedImage decodeImageIO(int maxEdge) throws IOException {
+        if (maxEdge <= 0) return decodeImageIO();
+        return withReader(reader -> {
+            int step = Math.max(1, Math.max(reader.getWidth(0), reader.getHeight(0)) / maxEdge);
+            ImageReadParam param = reader.getDefaultReadParam();
+            if (step > 1) param.setSourceSubsampling(step, step, 0, 0);
+            return reader.read(0, param);
+        });
+    }
+
+    /**
+     * 只解码 region（存储坐标）内的像素，并按 step 子采样；没有可用解码器时返回 null。
+     */
+    public BufferedImage decodeImageIO(Rectangle region, int step) throws IOException {
+        return withReader(reader -> {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(region);
+            if (step > 1) param.setSourceSubsampling(step, step, 0, 0);
+            return reader.read(0, param);
+        });
+    }
+
+    /**
+     * ImageIO 能识别时从文件头取 [宽, 高]，否则返回 null。
+     */
+    public int[] imageIOSize() throws IOException {
+        return withReader(reader -> new int[]{reader.getWidth(0), reader.getHeight(0)});
+    }
+
+    /**
+     * HEIF 主图的网格结构；不是网格图像或解析失败时返回 null。
+     */
+    public IsoBmff.Grid heifGrid() {
+        try (ImageInputStream iis = newImageInputStream()) {
+            return IsoBmff.primaryGrid(iis);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private interface ReaderCall<T> {
+        T apply(ImageReader reader) throws IOException;
+    }
+
+    private <T> T withReader(ReaderCall<T> call) throws IOException {
+        ImageInputStream iis = newImageInputStream();
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) return null;
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(iis, true, true);
+            return call.apply(reader);
+        } finally {
+            reader.dispose();
+            iis.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        // 映射缓冲随 GC 释放；这里只丢弃派生状态
+        metadata = null;
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buf.hasRemaining()) return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int k = (int) Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + k);
+            return k;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+
+    /**
+     * 可随机访问的 ImageInputStream，直接读缓冲，不经过 ImageIO 的文件/内存缓存。
+     */
+    private static final class ByteBufferImageInputStream extends ImageInputStreamImpl {
+        private final ByteBuffer buf;
+
+        ByteBufferImageInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkClosed();
+            bitOffset = 0;
+            if (streamPos >= buf.limit()) return -1;
+            return buf.get((int) streamPos++) & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkClosed();
+            bitOffset = 0;
+            if (len == 0) return 0;
+            if (streamPos >= buf.limit()) return -1;
+            int n = (int) Math.min(len, buf.limit() - streamPos);
+            buf.get((int) streamPos, b, off, n);
+            streamPos += n;
+            return n;
+        }
+
+        @Override
+        public long length() {
+            return buf.limit();
+        }
+    }
+}
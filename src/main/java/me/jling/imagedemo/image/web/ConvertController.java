@@ -0,0 +1,118 @@
+package me.jling.imagedemo.image.web;
+
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import me.jling.imagedemo.image.core.convert.ConversionService;
+import me.jling.imagedemo.image.core.exec.ExternalToolExecutor;
+import me.jling.imagedemo.image.core.sdr.SdrEncoder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * 上传转换接口：请求线程只负责把上传落盘，转换在 {@link ConversionService} 的线程池上进行，
+ * 结果通过 DeferredResult 异步返回并以流的形式写回。
+ * <pre>
+ * POST /api/convert?format=jpg&amp;maxEdge=2048   multipart（字段 file）或 application/octet-stream
+ * </pre>
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/convert")
+@RequiredArgsConstructor
+public class ConvertController {
+
+    private final ConversionService conversions;
+
+    @Value("${image.convert.timeout-ms:300000}")
+    private long timeoutMs;
+
+    @PostMapping(consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public DeferredResult<ResponseEntity<StreamingResponseBody>> convertMultipart(
+            @RequestParam("file") MultipartFile file,
+            @RequestParam(defaultValue = "jpg") String format,
+            @RequestParam(defaultValue = "0") int maxEdge) throws IOException {
+        try (InputStream in = file.getInputStream()) {
+            return respond(conversions.convert(in, file.getOriginalFilename(), SdrEncoder.Format.parse(format), maxEdge));
+        }
+    }
+
+    @PostMapping(consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public DeferredResult<ResponseEntity<StreamingResponseBody>> convertRaw(
+            HttpServletRequest request,
+            @RequestHeader(value = "X-File-Name", required = false) String fileName,
+            @RequestParam(defaultValue = "jpg") String format,
+            @RequestParam(defaultValue = "0") int maxEdge) throws IOException {
+        // 直接读请求体落盘，不经过 multipart 解析
+        try (InputStream in = request.getInputStream()) {
+            return respond(conversions.convert(in, fileName, SdrEncoder.Format.parse(format), maxEdge));
+        }
+    }
+
+    private DeferredResult<ResponseEntity<StreamingResponseBody>> respond(CompletableFuture<ConversionService.Lease> future) {
+        DeferredResult<ResponseEntity<StreamingResponseBody>> result = new DeferredResult<>(timeoutMs);
+        result.onTimeout(() -> result.setErrorResult(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "30").body(null)));
+        future.whenComplete((lease, ex) -> {
+            if (ex != null) {
+                result.setErrorResult(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+                return;
+            }
+            ResponseEntity<StreamingResponseBody> body;
+            try {
+                body = ResponseEntity.ok()
+                        .contentType(MediaType.parseMediaType(lease.format().mediaType()))
+                        .contentLength(Files.size(lease.file()))
+                        .eTag("\"" + lease.key() + "\"")
+                        .header("X-Convert-Coalesced", String.valueOf(lease.coalesced()))
+                        .header("X-Convert-Source", lease.source().header())
+                        .body(out -> {
+                            try (lease) {
+                                Files.copy(lease.file(), out);
+                            }
+                        });
+            } catch (IOException e) {
+                lease.close();
+                result.setErrorResult(e);
+                return;
+            }
+            // 请求已超时或断开时不会再写出，这里直接释放
+            if (!result.setResult(body)) lease.close();
+        });
+        return result;
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<String> badRequest(IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(e.getMessage());
+    }
+
+    @ExceptionHandler(ExternalToolExecutor.ToolBusyException.class)
+    public ResponseEntity<String> busy(ExternalToolExecutor.ToolBusyException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "30").body(e.getMessage());
+    }
+
+    @ExceptionHandler(IOException.class)
+    public ResponseEntity<String> unprocessable(IOException e) {
+        log.warn("[convert] request failed: {}", e.toString());
+        return ResponseEntity.unprocessableContent().body(e.getMessage());
+    }
+}
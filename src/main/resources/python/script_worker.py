@@ -0,0 +1,117 @@
+"""长驻 worker：启动时加载一次脚本（连同 numpy 等依赖），之后在同一解释器里按请求执行。
+
+协议：stdin / stdout 上的帧，每帧为 4 字节大端长度 + UTF-8 JSON。
+  启动完成          -> {"ok": true, "ready": true}
+  {"op": "ping"}    -> {"ok": true}
+  {"op": "run", "args": [...]}
+                    -> {"ok": true, "exit": 0}，失败时 exit 非 0 并带 "error"
+
+脚本在顶层定义了 main() 时，启动时加载一次脚本，之后以 sys.argv = [script, *args] 调用它；
+否则启动时不执行脚本（顶层代码可能直接读 sys.argv 干活），只预先导入它顶层 import 的模块，
+每次请求再按 __main__ 执行整个脚本（已导入的模块不会重复加载）。
+脚本自身的输出（print、C 扩展直接写 fd 1）都重定向到 stderr，不会混进协议流。
+"""
+import ast
+import importlib
+import json
+import os
+import runpy
+import struct
+import sys
+import traceback
+
+
+def read_exact(stream, n):
+    buf = b""
+    while len(buf) < n:
+        chunk = stream.read(n - len(buf))
+        if not chunk:
+            return None
+        buf += chunk
+    return buf
+
+
+def send(stream, obj):
+    data = json.dumps(obj).encode("utf-8")
+    stream.write(struct.pack(">I", len(data)) + data)
+    stream.flush()
+
+
+def defines_main(tree):
+    for node in tree.body:
+        if isinstance(node, (ast.FunctionDef, ast.AsyncFunctionDef)) and node.name == "main":
+            return True
+        if isinstance(node, ast.Assign) and any(isinstance(t, ast.Name) and t.id == "main" for t in node.targets):
+            return True
+    return False
+
+
+def preload_imports(tree):
+    for node in tree.body:
+        names = []
+        if isinstance(node, ast.Import):
+            names = [a.name for a in node.names]
+        elif isinstance(node, ast.ImportFrom) and node.level == 0 and node.module:
+            names = [node.module]
+        for name in names:
+            try:
+                importlib.import_module(name)
+            except Exception:
+                pass
+
+
+def load(script):
+    """返回脚本的 main；没有 main 时不执行脚本，返回 None。"""
+    with open(script, "rb") as f:
+        tree = ast.parse(f.read(), filename=script)
+    if defines_main(tree):
+        return runpy.run_path(script, run_name="__worker__").get("main")
+    preload_imports(tree)
+    return None
+
+
+def run(script, entry, args):
+    sys.argv = [script] + [str(a) for a in args]
+    try:
+        if callable(entry):
+            rv = entry()
+            return rv if isinstance(rv, int) else 0, None
+        runpy.run_path(script, run_name="__main__")
+        return 0, None
+    except SystemExit as e:
+        if e.code is None:
+            return 0, None
+        return (e.code, None) if isinstance(e.code, int) else (1, str(e.code))
+    except Exception:
+        return 1, traceback.format_exc(limit=5)
+
+
+def main():
+    script = os.path.abspath(sys.argv[1])
+    proto_out = os.fdopen(os.dup(1), "wb")
+    os.dup2(2, 1)
+    sys.stdout = sys.stderr
+    proto_in = sys.stdin.buffer
+
+    sys.path.insert(0, os.path.dirname(script))
+    entry = load(script)
+    send(proto_out, {"ok": True, "ready": True})
+
+    while True:
+        head = read_exact(proto_in, 4)
+        if head is None:
+            return
+        body = read_exact(proto_in, struct.unpack(">I", head)[0])
+        if body is None:
+            return
+        req = json.loads(body)
+        if req.get("op") == "ping":
+            send(proto_out, {"ok": True})
+            continue
+        code, error = run(script, entry, req.get("args", []))
+        sys.stderr.flush()
+        send(proto_out, {"ok": True, "exit": code, "error": error})
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,115 @@
+package me.jling.imagedemo.image.core.batch;
+
+import me.jling.imagedemo.image.core.exec.ExternalToolExecutor;
+import me.jling.imagedemo.image.core.sdr.ConverterFixture;
+import me.jling.imagedemo.image.core.sdr.HdrSdrConverter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.UncheckedIOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BatchConverterTests {
+
+    @TempDir
+    Path dir;
+
+    private final ExternalToolExecutor exec = new ExternalToolExecutor(1, 1, 1, 1, 1, 4, 10, 4096);
+    private final BatchConverter batch = new BatchConverter(ConverterFixture.converter(exec), 4);
+
+    @AfterEach
+    void tearDown() {
+        batch.destroy();
+        exec.destroy();
+    }
+
+    @Test
+    void convertsDirectoryAndReportsFailuresPerFile() throws Exception {
+        for (int i = 0; i < 5; i++) png(dir.resolve("img" + i + ".png"), 40 + i, 30);
+        Files.writeString(dir.resolve("broken.jpg"), "not an image");
+        Files.writeString(dir.resolve("notes.txt"), "skipped by glob");
+
+        ConcurrentLinkedQueue<BatchConverter.BatchItem> items = new ConcurrentLinkedQueue<>();
+        BatchConverter.BatchSummary s = batch.convert(dir, null, items::add);
+
+        assertThat(s.total()).isEqualTo(6);
+        assertThat(s.succeeded()).isEqualTo(5);
+        assertThat(s.failed()).isEqualTo(1);
+        assertThat(items).hasSize(6);
+        assertThat(items).filteredOn(i -> !i.ok()).singleElement()
+                .satisfies(i -> assertThat(i.source().getFileName().toString()).isEqualTo("broken.jpg"));
+        assertThat(s.pixels()).isEqualTo((40 + 41 + 42 + 43 + 44) * 30L);
+    }
+
+    @Test
+    void publishesResultsAsTheyComplete() throws Exception {
+        Path a = png(dir.resolve("a.png"), 8, 8);
+        Path b = png(dir.resolve("b.png"), 16, 8);
+
+        BatchConverter.BatchJob job = batch.publish(List.of(a, b));
+        List<Path> seen = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        job.subscribe(new Flow.Subscriber<>() {
+            public void onSubscribe(Flow.Subscription s) { s.request(Long.MAX_VALUE); }
+            public void onNext(BatchConverter.BatchItem item) { seen.add(item.source()); }
+            public void onError(Throwable t) { }
+            public void onComplete() { done.countDown(); }
+        });
+
+        BatchConverter.BatchSummary s = job.summary().get(10, TimeUnit.SECONDS);
+        assertThat(s.succeeded()).isEqualTo(2);
+        assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(seen).containsExactlyInAnyOrder(a, b);
+    }
+
+    @Test
+    void directoryWalkErrorsBecomeFailedItems() throws Exception {
+        Path a = png(dir.resolve("a.png"), 8, 8);
+        Path b = png(dir.resolve("b.png"), 8, 8);
+        Iterator<Path> walk = new Iterator<>() {
+            private int i;
+
+            public boolean hasNext() {
+                if (i == 1) {
+                    i++;
+                    throw new UncheckedIOException(new AccessDeniedException(dir.resolve("locked").toString()));
+                }
+                return i < 3;
+            }
+
+            public Path next() {
+                return i++ == 0 ? a : b;
+            }
+        };
+
+        ConcurrentLinkedQueue<BatchConverter.BatchItem> items = new ConcurrentLinkedQueue<>();
+        BatchConverter.BatchSummary s = batch.run(walk, items::add);
+
+        assertThat(s.total()).isEqualTo(3);
+        assertThat(s.succeeded()).isEqualTo(2);
+        assertThat(items).filteredOn(i -> !i.ok()).singleElement()
+                .satisfies(i -> {
+                    assertThat(i.source()).isEqualTo(dir.resolve("locked"));
+                    assertThat(i.error()).isInstanceOf(AccessDeniedException.class);
+                });
+    }
+
+    private static Path png(Path p, int w, int h) throws Exception {
+        ImageIO.write(new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB), "png", p.toFile());
+        return p;
+    }
+}
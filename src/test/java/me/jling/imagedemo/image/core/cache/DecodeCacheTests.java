@@ -0,0 +1,104 @@
+package me.jling.imagedemo.image.core.cache;
+
+import me.jling.imagedemo.image.core.tool.SourceImage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DecodeCacheTests {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void contentKeyFollowsBytesNotPath() throws Exception {
+        DecodeCache cache = new DecodeCache(1 << 20, false, 16);
+        Path a = Files.writeString(dir.resolve("a.heic"), "same bytes");
+        Path b = Files.writeString(dir.resolve("b.heic"), "same bytes");
+        Path c = Files.writeString(dir.resolve("c.heic"), "other bytes");
+
+        assertThat(cache.contentKey(a)).isEqualTo(cache.contentKey(b)).isNotEqualTo(cache.contentKey(c));
+
+        String before = cache.contentKey(a);
+        Files.writeString(a, "changed bytes");
+        assertThat(cache.contentKey(a)).isNotEqualTo(before);
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedByPixelBytes() throws Exception {
+        // 100×100 TYPE_INT_RGB = 40 000 字节，容量只够两张
+        DecodeCache cache = new DecodeCache(100_000, false, 16);
+        AtomicInteger loads = new AtomicInteger();
+        DecodeCache.Loader<BufferedImage> loader = () -> {
+            loads.incrementAndGet();
+            return new BufferedImage(100, 100, BufferedImage.TYPE_INT_RGB);
+        };
+
+        cache.image("a", loader);
+        cache.image("b", loader);
+        cache.image("a", loader);   // a 变为最近使用
+        cache.image("c", loader);   // 挤出 b
+        cache.image("a", loader);
+        cache.image("b", loader);
+
+        DecodeCache.Stats stats = cache.stats();
+        assertThat(loads.get()).isEqualTo(4);
+        assertThat(stats.hits()).isEqualTo(2);
+        assertThat(stats.misses()).isEqualTo(4);
+        assertThat(stats.evictions()).isEqualTo(2);
+        assertThat(stats.entries()).isEqualTo(2);
+        assertThat(stats.bytes()).isEqualTo(80_000);
+    }
+
+    @Test
+    void hashingAnOpenSourceRecordsThePathStamp() throws Exception {
+        DecodeCache cache = new DecodeCache(1 << 20, false, 16);
+        Path a = Files.writeString(dir.resolve("a.heic"), "some bytes");
+        assertThat(cache.knownContentKey(a)).isNull();
+
+        String hash;
+        try (SourceImage src = SourceImage.open(a)) {
+            hash = cache.contentKey(src);
+        }
+        assertThat(cache.knownContentKey(a)).isEqualTo(hash).isEqualTo(cache.contentKey(a));
+
+        Files.writeString(a, "other bytes, other size");
+        assertThat(cache.knownContentKey(a)).isNull();
+        assertThat(cache.contentKey(a)).isNotEqualTo(hash);
+    }
+
+    @Test
+    void hitsShareTheCachedImage() throws Exception {
+        DecodeCache cache = new DecodeCache(1 << 20, false, 16);
+        BufferedImage first = cache.image("k", () -> new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB));
+
+        assertThat(cache.image("k", () -> null)).isSameAs(first);
+        assertThat(cache.peek("k")).isSameAs(first);
+        assertThat(cache.stats().bytes()).isEqualTo(8 * 8 * 4);
+    }
+
+    @Test
+    void cachesImageInfoAndSkipsNullMeta() throws Exception {
+        DecodeCache cache = new DecodeCache(-1, false, 16);
+        Path p = dir.resolve("x.png");
+        ImageIO.write(new BufferedImage(30, 20, BufferedImage.TYPE_INT_RGB), "png", p.toFile());
+
+        assertThat(cache.imageInfo(p).width()).isEqualTo(30);
+        assertThat(cache.imageInfo(p).height()).isEqualTo(20);
+
+        AtomicInteger calls = new AtomicInteger();
+        cache.meta("probe", "k", () -> { calls.incrementAndGet(); return null; });
+        cache.meta("probe", "k", () -> { calls.incrementAndGet(); return null; });
+
+        assertThat(calls.get()).isEqualTo(2);
+        assertThat(cache.stats().metaHits()).isEqualTo(1);
+        assertThat(cache.stats().metaMisses()).isEqualTo(3);
+    }
+}
@@ -0,0 +1,201 @@
+package me.jling.imagedemo.image.core.convert;
+
+import me.jling.imagedemo.image.core.exec.ExternalToolExecutor;
+import me.jling.imagedemo.image.core.sdr.ConverterFixture;
+import me.jling.imagedemo.image.core.sdr.HdrSdrConverter;
+import me.jling.imagedemo.image.core.store.DerivedStore;
+import me.jling.imagedemo.image.core.sdr.SdrEncoder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ConversionServiceTests {
+
+    @TempDir
+    Path dir;
+
+    private final ExternalToolExecutor exec = new ExternalToolExecutor(1, 1, 1, 1, 1, 4, 10, 4096);
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private final AtomicInteger calls = new AtomicInteger();
+
+    /** 转换被 gate 挡住，便于在“在途”期间发起重复请求 */
+    private final HdrSdrConverter converter = ConverterFixture.with(exec).build((p, out, format, maxEdge) -> {
+        calls.incrementAndGet();
+        try {
+            gate.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        byte[] in = Files.readAllBytes(p);
+        if (new String(in, StandardCharsets.UTF_8).equals("broken")) throw new IOException("cannot decode");
+        out.write(in);
+    });
+
+    @AfterEach
+    void tearDown() {
+        exec.destroy();
+    }
+
+    @Test
+    void identicalUploadsShareOneConversion() throws Exception {
+        ConversionService service = new ConversionService(converter, DerivedStore.disabled(), dir.toString(), 4);
+        try {
+            CompletableFuture<ConversionService.Lease> a = upload(service, "same", 0);
+            CompletableFuture<ConversionService.Lease> b = upload(service, "same", 0);
+            CompletableFuture<ConversionService.Lease> c = upload(service, "other", 0);
+            CompletableFuture<ConversionService.Lease> d = upload(service, "same", 512);
+            gate.countDown();
+
+            ConversionService.Lease la = a.get(10, TimeUnit.SECONDS);
+            ConversionService.Lease lb = b.get(10, TimeUnit.SECONDS);
+            c.get(10, TimeUnit.SECONDS).close();
+            d.get(10, TimeUnit.SECONDS).close();
+
+            assertThat(calls.get()).isEqualTo(3);
+            assertThat(la.source()).isEqualTo(ConversionService.Source.CONVERTED);
+            assertThat(lb.source()).isEqualTo(ConversionService.Source.COALESCED);
+            assertThat(lb.coalesced()).isTrue();
+            assertThat(lb.file()).isEqualTo(la.file());
+            assertThat(Files.readString(la.file())).isEqualTo("same");
+
+            Path out = la.file();
+            la.close();
+            assertThat(out).exists();
+            lb.close();
+            assertThat(out).doesNotExist();
+            assertThat(service.inFlight()).isZero();
+            try (var files = Files.list(dir)) {
+                assertThat(files).isEmpty();
+            }
+        } finally {
+            service.destroy();
+        }
+    }
+
+    @Test
+    void failuresReachEveryWaiterAndLeaveNothingBehind() throws Exception {
+        ConversionService service = new ConversionService(converter, DerivedStore.disabled(), dir.toString(), 2);
+        try {
+            CompletableFuture<ConversionService.Lease> a = upload(service, "broken", 0);
+            CompletableFuture<ConversionService.Lease> b = upload(service, "broken", 0);
+            gate.countDown();
+
+            assertThatThrownBy(() -> a.get(10, TimeUnit.SECONDS)).isInstanceOf(ExecutionException.class)
+                    .hasRootCauseInstanceOf(IOException.class);
+            assertThatThrownBy(() -> b.get(10, TimeUnit.SECONDS)).isInstanceOf(ExecutionException.class);
+            assertThat(calls.get()).isEqualTo(1);
+            assertThat(service.inFlight()).isZero();
+            try (var files = Files.list(dir)) {
+                assertThat(files).isEmpty();
+            }
+        } finally {
+            service.destroy();
+        }
+    }
+
+    @Test
+    void requestsAfterAFailureStartAFreshConversion() throws Exception {
+        ConversionService service = new ConversionService(converter, DerivedStore.disabled(), dir.toString(), 2);
+        try {
+            CompletableFuture<ConversionService.Lease> a = upload(service, "broken", 0);
+            CompletableFuture<ConversionService.Lease> b = upload(service, "broken", 0);
+            // 在其他等待者的租约释放前发起重试
+            CompletableFuture<CompletableFuture<ConversionService.Lease>> retry = b.handle((lease, ex) -> {
+                try {
+                    return upload(service, "broken", 0);
+                } catch (IOException e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+            });
+            gate.countDown();
+
+            assertThatThrownBy(() -> a.get(10, TimeUnit.SECONDS)).isInstanceOf(ExecutionException.class);
+            CompletableFuture<ConversionService.Lease> again = retry.get(10, TimeUnit.SECONDS);
+            assertThatThrownBy(() -> again.get(10, TimeUnit.SECONDS)).isInstanceOf(ExecutionException.class);
+            assertThat(calls.get()).isEqualTo(2);
+            assertThat(service.inFlight()).isZero();
+        } finally {
+            service.destroy();
+        }
+    }
+
+    @Test
+    void storedResultsAreServedAfterRestartWithoutConverting() throws Exception {
+        Path storeDir = dir.resolve("store");
+        gate.countDown();
+
+        DerivedStore store = new DerivedStore(storeDir.toString(), 1 << 20, false);
+        ConversionService first = new ConversionService(converter, store, dir.resolve("spool").toString(), 2);
+        try (ConversionService.Lease lease = upload(first, "persist me", 0).get(10, TimeUnit.SECONDS)) {
+            assertThat(lease.file()).startsWith(storeDir);
+        } finally {
+            first.destroy();
+            store.destroy();
+        }
+
+        DerivedStore reopened = new DerivedStore(storeDir.toString(), 1 << 20, false);
+        ConversionService second = new ConversionService(converter, reopened, dir.resolve("spool").toString(), 2);
+        try (ConversionService.Lease lease = upload(second, "persist me", 0).get(10, TimeUnit.SECONDS)) {
+            assertThat(Files.readString(lease.file())).isEqualTo("persist me");
+            assertThat(lease.source()).isEqualTo(ConversionService.Source.STORE);
+            assertThat(lease.coalesced()).isFalse();
+        } finally {
+            second.destroy();
+            reopened.destroy();
+        }
+        assertThat(calls.get()).isEqualTo(1);
+        try (var files = Files.list(dir.resolve("spool"))) {
+            assertThat(files).isEmpty();
+        }
+    }
+
+    @Test
+    void storedResultsAreKeyedByEncodeOptions() throws Exception {
+        gate.countDown();
+        DerivedStore store = new DerivedStore(dir.resolve("store").toString(), 1 << 20, false);
+        HdrSdrConverter lowQuality = ConverterFixture.with(exec).set("jpegQuality", 0.5f).build((p, out, format, maxEdge) -> {
+            calls.incrementAndGet();
+            out.write("low".getBytes(StandardCharsets.UTF_8));
+        });
+        ConversionService first = new ConversionService(converter, store, dir.resolve("spool").toString(), 2);
+        ConversionService second = new ConversionService(lowQuality, store, dir.resolve("spool").toString(), 2);
+        try {
+            try (ConversionService.Lease lease = upload(first, "photo", 0).get(10, TimeUnit.SECONDS)) {
+                assertThat(lease.source()).isEqualTo(ConversionService.Source.CONVERTED);
+            }
+            try (ConversionService.Lease lease = upload(second, "photo", 0).get(10, TimeUnit.SECONDS)) {
+                assertThat(lease.source()).isEqualTo(ConversionService.Source.CONVERTED);
+                assertThat(Files.readString(lease.file())).isEqualTo("low");
+            }
+            try (ConversionService.Lease lease = upload(first, "photo", 0).get(10, TimeUnit.SECONDS)) {
+                assertThat(lease.source()).isEqualTo(ConversionService.Source.STORE);
+                assertThat(Files.readString(lease.file())).isEqualTo("photo");
+            }
+            assertThat(calls.get()).isEqualTo(2);
+        } finally {
+            first.destroy();
+            second.destroy();
+            store.destroy();
+        }
+    }
+
+    private static CompletableFuture<ConversionService.Lease> upload(ConversionService service, String content,
+                                                                    int maxEdge) throws IOException {
+        return service.convert(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), "photo.HEIC",
+                SdrEncoder.Format.JPEG, maxEdge);
+    }
+}
@@ -0,0 +1,68 @@
+package me.jling.imagedemo.image.core.exec;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CpuGateTests {
+
+    @Test
+    void bandsInsideTheGateRunOnAPoolSizedToItsLimit() throws Exception {
+        CpuGate gate = new CpuGate(2);
+        AtomicInteger running = new AtomicInteger(), peak = new AtomicInteger();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        Set<ForkJoinPool> nested = ConcurrentHashMap.newKeySet();
+
+        ForkJoinPool pool = gate.call(() -> {
+            ForkJoinPool p = CpuGate.bandPool();
+            p.invoke(new Split(0, 64, () -> {
+                peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                threads.add(Thread.currentThread().getName());
+                nested.add(CpuGate.bandPool());
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+            }));
+            return p;
+        });
+
+        assertThat(pool).isNotSameAs(ForkJoinPool.commonPool());
+        assertThat(pool.getParallelism()).isEqualTo(2);
+        assertThat(peak.get()).isLessThanOrEqualTo(2);
+        assertThat(threads).allMatch(n -> n.startsWith("cpu-band-"));
+        assertThat(nested).containsExactly(pool);
+        assertThat(CpuGate.bandPool()).isSameAs(ForkJoinPool.commonPool());
+    }
+
+    // 只在进程内 fork/join，不会被序列化
+    @SuppressWarnings("serial")
+    private static final class Split extends RecursiveAction {
+        private final int lo, hi;
+        private final Runnable leaf;
+
+        Split(int lo, int hi, Runnable leaf) {
+            this.lo = lo;
+            this.hi = hi;
+            this.leaf = leaf;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= 1) {
+                leaf.run();
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new Split(lo, mid, leaf), new Split(mid, hi, leaf));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package me.jling.imagedemo.image.core.exec;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ExternalToolExecutorTests {
+
+    private final ExternalToolExecutor exec = new ExternalToolExecutor(1, 1, 1, 1, 1, 0, 1, 1024);
+
+    @AfterEach
+    void tearDown() {
+        exec.destroy();
+    }
+
+    @Test
+    void capturesOutputUpToCap() throws Exception {
+        var res = exec.run(ExternalToolExecutor.Tool.FFPROBE,
+                List.of("sh", "-c", "head -c 5000 /dev/zero | tr '\\0' x; echo"), 10);
+
+        assertThat(res.exitCode()).isZero();
+        assertThat(res.truncated()).isTrue();
+        assertThat(res.output()).hasSize(1024);
+    }
+
+    @Test
+    void deadlineKillsHungProcessEvenWhileOutputIsOpen() {
+        long start = System.nanoTime();
+
+        assertThatThrownBy(() -> exec.run(ExternalToolExecutor.Tool.FFMPEG, List.of("sh", "-c", "sleep 30"), 1))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("timeout");
+        assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)).isLessThan(10);
+        assertThat(exec.available(ExternalToolExecutor.Tool.FFMPEG)).isEqualTo(1);
+    }
+
+    @Test
+    void rejectsWhenPermitsAndQueueAreExhausted() throws Exception {
+        CompletableFuture<ExternalToolExecutor.Result> busy =
+                exec.submit(ExternalToolExecutor.Tool.PYTHON, List.of("sh", "-c", "sleep 30"), 60);
+        while (exec.available(ExternalToolExecutor.Tool.PYTHON) > 0) Thread.sleep(10);
+
+        assertThatThrownBy(() -> exec.run(ExternalToolExecutor.Tool.PYTHON, List.of("true"), 5))
+                .isInstanceOf(ExternalToolExecutor.ToolBusyException.class);
+
+        busy.cancel(true);
+        assertThatThrownBy(busy::join).isInstanceOf(CancellationException.class);
+        long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (exec.available(ExternalToolExecutor.Tool.PYTHON) == 0 && System.nanoTime() < until) Thread.sleep(10);
+        assertThat(exec.available(ExternalToolExecutor.Tool.PYTHON)).isEqualTo(1);
+    }
+}
@@ -0,0 +1,78 @@
+package me.jling.imagedemo.image.core.exec;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MemoryBudgetTests {
+
+    private static final long MIB = 1 << 20;
+
+    @Test
+    void waitersAreAdmittedWhenMemoryIsReturned() throws Exception {
+        MemoryBudget budget = new MemoryBudget(10 * MIB, -1, 5_000);
+        MemoryBudget.Reservation big = budget.reserve(8 * MIB);
+        assertThat(budget.available()).isEqualTo(2 * MIB);
+
+        CompletableFuture<MemoryBudget.Reservation> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return budget.reserve(4 * MIB);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertThat(waiting).isNotDone();
+
+        big.close();
+        big.close();
+        try (MemoryBudget.Reservation r = waiting.get(5, TimeUnit.SECONDS)) {
+            assertThat(r.bytes()).isEqualTo(4 * MIB);
+            assertThat(budget.available()).isEqualTo(6 * MIB);
+        }
+        assertThat(budget.available()).isEqualTo(10 * MIB);
+    }
+
+    @Test
+    void timesOutAsBusyAndClampsOversizeRequests() throws Exception {
+        MemoryBudget budget = new MemoryBudget(4 * MIB, -1, 50);
+        assertThat(budget.fits(5 * MIB)).isFalse();
+
+        try (MemoryBudget.Reservation all = budget.reserve(100 * MIB)) {
+            assertThat(all.bytes()).isEqualTo(4 * MIB);
+            assertThatThrownBy(() -> budget.reserve(1))
+                    .isInstanceOf(MemoryBudget.BudgetBusyException.class)
+                    .isInstanceOf(ExternalToolExecutor.ToolBusyException.class);
+        }
+
+        MemoryBudget off = MemoryBudget.disabled();
+        assertThat(off.fits(new MemoryBudget.Demand(Long.MAX_VALUE, Long.MAX_VALUE))).isTrue();
+        assertThat(off.fits(Long.MAX_VALUE)).isTrue();
+        assertThat(off.reserve(Long.MAX_VALUE).bytes()).isZero();
+    }
+
+    @Test
+    void heapAndDirectMemoryAreBudgetedSeparately() throws Exception {
+        MemoryBudget budget = new MemoryBudget(8 * MIB, 6 * MIB, 50);
+        assertThat(budget.fits(new MemoryBudget.Demand(8 * MIB, 6 * MIB))).isTrue();
+        assertThat(budget.fits(new MemoryBudget.Demand(MIB, 7 * MIB))).isFalse();
+
+        try (MemoryBudget.Reservation r = budget.reserve(new MemoryBudget.Demand(2 * MIB, 6 * MIB))) {
+            assertThat(r.bytes()).isEqualTo(2 * MIB);
+            assertThat(r.directBytes()).isEqualTo(6 * MIB);
+            // 堆还有余量也要等直接内存；等不到时已拿到的堆归还
+            assertThatThrownBy(() -> budget.reserve(new MemoryBudget.Demand(MIB, MIB)))
+                    .isInstanceOf(MemoryBudget.BudgetBusyException.class)
+                    .hasMessageContaining("direct");
+            assertThat(budget.available()).isEqualTo(6 * MIB);
+            // 只占堆的请求不受影响
+            budget.reserve(6 * MIB).close();
+        }
+        assertThat(budget.available()).isEqualTo(8 * MIB);
+        assertThat(budget.directAvailable()).isEqualTo(6 * MIB);
+    }
+}
@@ -0,0 +1,172 @@
+package me.jling.imagedemo.image.core.exec;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PythonWorkerPoolTests {
+
+    /** 模块导入时记一次加载；按第一个参数模拟成功、失败退出、崩溃、卡死，stdout 上的输出不得干扰协议 */
+    private static final String STUB = """
+            import os, sys, time
+            with open(os.path.join(os.path.dirname(__file__), "loads"), "a") as f:
+                f.write("x")
+
+            def main():
+                src, out = sys.argv[1], sys.argv[2]
+                print("noise on stdout")
+                if src == "crash":
+                    os._exit(3)
+                if src == "hang":
+                    time.sleep(60)
+                if src == "fail":
+                    sys.exit(2)
+                with open(out, "w") as f:
+                    f.write(str(os.getpid()))
+
+            if __name__ == "__main__":
+                main()
+            """;
+
+    /** 没有 main()：顶层代码直接读 sys.argv，启动时执行就会因缺参数而崩溃 */
+    private static final String NO_MAIN = """
+            import os, sys
+            src, out = sys.argv[1], sys.argv[2]
+            with open(out, "w") as f:
+                f.write(str(os.getpid()))
+            """;
+
+    @TempDir
+    Path dir;
+
+    private final ExternalToolExecutor exec = new ExternalToolExecutor(1, 1, 1, 1, 1, 4, 10, 4096);
+    private final List<String> outcomes = new CopyOnWriteArrayList<>();
+    private PythonWorkerPool pool;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        exec.addListener((tool, outcome, nanos) -> outcomes.add(tool + ":" + outcome));
+        Path script = Files.writeString(dir.resolve("merge.py"), STUB);
+        pool = new PythonWorkerPool(exec, "python3", script.toString(), 1, 0, 30, 1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.destroy();
+        exec.destroy();
+    }
+
+    @Test
+    void reusesWarmWorkerAcrossRequests() throws Exception {
+        String pid = null;
+        for (int i = 0; i < 3; i++) {
+            assertThat(pool.run(List.of("ok", dir.resolve("out" + i).toString()), 10)).isZero();
+            String p = Files.readString(dir.resolve("out" + i));
+            if (pid != null) assertThat(p).isEqualTo(pid);
+            pid = p;
+        }
+        assertThat(pool.run(List.of("fail", dir.resolve("x").toString()), 10)).isEqualTo(2);
+
+        assertThat(Files.readString(dir.resolve("loads"))).isEqualTo("x");
+        assertThat(pool.restarts()).isZero();
+        // 与逐次启动 python 一样经执行器的监听器上报
+        assertThat(outcomes).containsExactly("PYTHON:0", "PYTHON:0", "PYTHON:0", "PYTHON:2");
+    }
+
+    @Test
+    void scriptsWithoutMainRunOnEachRequest() throws Exception {
+        Path script = Files.writeString(dir.resolve("plain.py"), NO_MAIN);
+        PythonWorkerPool plain = new PythonWorkerPool(exec, "python3", script.toString(), 1, 0, 30, 1);
+        try {
+            assertThat(plain.run(List.of("ok", dir.resolve("a").toString()), 10)).isZero();
+            assertThat(plain.run(List.of("ok", dir.resolve("b").toString()), 10)).isZero();
+
+            assertThat(Files.readString(dir.resolve("a"))).isEqualTo(Files.readString(dir.resolve("b")));
+            assertThat(plain.restarts()).isZero();
+        } finally {
+            plain.destroy();
+        }
+    }
+
+    @Test
+    void restartsAfterCrashAndTimeout() throws Exception {
+        assertThat(pool.run(List.of("ok", dir.resolve("a").toString()), 10)).isZero();
+
+        assertThatThrownBy(() -> pool.run(List.of("crash", dir.resolve("x").toString()), 10))
+                .isInstanceOf(IOException.class);
+        assertThat(pool.run(List.of("ok", dir.resolve("b").toString()), 10)).isZero();
+
+        long t0 = System.nanoTime();
+        assertThatThrownBy(() -> pool.run(List.of("hang", dir.resolve("x").toString()), 1))
+                .isInstanceOf(IOException.class);
+        assertThat((System.nanoTime() - t0) / 1_000_000).isLessThan(10_000);
+        assertThat(pool.run(List.of("ok", dir.resolve("c").toString()), 10)).isZero();
+
+        assertThat(pool.restarts()).isEqualTo(2);
+        assertThat(outcomes).containsExactly("PYTHON:0", "PYTHON:error", "PYTHON:0", "PYTHON:timeout", "PYTHON:0");
+        assertThat(Files.readString(dir.resolve("a"))).isNotEqualTo(Files.readString(dir.resolve("b")));
+        assertThat(Files.readString(dir.resolve("b"))).isNotEqualTo(Files.readString(dir.resolve("c")));
+    }
+
+    @Test
+    void healthCheckReplacesDeadIdleWorker() throws Exception {
+        assertThat(pool.run(List.of("ok", dir.resolve("a").toString()), 10)).isZero();
+        long pid = Long.parseLong(Files.readString(dir.resolve("a")));
+        ProcessHandle.of(pid).ifPresent(h -> {
+            h.destroyForcibly();
+            h.onExit().join();
+        });
+
+        pool.healthCheck();
+
+        assertThat(pool.restarts()).isEqualTo(1);
+        assertThat(pool.run(List.of("ok", dir.resolve("b").toString()), 10)).isZero();
+        assertThat(Long.parseLong(Files.readString(dir.resolve("b")))).isNotEqualTo(pid);
+    }
+
+    @Test
+    void stalledPingDoesNotBlockRequestTimeouts() throws Exception {
+        Path script = dir.resolve("merge.py");
+        PythonWorkerPool checked = new PythonWorkerPool(exec, "python3", script.toString(), 2, 1, 30, 5);
+        try {
+            // 两次请求依次借到两个 worker
+            assertThat(checked.run(List.of("ok", dir.resolve("a").toString()), 10)).isZero();
+            assertThat(checked.run(List.of("ok", dir.resolve("b").toString()), 10)).isZero();
+            long stalled = Long.parseLong(Files.readString(dir.resolve("a")));
+            new ProcessBuilder("kill", "-STOP", String.valueOf(stalled)).start().waitFor();
+            // 等健康检查拿到停住的 worker 并卡在 ping 上
+            Thread.sleep(2_000);
+
+            CompletableFuture<Throwable> hang = CompletableFuture.supplyAsync(() -> {
+                try {
+                    checked.run(List.of("hang", dir.resolve("x").toString()), 1);
+                    return null;
+                } catch (Throwable t) {
+                    return t;
+                }
+            });
+            assertThat(hang.get(5, TimeUnit.SECONDS)).isInstanceOf(IOException.class);
+
+            // ping 超时后停住的 worker 被杀掉
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (ProcessHandle.of(stalled).map(ProcessHandle::isAlive).orElse(false) && System.nanoTime() < deadline) {
+                Thread.sleep(100);
+            }
+            assertThat(ProcessHandle.of(stalled).map(ProcessHandle::isAlive).orElse(false)).isFalse();
+        } finally {
+            checked.destroy();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package me.jling.imagedemo.image.core.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.observation.DefaultMeterObservationHandler;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import me.jling.imagedemo.image.core.exec.ExternalToolExecutor;
+import me.jling.imagedemo.image.core.sdr.ConverterFixture;
+import me.jling.imagedemo.image.core.sdr.HdrSdrConverter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PipelineMetricsTests {
+
+    @TempDir
+    Path dir;
+
+    private final ExternalToolExecutor exec = new ExternalToolExecutor(1, 1, 1, 1, 1, 4, 10, 4096);
+    private final MeterRegistry meters = new SimpleMeterRegistry();
+    private PipelineMetrics metrics;
+    private HdrSdrConverter converter;
+
+    @BeforeEach
+    void setUp() {
+        ObservationRegistry observations = ObservationRegistry.create();
+        observations.observationConfig().observationHandler(new DefaultMeterObservationHandler(meters));
+        metrics = new PipelineMetrics(meters, observations, exec);
+        converter = ConverterFixture.with(exec).metrics(metrics).build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        exec.destroy();
+    }
+
+    @Test
+    void imageIODecodeRecordsStagesAndPath() throws Exception {
+        Path p = dir.resolve("in.png");
+        ImageIO.write(new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB), "png", p.toFile());
+
+        converter.readNormalized(p, 20);
+
+        assertThat(meters.get(PipelineMetrics.PATH).tag("path", "imageio").counter().count()).isEqualTo(1);
+        assertThat(meters.get(PipelineMetrics.STAGE).tag("stage", "imageio").timer().count()).isEqualTo(1);
+        assertThat(meters.get(PipelineMetrics.STAGE).tag("stage", "resize").timer().count()).isEqualTo(1);
+        assertThat(meters.get(PipelineMetrics.DECODE).tag("path", "imageio").timer().count()).isEqualTo(1);
+        assertThat(meters.find(PipelineMetrics.TOOL_RUNS).counters()).isEmpty();
+    }
+
+    @Test
+    void failedFallbackChainRecordsSpawnsMismatchAndFailure() throws Exception {
+        // 首个流 100x100 为期望尺寸、最大流 400x400：比例 4，触发尺寸不符；heif-convert 失败（只尝试一次）
+        Path ffprobe = script("ffprobe", "echo '{\"streams\":["
+                + "{\"index\":0,\"codec_type\":\"video\",\"width\":100,\"height\":100},"
+                + "{\"index\":1,\"codec_type\":\"video\",\"width\":400,\"height\":400}]}'");
+        Path heifConvert = script("heif-convert", "exit 3");
+        converter = ConverterFixture.with(exec).metrics(metrics)
+                .ffprobe(ffprobe).ffmpeg(script("ffmpeg", "exit 1")).heifConvert(heifConvert).build();
+        Path heic = Files.write(dir.resolve("x.heic"), new byte[]{0, 0, 0, 24, 'f', 't', 'y', 'p', 'h', 'e', 'i', 'c',
+                0, 0, 0, 0, 'm', 'i', 'f', '1', 'h', 'e', 'i', 'c'});
+
+        assertThatThrownBy(() -> converter.readNormalized(heic, 0)).isInstanceOf(IOException.class);
+
+        assertThat(meters.get(PipelineMetrics.TOOL_RUNS).tags("tool", "ffprobe", "exit", "0").counter().count()).isEqualTo(1);
+        assertThat(meters.get(PipelineMetrics.TOOL_RUNS).tags("tool", "heif-convert", "exit", "3").counter().count()).isEqualTo(1);
+        assertThat(meters.get(PipelineMetrics.MISMATCH).counter().count()).isEqualTo(1);
+        assertThat(meters.get(PipelineMetrics.PATH).tag("path", "failed").counter().count()).isEqualTo(1);
+        assertThat(meters.get(PipelineMetrics.STAGE).tag("stage", "heif-convert").timer().count()).isEqualTo(1);
+        assertThat(meters.find(PipelineMetrics.STAGE).tag("stage", "ffmpeg-fallback").timer()).isNull();
+    }
+
+    private Path script(String name, String body) throws IOException {
+        Path p = dir.resolve(name);
+        Files.writeString(p, "#!/bin/sh\n" + body + "\n");
+        Files.setPosixFilePermissions(p, PosixFilePermissions.fromString("rwxr-xr-x"));
+        return p;
+    }
+}
@@ -0,0 +1,87 @@
+package me.jling.imagedemo.image.core.route;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DecodeRouterTests {
+
+    private static final List<String> DEFAULTS = List.of("a", "b", "c", "d");
+    private static final DecodeRouter.Signature IPHONE =
+            new DecodeRouter.Signature("heicmif1", "Apple", "iPhone 15 Pro", "gainmap", "v50-g48");
+    private static final DecodeRouter.Signature CANON =
+            new DecodeRouter.Signature("jpg", "Canon", "EOS R5", "-", "-");
+
+    @Test
+    void keepsDefaultOrderUntilEnoughSamples() {
+        DecodeRouter router = new DecodeRouter(true, 0, 5, 0.1, 16);
+        assertThat(router.order(IPHONE, DEFAULTS)).isEqualTo(DEFAULTS);
+
+        record(router, IPHONE, "a", 4, 0, 1_000_000);
+        assertThat(router.order(IPHONE, DEFAULTS)).isEqualTo(DEFAULTS);
+    }
+
+    @Test
+    void movesKnownBadToTailAndReordersByYieldPerCost() {
+        DecodeRouter router = new DecodeRouter(true, 0, 5, 0.1, 16);
+        record(router, IPHONE, "a", 10, 0, 1_000_000);
+        // b：一半成功、每次 100ms；d：全部成功、每次 10ms
+        record(router, IPHONE, "b", 10, 5, 100_000_000);
+        record(router, IPHONE, "d", 10, 10, 10_000_000);
+
+        // c 没有样本，留在原位
+        assertThat(router.order(IPHONE, DEFAULTS)).containsExactly("d", "c", "b", "a");
+        // 其他特征不受影响
+        assertThat(router.order(CANON, DEFAULTS)).isEqualTo(DEFAULTS);
+    }
+
+    @Test
+    void pinnedHdrPathStaysAheadOfFasterSdrPaths() {
+        List<String> strategies = List.of("imageio", "hdr", "heif-thumbnail", "heif-convert", "ffmpeg");
+        DecodeRouter.Signature pq = new DecodeRouter.Signature("heicmif1", "Apple", "iPhone 15 Pro", "smpte2084", "v1");
+        DecodeRouter router = new DecodeRouter(true, 0, 5, 0.1, 16);
+        record(router, pq, "imageio", 10, 0, 1_000_000);
+        record(router, pq, "hdr", 10, 5, 400_000_000);
+        record(router, pq, "heif-convert", 10, 10, 20_000_000);
+        record(router, pq, "ffmpeg", 10, 10, 50_000_000);
+
+        // 不固定时 heif-convert 更快更稳，会排到 hdr 前面
+        assertThat(router.order(pq, strategies).indexOf("heif-convert"))
+                .isLessThan(router.order(pq, strategies).indexOf("hdr"));
+        // 固定后 hdr 仍在所有只出 SDR 的路径之前，其后的路径照常按统计重排
+        assertThat(router.order(pq, strategies, Set.of("hdr")))
+                .containsExactly("hdr", "heif-thumbnail", "heif-convert", "ffmpeg", "imageio");
+
+        // 成功率低也不挪到末尾
+        record(router, pq, "hdr", 100, 0, 1_000_000);
+        assertThat(router.order(pq, strategies, Set.of("hdr")).get(0)).isEqualTo("hdr");
+    }
+
+    @Test
+    void exploresWithDefaultOrder() {
+        DecodeRouter router = new DecodeRouter(true, 1, 1, 0.1, 16);
+        record(router, IPHONE, "a", 10, 0, 1_000_000);
+        assertThat(router.order(IPHONE, DEFAULTS)).isEqualTo(DEFAULTS);
+    }
+
+    @Test
+    void boundsSignaturesAndIgnoresRecordsWhenDisabled() {
+        DecodeRouter router = new DecodeRouter(true, 0, 1, 0.1, 1);
+        record(router, IPHONE, "a", 1, 1, 1);
+        record(router, CANON, "a", 1, 1, 1);
+        assertThat(router.stats()).containsOnlyKeys(IPHONE);
+
+        DecodeRouter off = DecodeRouter.disabled();
+        record(off, IPHONE, "a", 10, 0, 1);
+        assertThat(off.stats()).isEmpty();
+        assertThat(off.order(IPHONE, DEFAULTS)).isEqualTo(DEFAULTS);
+    }
+
+    private static void record(DecodeRouter router, DecodeRouter.Signature sig, String strategy,
+                               int attempts, int successes, long nanos) {
+        for (int i = 0; i < attempts; i++) router.record(sig, strategy, i < successes, nanos);
+    }
+}
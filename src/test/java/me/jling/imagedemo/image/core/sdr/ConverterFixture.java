@@ -0,0 +1,156 @@
+package me.jling.imagedemo.image.core.sdr;
+
+import me.jling.imagedemo.image.core.cache.DecodeCache;
+import me.jling.imagedemo.image.core.exec.CpuGate;
+import me.jling.imagedemo.image.core.exec.ExternalToolExecutor;
+import me.jling.imagedemo.image.core.exec.MemoryBudget;
+import me.jling.imagedemo.image.core.exec.PythonWorkerPool;
+import me.jling.imagedemo.image.core.metrics.PipelineMetrics;
+import me.jling.imagedemo.image.core.route.DecodeRouter;
+import me.jling.imagedemo.image.core.store.DerivedStore;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 测试与基准共用的 {@link HdrSdrConverter} 构造：依赖默认全部关闭（不缓存、不限额、不复用），
+ * 外部工具默认不配置；只需按用例覆盖关心的那几项。新增依赖时只改这里。
+ */
+public final class ConverterFixture {
+
+    private ConverterFixture() {
+    }
+
+    /**
+     * 替换 {@link HdrSdrConverter#convert} 的桩。
+     */
+    @FunctionalInterface
+    public interface Convert {
+        void convert(Path p, OutputStream out, SdrEncoder.Format format, int maxEdge) throws IOException;
+    }
+
+    public static Builder with(ExternalToolExecutor exec) {
+        return new Builder(exec);
+    }
+
+    public static HdrSdrConverter converter(ExternalToolExecutor exec) {
+        return with(exec).build();
+    }
+
+    public static final class Builder {
+        private final ExternalToolExecutor exec;
+        private CpuGate cpu = new CpuGate(2);
+        private DecodeCache cache = new DecodeCache(-1, false, 0);
+        private DerivedStore store = DerivedStore.disabled();
+        private PipelineMetrics metrics = PipelineMetrics.disabled();
+        private DecodeRouter router = DecodeRouter.disabled();
+        private PythonWorkerPool python = PythonWorkerPool.disabled();
+        private MemoryBudget memory = MemoryBudget.disabled();
+        private PixelBufferPool pixels = PixelBufferPool.disabled();
+        private final Map<String, Object> fields = new LinkedHashMap<>();
+
+        private Builder(ExternalToolExecutor exec) {
+            this.exec = exec;
+            fields.put("heifCliTimeoutSec", 10);
+            for (String tool : new String[]{"ffprobePath", "ffmpegPath", "exiftoolPath", "heifConvertPath", "heifThumbnailerPath"}) {
+                fields.put(tool, "");
+            }
+        }
+
+        public Builder cpu(CpuGate cpu) {
+            this.cpu = cpu;
+            return this;
+        }
+
+        public Builder cache(DecodeCache cache) {
+            this.cache = cache;
+            return this;
+        }
+
+        public Builder store(DerivedStore store) {
+            this.store = store;
+            return this;
+        }
+
+        public Builder metrics(PipelineMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public Builder router(DecodeRouter router) {
+            this.router = router;
+            return this;
+        }
+
+        public Builder python(PythonWorkerPool python) {
+            this.python = python;
+            return this;
+        }
+
+        public Builder memory(MemoryBudget memory) {
+            this.memory = memory;
+            return this;
+        }
+
+        public Builder pixels(PixelBufferPool pixels) {
+            this.pixels = pixels;
+            return this;
+        }
+
+        /**
+         * 外部工具路径；null 或空串表示不配置。
+         */
+        public Builder ffprobe(Path path) {
+            return set("ffprobePath", path);
+        }
+
+        public Builder ffmpeg(Path path) {
+            return set("ffmpegPath", path);
+        }
+
+        public Builder exiftool(Path path) {
+            return set("exiftoolPath", path);
+        }
+
+        public Builder heifConvert(Path path) {
+            return set("heifConvertPath", path);
+        }
+
+        public Builder heifThumbnailer(Path path) {
+            return set("heifThumbnailerPath", path);
+        }
+
+        /**
+         * 覆盖一个 @Value 字段（按字段名）。
+         */
+        public Builder set(String field, Object value) {
+            fields.put(field, value instanceof Path p ? p.toString() : value == null ? "" : value);
+            return this;
+        }
+
+        public HdrSdrConverter build() {
+            return configure(new HdrSdrConverter(exec, cpu, cache, store, metrics, router, python, memory, pixels));
+        }
+
+        /**
+         * convert 换成桩的实例，其余方法保持真实实现。
+         */
+        public HdrSdrConverter build(Convert convert) {
+            return configure(new HdrSdrConverter(exec, cpu, cache, store, metrics, router, python, memory, pixels) {
+                @Override
+                public void convert(Path p, OutputStream out, SdrEncoder.Format format, int maxEdge) throws IOException {
+                    convert.convert(p, out, format, maxEdge);
+                }
+            });
+        }
+
+        private HdrSdrConverter configure(HdrSdrConverter c) {
+            fields.forEach((name, value) -> ReflectionTestUtils.setField(c, name, value));
+            return c;
+        }
+    }
+}
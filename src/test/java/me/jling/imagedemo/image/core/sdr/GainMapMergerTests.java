@@ -0,0 +1,62 @@
+package me.jling.imagedemo.image.core.sdr;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class GainMapMergerTests {
+
+    @Test
+    void zeroGainLeavesBaseUntouchedWithLinearOperator() {
+        BufferedImage base = fill(new BufferedImage(8, 6, BufferedImage.TYPE_INT_RGB), new Color(90, 120, 60));
+        BufferedImage gain = fill(new BufferedImage(4, 3, BufferedImage.TYPE_BYTE_GRAY), Color.BLACK);
+
+        BufferedImage out = GainMapMerger.merge(base, gain, GainMapMetadata.apple(4), ToneMapper.Operator.LINEAR);
+
+        assertThat(out.getRGB(5, 4) & 0xffffff).isEqualTo(0x5a783c);
+    }
+
+    @Test
+    void fullGainBrightensAndUpsamplesAcrossTheFrame() {
+        BufferedImage base = fill(new BufferedImage(16, 16, BufferedImage.TYPE_3BYTE_BGR), new Color(40, 40, 40));
+        BufferedImage gain = new BufferedImage(2, 1, BufferedImage.TYPE_BYTE_GRAY);
+        gain.getRaster().setSample(1, 0, 0, 255);
+
+        BufferedImage out = GainMapMerger.merge(base, gain, GainMapMetadata.apple(4), ToneMapper.Operator.LINEAR);
+
+        int left = out.getRGB(0, 8) & 0xff, mid = out.getRGB(8, 8) & 0xff, right = out.getRGB(15, 8) & 0xff;
+        assertThat(left).isEqualTo(40);
+        assertThat(mid).isGreaterThan(left).isLessThan(right);
+        assertThat(right).isGreaterThan(70);
+    }
+
+    @Test
+    void parsesAppleAndIsoMetadataFromExiftool() {
+        GainMapMetadata apple = GainMapMetadata.parseExiftoolJson(
+                "[{\"SourceFile\":\"a.heic\",\"HDRGainMapVersion\":65536,\"HDRHeadroom\":1.01,\"HDRGain\":0.005}]");
+        assertThat(apple.present()).isTrue();
+        assertThat(apple.appleLinearGain()).isTrue();
+        assertThat(apple.headroom()).isCloseTo(Math.pow(2, 2.65), within(1e-6));
+
+        GainMapMetadata iso = GainMapMetadata.parseExiftoolJson(
+                "[{\"SourceFile\":\"a.jpg\",\"GainMapMin\":0,\"GainMapMax\":2.5,\"Gamma\":1,\"HDRCapacityMax\":2.5}]");
+        assertThat(iso.present()).isTrue();
+        assertThat(iso.appleLinearGain()).isFalse();
+        assertThat(GainMapMerger.factorLut(iso)[4095]).isCloseTo((float) Math.pow(2, 2.5), within(1e-3f));
+
+        assertThat(GainMapMetadata.parseExiftoolJson("[{\"SourceFile\":\"a.jpg\"}]").present()).isFalse();
+    }
+
+    private static BufferedImage fill(BufferedImage img, Color c) {
+        Graphics2D g = img.createGraphics();
+        g.setColor(c);
+        g.fillRect(0, 0, img.getWidth(), img.getHeight());
+        g.dispose();
+        return img;
+    }
+}
@@ -0,0 +1,306 @@
+package me.jling.imagedemo.image.core.sdr;
+
+import me.jling.imagedemo.image.core.cache.DecodeCache;
+import me.jling.imagedemo.image.core.exec.CpuGate;
+import me.jling.imagedemo.image.core.exec.ExternalToolExecutor;
+import me.jling.imagedemo.image.core.exec.MemoryBudget;
+import me.jling.imagedemo.image.core.route.DecodeRouter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class HdrSdrConverterTests {
+
+    @TempDir
+    Path dir;
+
+    private final ExternalToolExecutor exec = new ExternalToolExecutor(1, 1, 1, 1, 1, 4, 10, 4096);
+    private final HdrSdrConverter converter = ConverterFixture.converter(exec);
+
+    @AfterEach
+    void tearDown() {
+        exec.destroy();
+    }
+
+    @Test
+    void regionDecodeMatchesCropOfFullDecode() throws Exception {
+        Path p = dir.resolve("gradient.png");
+        BufferedImage src = new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 200; y++) for (int x = 0; x < 300; x++) src.setRGB(x, y, x << 16 | y << 8 | (x ^ y) & 0xff);
+        ImageIO.write(src, "png", p.toFile());
+
+        BufferedImage region = converter.decodeRegion(p, new Rectangle(40, 30, 100, 50), 1.0);
+
+        assertThat(region.getWidth()).isEqualTo(100);
+        assertThat(region.getHeight()).isEqualTo(50);
+        for (int y = 0; y < 50; y += 7) {
+            for (int x = 0; x < 100; x += 7) {
+                assertThat(region.getRGB(x, y) & 0xffffff).isEqualTo(src.getRGB(40 + x, 30 + y) & 0xffffff);
+            }
+        }
+
+        BufferedImage half = converter.decodeRegion(p, new Rectangle(250, 150, 100, 100), 0.5);
+        assertThat(half.getWidth()).isEqualTo(25);
+        assertThat(half.getHeight()).isEqualTo(25);
+
+        assertThatThrownBy(() -> converter.decodeRegion(p, new Rectangle(400, 0, 10, 10), 1.0))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void nonGridSourcesArriveAsOneStrip() throws Exception {
+        Path p = dir.resolve("plain.png");
+        ImageIO.write(new BufferedImage(64, 48, BufferedImage.TYPE_3BYTE_BGR), "png", p.toFile());
+        List<int[]> strips = new ArrayList<>();
+
+        int[] size = converter.decodeStrips(p, 0.5, (y, rows) -> strips.add(new int[]{y, rows.getWidth(), rows.getHeight()}));
+
+        assertThat(size).containsExactly(32, 24);
+        assertThat(strips).singleElement().satisfies(s -> assertThat(s).containsExactly(0, 32, 24));
+    }
+
+    @Test
+    void convertWritesPngAtFullSizeAndJpegPreview() throws Exception {
+        Path p = dir.resolve("in.png");
+        ImageIO.write(new BufferedImage(120, 80, BufferedImage.TYPE_INT_RGB), "png", p.toFile());
+
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        converter.convert(p, png, SdrEncoder.Format.PNG, 0);
+        BufferedImage full = ImageIO.read(new ByteArrayInputStream(png.toByteArray()));
+        assertThat(full.getWidth()).isEqualTo(120);
+
+        ByteArrayOutputStream jpg = new ByteArrayOutputStream();
+        converter.convert(p, jpg, SdrEncoder.Format.JPEG, 60);
+        BufferedImage preview = ImageIO.read(new ByteArrayInputStream(jpg.toByteArray()));
+        assertThat(preview.getWidth()).isEqualTo(60);
+        assertThat(preview.getHeight()).isEqualTo(40);
+    }
+
+    @Test
+    void repeatedReadsAreServedFromDecodeCache() throws Exception {
+        DecodeCache cache = new DecodeCache(1 << 24, false, 16);
+        HdrSdrConverter cached = ConverterFixture.with(exec).cache(cache).build();
+        Path a = dir.resolve("a.png");
+        ImageIO.write(new BufferedImage(120, 80, BufferedImage.TYPE_INT_RGB), "png", a.toFile());
+        Path b = Files.copy(a, dir.resolve("copy-of-a.png"));
+
+        cached.readNormalized(a, 60);
+        BufferedImage again = cached.readNormalized(b, 60);
+        cached.readNormalized(a, 0);
+
+        assertThat(again.getWidth()).isEqualTo(60);
+        assertThat(cache.stats().hits()).isEqualTo(1);
+        assertThat(cache.stats().misses()).isEqualTo(2);
+
+        // 调用方在结果上作画不影响缓存
+        again.setRGB(0, 0, 0xff0000);
+        BufferedImage third = cached.readNormalized(a, 60);
+        assertThat(third).isNotSameAs(again);
+        assertThat(third.getRGB(0, 0) & 0xffffff).isZero();
+        assertThat(cache.stats().hits()).isEqualTo(2);
+    }
+
+    @Test
+    void routerStopsTryingPathsThatNeverWorkForASignature() throws Exception {
+        DecodeRouter router = new DecodeRouter(true, 0, 3, 0.1, 16);
+        Path png = dir.resolve("decoded.png");
+        ImageIO.write(new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB), "png", png.toFile());
+        HdrSdrConverter routed = ConverterFixture.with(exec).router(router)
+                .ffprobe(script("ffprobe", "echo '{\"streams\":[{\"index\":0,\"codec_type\":\"video\",\"width\":64,\"height\":48}]}'"))
+                .ffmpeg(script("ffmpeg", "exit 1"))
+                .heifConvert(script("heif-convert", "cp " + png + " \"$2\""))
+                .build();
+        Path heic = Files.write(dir.resolve("x.heic"), new byte[]{0, 0, 0, 24, 'f', 't', 'y', 'p', 'h', 'e', 'i', 'c',
+                0, 0, 0, 0, 'm', 'i', 'f', '1', 'h', 'e', 'i', 'c'});
+
+        for (int i = 0; i < 6; i++) {
+            assertThat(routed.readNormalized(heic, 0).getWidth()).isEqualTo(64);
+        }
+
+        // imageio / hdr 各失败 3 次后挪到末尾，之后直接由 heif-convert 解码
+        var stats = router.stats().values().iterator().next();
+        assertThat(stats).anySatisfy(s -> assertThat(s).extracting("strategy", "attempts", "successes").containsExactly("imageio", 3L, 0L));
+        assertThat(stats).anySatisfy(s -> assertThat(s).extracting("strategy", "attempts", "successes").containsExactly("hdr", 3L, 0L));
+        assertThat(stats).anySatisfy(s -> assertThat(s).extracting("strategy", "attempts", "successes").containsExactly("heif-convert", 6L, 6L));
+        assertThat(router.stats().keySet().iterator().next().layout()).isEqualTo("v1");
+    }
+
+    @Test
+    void decodesThatExceedTheMemoryBudgetAreDownscaled() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1 << 20, -1, 1_000);
+        HdrSdrConverter limited = ConverterFixture.with(exec).memory(budget).build();
+        Path p = dir.resolve("large.png");
+        ImageIO.write(new BufferedImage(1000, 800, BufferedImage.TYPE_INT_RGB), "png", p.toFile());
+        assertThat(HdrSdrConverter.estimateDecode(1000, 800, 8, 0, false).heapBytes()).isGreaterThan(budget.capacity());
+
+        BufferedImage img = limited.readOrigNormalized(p);
+
+        assertThat(img.getWidth()).isLessThan(1000);
+        assertThat(HdrSdrConverter.estimateDecode(1000, 800, 8, img.getWidth(), false).heapBytes()).isLessThanOrEqualTo(budget.capacity());
+        assertThat(budget.available()).isEqualTo(budget.capacity());
+        // 48MP 10-bit 原图远大于同一张图的 2048 预览；16-bit 帧计入直接内存，8-bit 图不占
+        MemoryBudget.Demand full = HdrSdrConverter.estimateDecode(8064, 6048, 10, 0, true);
+        MemoryBudget.Demand preview = HdrSdrConverter.estimateDecode(8064, 6048, 10, 2048, true);
+        assertThat(full.heapBytes()).isGreaterThan(4 * preview.heapBytes());
+        assertThat(full.directBytes()).isEqualTo(8064L * 6048 * 6).isGreaterThan(3 * preview.directBytes());
+        assertThat(HdrSdrConverter.estimateDecode(8064, 6048, 8, 0, true).directBytes()).isZero();
+    }
+
+    @Test
+    void probeAsksForStreamGroupsAndFallsBackOnOlderFfprobe() throws Exception {
+        String groups = "{\"streams\":[{\"index\":0,\"codec_type\":\"video\",\"width\":512,\"height\":512}],"
+                + "\"stream_groups\":[{\"index\":0,\"type\":\"Tile Grid\",\"components\":[{\"component_type\":\"Tile Grid\",\"width\":4032,\"height\":3024}]}]}";
+        assertThat(ProbeResult.parse(groups).expectedDimensions()).containsExactly(4032, 3024);
+
+        Path calls = dir.resolve("calls");
+        HdrSdrConverter old = ConverterFixture.with(exec)
+                .ffprobe(script("ffprobe", "echo \"$*\" >> " + calls + "\n"
+                        + "case \"$*\" in *-show_stream_groups*) echo \"Unrecognized option 'show_stream_groups'.\"; exit 1;; esac\n"
+                        + "echo '{\"streams\":[{\"index\":0,\"codec_type\":\"video\",\"width\":64,\"height\":48}]}'"))
+                .ffmpeg(script("ffmpeg", "exit 1"))
+                .build();
+        Path heic = Files.write(dir.resolve("x.heic"), new byte[]{0, 0, 0, 24, 'f', 't', 'y', 'p', 'h', 'e', 'i', 'c',
+                0, 0, 0, 0, 'm', 'i', 'f', '1', 'h', 'e', 'i', 'c'});
+
+        for (int i = 0; i < 2; i++) {
+            assertThatThrownBy(() -> old.readNormalized(heic, 0)).isInstanceOf(IOException.class);
+        }
+
+        // 第一次带 -show_stream_groups 被拒后重试，之后不再带
+        assertThat(Files.readAllLines(calls)).hasSize(3)
+                .satisfies(l -> assertThat(l.get(0)).contains("-show_stream_groups"))
+                .satisfies(l -> assertThat(l.subList(1, 3)).noneMatch(c -> c.contains("-show_stream_groups")));
+    }
+
+    @Test
+    void rawFramesAreReadWithoutFfmpegAutorotation() throws Exception {
+        // 4x2 的 bgr24 帧；不带 -noautorotate 时桩模拟 ffmpeg 按 irot 旋转输出的 2x4 帧（字节数相同）
+        int w = 4, h = 2;
+        byte[] upright = new byte[w * h * 3], rotated = new byte[w * h * 3];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int v = 20 * (y * w + x) + 10;
+                int ry = x, rx = h - 1 - y;
+                for (int c = 0; c < 3; c++) {
+                    upright[(y * w + x) * 3 + c] = (byte) v;
+                    rotated[(ry * h + rx) * 3 + c] = (byte) v;
+                }
+            }
+        }
+        Path good = Files.write(dir.resolve("upright.raw"), upright);
+        Path bad = Files.write(dir.resolve("rotated.raw"), rotated);
+        HdrSdrConverter c = ConverterFixture.with(exec)
+                .ffprobe(script("ffprobe", "echo '{\"streams\":[{\"index\":0,\"codec_type\":\"video\",\"width\":4,\"height\":2}]}'"))
+                .ffmpeg(script("ffmpeg", "case \"$*\" in *\"-noautorotate -i\"*) cat " + good + ";; *) cat " + bad + ";; esac"))
+                .build();
+        Path heic = Files.write(dir.resolve("x.heic"), new byte[]{0, 0, 0, 24, 'f', 't', 'y', 'p', 'h', 'e', 'i', 'c',
+                0, 0, 0, 0, 'm', 'i', 'f', '1', 'h', 'e', 'i', 'c'});
+
+        BufferedImage img = c.readNormalized(heic, 0);
+
+        assertThat(img.getWidth()).isEqualTo(w);
+        assertThat(img.getHeight()).isEqualTo(h);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) assertThat(img.getRaster().getSample(x, y, 0)).isEqualTo(20 * (y * w + x) + 10);
+        }
+    }
+
+    @Test
+    void gainMapMetadataIsReadOncePerDecodeWithoutCache() throws Exception {
+        Path frame = Files.write(dir.resolve("frame.raw"), new byte[4 * 2 * 3]);
+        Path calls = dir.resolve("calls");
+        HdrSdrConverter c = ConverterFixture.with(exec)
+                .ffprobe(script("ffprobe", "echo '{\"streams\":[{\"index\":0,\"codec_type\":\"video\",\"width\":4,\"height\":2}]}'"))
+                .ffmpeg(script("ffmpeg", "cat " + frame))
+                .exiftool(script("exiftool", "echo x >> " + calls + "\necho '[]'"))
+                .build();
+        Path heic = Files.write(dir.resolve("x.heic"), new byte[]{0, 0, 0, 24, 'f', 't', 'y', 'p', 'h', 'e', 'i', 'c',
+                0, 0, 0, 0, 'm', 'i', 'f', '1', 'h', 'e', 'i', 'c'});
+
+        assertThat(c.readNormalized(heic, 0).getWidth()).isEqualTo(4);
+
+        // 路由特征与 hdr 路径共用同一次 exiftool 结果
+        assertThat(Files.readAllLines(calls)).hasSize(1);
+    }
+
+    @Test
+    void heifThumbnailerDoesNotNeedFfmpeg() throws Exception {
+        Path thumb = dir.resolve("thumb.png");
+        ImageIO.write(new BufferedImage(32, 24, BufferedImage.TYPE_INT_RGB), "png", thumb.toFile());
+        HdrSdrConverter c = ConverterFixture.with(exec)
+                .heifThumbnailer(script("heif-thumbnailer", "cp " + thumb + " \"$4\""))
+                .build();
+        Path heic = Files.write(dir.resolve("x.heic"), new byte[]{0, 0, 0, 24, 'f', 't', 'y', 'p', 'h', 'e', 'i', 'c',
+                0, 0, 0, 0, 'm', 'i', 'f', '1', 'h', 'e', 'i', 'c'});
+
+        BufferedImage img = c.readNormalized(heic, 32);
+
+        assertThat(img.getWidth()).isEqualTo(32);
+        assertThat(img.getHeight()).isEqualTo(24);
+    }
+
+    @Test
+    void hdrPathRejectsASingleGridTile() throws Exception {
+        // 4032x3024 的网格图，最大流只是 512x512 的 PQ 切片
+        String probe = "{\"streams\":[{\"index\":0,\"codec_type\":\"video\",\"width\":512,\"height\":512,"
+                + "\"pix_fmt\":\"yuv420p10le\",\"color_transfer\":\"smpte2084\"}],"
+                + "\"stream_groups\":[{\"index\":0,\"type\":\"Tile Grid\",\"components\":[{\"component_type\":\"Tile Grid\",\"width\":4032,\"height\":3024}]}]}";
+        Path calls = dir.resolve("ffmpeg-calls");
+        HdrSdrConverter c = ConverterFixture.with(exec)
+                .ffprobe(script("ffprobe", "echo '" + probe + "'"))
+                .ffmpeg(script("ffmpeg", "echo \"$*\" >> " + calls + "\nexit 1"))
+                .build();
+        Path heic = Files.write(dir.resolve("x.heic"), new byte[]{0, 0, 0, 24, 'f', 't', 'y', 'p', 'h', 'e', 'i', 'c',
+                0, 0, 0, 0, 'm', 'i', 'f', '1', 'h', 'e', 'i', 'c'});
+
+        assertThatThrownBy(() -> c.readNormalized(heic, 0)).isInstanceOf(IOException.class);
+
+        // 色调映射与普通 ffmpeg 两条路径都没有把切片当整图解码
+        assertThat(calls).doesNotExist();
+    }
+
+    @Test
+    void streamedToneMapReleasesCpuPermitWhileSinkWrites() throws Exception {
+        String probe = "{\"streams\":[{\"index\":0,\"codec_type\":\"video\",\"width\":16,\"height\":600,"
+                + "\"pix_fmt\":\"yuv420p10le\",\"color_transfer\":\"smpte2084\"}]}";
+        CpuGate cpu = new CpuGate(1);
+        HdrSdrConverter c = ConverterFixture.with(exec)
+                .cpu(cpu)
+                .set("tonemapOperator", ToneMapper.Operator.HABLE)
+                .set("tonemapPeakNits", 1000f)
+                .set("tonemapWhiteNits", 203f)
+                .ffprobe(script("ffprobe", "echo '" + probe + "'"))
+                .ffmpeg(script("ffmpeg", "head -c " + 16 * 600 * 6 + " /dev/zero"))
+                .build();
+        Path heic = Files.write(dir.resolve("x.heic"), new byte[]{0, 0, 0, 24, 'f', 't', 'y', 'p', 'h', 'e', 'i', 'c',
+                0, 0, 0, 0, 'm', 'i', 'f', '1', 'h', 'e', 'i', 'c'});
+
+        // sink 里做编码与写出，此时不应占着 CPU 许可
+        List<Integer> permits = new ArrayList<>();
+        c.decodeStrips(heic, 1.0, (y, rows) -> permits.add(cpu.available()));
+
+        assertThat(permits).hasSize(3).containsOnly(1);
+    }
+
+    private Path script(String name, String body) throws IOException {
+        Path p = dir.resolve(name);
+        Files.writeString(p, "#!/bin/sh\n" + body + "\n");
+        Files.setPosixFilePermissions(p, PosixFilePermissions.fromString("rwxr-xr-x"));
+        return p;
+    }
+}
@@ -0,0 +1,113 @@
+package me.jling.imagedemo.image.core.sdr;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OrientationTests {
+
+    @ParameterizedTest
+    @ValueSource(ints = {
+            BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR,
+            BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_USHORT_GRAY
+    })
+    void allOrientationsMatchReferenceMappingExactly(int type) {
+        for (int o = 1; o <= 8; o++) {
+            BufferedImage src = random(type, 67, 45, o);
+            int[][] expected = reference(src, o);
+
+            BufferedImage out = Orientation.apply(src, o);
+
+            assertThat(out.getType()).isEqualTo(type);
+            assertThat(pixels(out)).as("orientation %d", o).isDeepEqualTo(expected);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {3, 6, 8, 7})
+    void largeImagesTakeTheParallelPathWithIdenticalResult(int o) {
+        BufferedImage src = random(BufferedImage.TYPE_INT_RGB, 1531, 1029, o);
+        int[][] expected = reference(src, o);
+
+        assertThat(pixels(Orientation.apply(src, o))).isDeepEqualTo(expected);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {2, 3, 4})
+    void sameSizeOrientationsWorkInPlace(int o) {
+        BufferedImage src = random(BufferedImage.TYPE_3BYTE_BGR, 10, 7, o);
+
+        assertThat(Orientation.apply(src, o)).isSameAs(src);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 4, 5, 6, 7, 8})
+    void storedRegionMapsToTheSameDisplayCrop(int o) {
+        BufferedImage src = random(BufferedImage.TYPE_INT_RGB, 40, 30, o);
+        BufferedImage display = Orientation.apply(copy(src), o);
+        Rectangle r = new Rectangle(3, 5, 11, 7);
+
+        Rectangle stored = Orientation.toStored(r, o, src.getWidth(), src.getHeight());
+        BufferedImage crop = Orientation.apply(copy(src.getSubimage(stored.x, stored.y, stored.width, stored.height)), o);
+
+        assertThat(pixels(crop)).isDeepEqualTo(pixels(copy(display.getSubimage(r.x, r.y, r.width, r.height))));
+    }
+
+    private static BufferedImage copy(BufferedImage img) {
+        BufferedImage out = new BufferedImage(img.getWidth(), img.getHeight(), img.getType());
+        img.copyData(out.getRaster());
+        return out;
+    }
+
+    private static BufferedImage random(int type, int w, int h, long seed) {
+        BufferedImage img = new BufferedImage(w, h, type);
+        WritableRaster r = img.getRaster();
+        Random rnd = new Random(seed);
+        int max = (1 << r.getSampleModel().getSampleSize(0)) - 1;
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++)
+                for (int b = 0; b < r.getNumBands(); b++) r.setSample(x, y, b, rnd.nextInt(max + 1));
+        return img;
+    }
+
+    /** 直接按 EXIF 定义逐像素取样，作为对照 */
+    private static int[][] reference(BufferedImage src, int o) {
+        int w = src.getWidth(), h = src.getHeight();
+        boolean swap = o >= 5;
+        int dw = swap ? h : w, dh = swap ? w : h;
+        int bands = src.getRaster().getNumBands();
+        int[][] out = new int[dh][dw * bands];
+        int[] px = new int[bands];
+        for (int dy = 0; dy < dh; dy++) {
+            for (int dx = 0; dx < dw; dx++) {
+                int sx, sy;
+                switch (o) {
+                    case 2 -> { sx = w - 1 - dx; sy = dy; }
+                    case 3 -> { sx = w - 1 - dx; sy = h - 1 - dy; }
+                    case 4 -> { sx = dx; sy = h - 1 - dy; }
+                    case 5 -> { sx = dy; sy = dx; }
+                    case 6 -> { sx = dy; sy = h - 1 - dx; }
+                    case 7 -> { sx = w - 1 - dy; sy = h - 1 - dx; }
+                    case 8 -> { sx = w - 1 - dy; sy = dx; }
+                    default -> { sx = dx; sy = dy; }
+                }
+                src.getRaster().getPixel(sx, sy, px);
+                System.arraycopy(px, 0, out[dy], dx * bands, bands);
+            }
+        }
+        return out;
+    }
+
+    private static int[][] pixels(BufferedImage img) {
+        int w = img.getWidth(), h = img.getHeight(), bands = img.getRaster().getNumBands();
+        int[][] out = new int[h][];
+        for (int y = 0; y < h; y++) out[y] = img.getRaster().getPixels(0, y, w, 1, new int[w * bands]);
+        return out;
+    }
+}
@@ -0,0 +1,201 @@
+package me.jling.imagedemo.image.core.sdr;
+
+import me.jling.imagedemo.image.core.exec.MemoryBudget;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.data.Offset.offset;
+
+class PixelBufferTests {
+
+    private static final int W = 37, H = 23;
+
+    @Test
+    void rawFrameToneMapMatchesHeapPath() throws Exception {
+        short[] samples = randomSamples(W * H * 3, 1);
+        byte[] le = new byte[samples.length * 2];
+        for (int i = 0; i < samples.length; i++) {
+            le[2 * i] = (byte) samples[i];
+            le[2 * i + 1] = (byte) (samples[i] >> 8);
+        }
+        ToneMapper.Options opt = ToneMapper.Options.of(ToneMapper.Transfer.PQ, ToneMapper.Operator.HABLE);
+        byte[] expected = bgr(ToneMapper.map(RawFrameDecoder.wrapRgb48(samples, W, H), opt));
+
+        PixelBufferPool pool = new PixelBufferPool(1 << 20, MemoryBudget.disabled());
+        try (PixelBuffer px = RawFrameDecoder.decode(new ByteArrayInputStream(le),
+                pool.acquire(W, H, 3, PixelBuffer.SampleType.U16, PixelBuffer.Layout.INTERLEAVED))) {
+            assertThat(px.sample(px.index(5, 7, 2))).isEqualTo(samples[(7 * W + 5) * 3 + 2] & 0xffff);
+            assertThat(bgr(ToneMapper.map(px, opt))).isEqualTo(expected);
+
+            // 平面排列走通用路径，结果一致
+            try (PixelBuffer planar = PixelBuffer.allocate(W, H, 3, PixelBuffer.SampleType.U16, PixelBuffer.Layout.PLANAR)) {
+                for (int y = 0; y < H; y++)
+                    for (int x = 0; x < W; x++)
+                        for (int c = 0; c < 3; c++) planar.setSample(planar.index(x, y, c), px.sample(px.index(x, y, c)));
+                assertThat(bgr(ToneMapper.map(planar, opt))).isEqualTo(expected);
+            }
+        }
+
+        assertThatThrownBy(() -> RawFrameDecoder.decode(new ByteArrayInputStream(le, 0, le.length - 3),
+                PixelBuffer.allocate(W, H, 3, PixelBuffer.SampleType.U16, PixelBuffer.Layout.INTERLEAVED)))
+                .isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void orientationMatchesRasterImplementation() {
+        short[] samples = randomSamples(W * H * 3, 2);
+        PixelBufferPool pool = PixelBufferPool.disabled();
+        for (int o = 1; o <= 8; o++) {
+            PixelBuffer px = PixelBuffer.allocate(W, H, 3, PixelBuffer.SampleType.U16, PixelBuffer.Layout.INTERLEAVED);
+            for (int i = 0; i < samples.length; i++) px.setSample(i, samples[i] & 0xffff);
+            Raster expected = Orientation.apply(RawFrameDecoder.wrapRgb48(samples.clone(), W, H), o).getRaster();
+
+            try (PixelBuffer out = Orientation.apply(px, o, pool)) {
+                assertThat(out.width()).isEqualTo(expected.getWidth());
+                assertThat(out.height()).isEqualTo(expected.getHeight());
+                for (int y = 0; y < out.height(); y++)
+                    for (int x = 0; x < out.width(); x++)
+                        for (int c = 0; c < 3; c++)
+                            assertThat(out.sample(out.index(x, y, c))).as("o=%d (%d,%d,%d)", o, x, y, c)
+                                    .isEqualTo(expected.getSample(x, y, c));
+            }
+        }
+    }
+
+    @Test
+    void poolReusesBuffersAndClosedBuffersAreUnusable() {
+        PixelBufferPool pool = new PixelBufferPool(1 << 20, MemoryBudget.disabled());
+        PixelBuffer a = pool.acquire(64, 64, 3, PixelBuffer.SampleType.U8, PixelBuffer.Layout.INTERLEAVED);
+        a.close();
+        a.close();
+        try (PixelBuffer b = pool.acquire(60, 60, 3, PixelBuffer.SampleType.U8, PixelBuffer.Layout.PLANAR)) {
+            assertThat(pool.stats().hits()).isEqualTo(1);
+            assertThat(b.byteSize()).isEqualTo(60 * 60 * 3);
+        }
+        // 超过两倍大小的缓冲不拿来凑
+        try (PixelBuffer small = pool.acquire(16, 16, 3, PixelBuffer.SampleType.U8, PixelBuffer.Layout.INTERLEAVED)) {
+            assertThat(pool.stats().misses()).isEqualTo(2);
+            assertThat(small.byteSize()).isEqualTo(16 * 16 * 3);
+        }
+        // 关闭后的缓冲可能已被别处借走，任何访问都应报错而不是读写别人的像素
+        assertThatThrownBy(a::data).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> a.sample(0)).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> a.setSample(0, 1)).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> a.getFloat(0)).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> a.setFloat(0, 0.5f)).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> a.code16(0)).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void poolKeepsOneFrameLargerThanItsCap() {
+        // 默认上限 256 MiB，48MP rgb48le 一帧约 279 MiB
+        PixelBufferPool pool = new PixelBufferPool(256L << 20, MemoryBudget.disabled());
+        PixelBuffer frame = pool.acquire(8064, 6048, 3, PixelBuffer.SampleType.U16, PixelBuffer.Layout.INTERLEAVED);
+        assertThat((long) frame.byteSize()).isGreaterThan(256L << 20);
+        frame.close();
+        assertThat(pool.stats().pooled()).isEqualTo(1);
+
+        try (PixelBuffer again = pool.acquire(8064, 6048, 3, PixelBuffer.SampleType.U16, PixelBuffer.Layout.INTERLEAVED)) {
+            assertThat(pool.stats().hits()).isEqualTo(1);
+            assertThat(again.byteSize()).isEqualTo(8064 * 6048 * 3 * 2);
+            // 大帧借出期间池空，小缓冲照常收留；大帧归还时挤掉它
+            pool.acquire(64, 64, 3, PixelBuffer.SampleType.U8, PixelBuffer.Layout.INTERLEAVED).close();
+            assertThat(pool.stats().pooled()).isEqualTo(1);
+        }
+        assertThat(pool.stats().pooled()).isEqualTo(1);
+        assertThat(pool.stats().pooledBytes()).isEqualTo(8064L * 6048 * 3 * 2);
+
+        // 已经留着一块超限大帧时不再收第二块
+        PixelBuffer other = pool.acquire(8064, 6048, 3, PixelBuffer.SampleType.U16, PixelBuffer.Layout.INTERLEAVED);
+        PixelBuffer extra = pool.acquire(8064, 6048, 3, PixelBuffer.SampleType.U16, PixelBuffer.Layout.INTERLEAVED);
+        other.close();
+        extra.close();
+        assertThat(pool.stats().pooled()).isEqualTo(1);
+    }
+
+    @Test
+    void pooledFramesCountAgainstTheDirectBudget() throws Exception {
+        MemoryBudget budget = new MemoryBudget(-1, 4 << 20, 1_000);
+        PixelBufferPool pool = new PixelBufferPool(8 << 20, budget);
+        pool.acquire(512, 512, 3, PixelBuffer.SampleType.U16, PixelBuffer.Layout.INTERLEAVED).close();
+        assertThat(pool.stats().pooled()).isEqualTo(1);
+        assertThat(budget.directAvailable()).isEqualTo((4 << 20) - 512 * 512 * 6);
+
+        // 借出时预留转给解码请求自己
+        try (PixelBuffer again = pool.acquire(512, 512, 3, PixelBuffer.SampleType.U16, PixelBuffer.Layout.INTERLEAVED)) {
+            assertThat(again.byteSize()).isEqualTo(512 * 512 * 6);
+            assertThat(budget.directAvailable()).isEqualTo(4 << 20);
+        }
+
+        // 解码等不到直接内存时池子让出闲置帧，而不是排队到超时
+        try (MemoryBudget.Reservation r = budget.reserve(new MemoryBudget.Demand(0, 4 << 20))) {
+            assertThat(r.directBytes()).isEqualTo(4 << 20);
+            assertThat(pool.stats().pooled()).isZero();
+            // 预算占满时归还的帧交给 GC
+            pool.acquire(64, 64, 3, PixelBuffer.SampleType.U16, PixelBuffer.Layout.INTERLEAVED).close();
+            assertThat(pool.stats().pooled()).isZero();
+        }
+        assertThat(budget.directAvailable()).isEqualTo(4 << 20);
+    }
+
+    @Test
+    void bufferedImageViewAndEncoderReadOffHeapPixels() throws Exception {
+        try (PixelBuffer px = PixelBuffer.allocate(W, H, 3, PixelBuffer.SampleType.U8, PixelBuffer.Layout.PLANAR)) {
+            for (int y = 0; y < H; y++) {
+                for (int x = 0; x < W; x++) {
+                    px.setSample(px.index(x, y, 0), x * 6);
+                    px.setSample(px.index(x, y, 1), y * 10);
+                    px.setSample(px.index(x, y, 2), 200);
+                }
+            }
+            BufferedImage view = px.toBufferedImage();
+            assertThat(view.getRGB(10, 20) & 0xffffff).isEqualTo(60 << 16 | 200 << 8 | 200);
+            // 视图可写，写入直接落到堆外缓冲
+            view.getRaster().setSample(1, 1, 2, 7);
+            assertThat(px.sample(px.index(1, 1, 2))).isEqualTo(7);
+
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            SdrEncoder.write(px, png, SdrEncoder.Options.of(SdrEncoder.Format.PNG));
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png.toByteArray()));
+            for (int y = 0; y < H; y += 5)
+                for (int x = 0; x < W; x += 5) assertThat(decoded.getRGB(x, y)).isEqualTo(view.getRGB(x, y));
+        }
+    }
+
+    @Test
+    void halfFloatConversionRoundTrips() {
+        for (float f : new float[]{0f, 1f, 0.5f, 0.333f, 65504f, -2.25f, 6.1035156e-5f, 5.9604645e-8f}) {
+            float back = PixelBuffer.halfToFloat(PixelBuffer.floatToHalf(f));
+            assertThat(back).isCloseTo(f, offset(Math.abs(f) * 1e-3f));
+        }
+        assertThat(Float.isInfinite(PixelBuffer.halfToFloat(PixelBuffer.floatToHalf(1e6f)))).isTrue();
+        assertThat(Float.isNaN(PixelBuffer.halfToFloat(PixelBuffer.floatToHalf(Float.NaN)))).isTrue();
+
+        try (PixelBuffer px = PixelBuffer.allocate(2, 1, 3, PixelBuffer.SampleType.F16, PixelBuffer.Layout.INTERLEAVED)) {
+            px.setFloat(0, 0.25f);
+            assertThat(px.getFloat(0)).isEqualTo(0.25f);
+            assertThat(px.toBufferedImage().getRaster().getSampleFloat(0, 0, 0)).isEqualTo(0.25f);
+        }
+    }
+
+    private static short[] randomSamples(int n, long seed) {
+        Random rnd = new Random(seed);
+        short[] s = new short[n];
+        for (int i = 0; i < n; i++) s[i] = (short) rnd.nextInt(65536);
+        return s;
+    }
+
+    private static byte[] bgr(BufferedImage img) {
+        return ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+    }
+}
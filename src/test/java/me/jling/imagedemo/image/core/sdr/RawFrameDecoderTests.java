@@ -0,0 +1,66 @@
+package me.jling.imagedemo.image.core.sdr;
+
+import me.jling.imagedemo.image.core.exec.ExternalToolExecutor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RawFrameDecoderTests {
+
+    @TempDir
+    Path dir;
+
+    private final ExternalToolExecutor exec = new ExternalToolExecutor(1, 1, 1, 1, 1, 4, 10, 4096);
+
+    @Test
+    void decodesBgr24FromStubProcess() throws Exception {
+        // 2x1：红、绿（bgr24 字节序）
+        Path stub = script("printf '\\000\\000\\377\\000\\377\\000'");
+
+        BufferedImage img = decode(stub, 2, 1);
+
+        assertThat(img.getType()).isEqualTo(BufferedImage.TYPE_3BYTE_BGR);
+        assertThat(img.getRGB(0, 0) & 0xffffff).isEqualTo(0xff0000);
+        assertThat(img.getRGB(1, 0) & 0xffffff).isEqualTo(0x00ff00);
+    }
+
+    @Test
+    void rejectsTruncatedFrame() throws Exception {
+        Path stub = script("printf '\\000\\000\\377'");
+
+        assertThatThrownBy(() -> decode(stub, 2, 1))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("truncated");
+    }
+
+    @Test
+    void readsRgb48leSamples() throws Exception {
+        byte[] raw = {(byte) 0xff, (byte) 0xff, 0x00, (byte) 0x80, 0x01, 0x00};
+
+        BufferedImage img = RawFrameDecoder.read(new ByteArrayInputStream(raw), 1, 1, RawFrameDecoder.Format.RGB48LE);
+
+        int[] px = img.getRaster().getPixel(0, 0, (int[]) null);
+        assertThat(px).containsExactly(0xffff, 0x8000, 0x0001);
+    }
+
+    private BufferedImage decode(Path stub, int w, int h) throws IOException {
+        return exec.stream(ExternalToolExecutor.Tool.FFMPEG, List.of(stub.toString()), 10,
+                in -> RawFrameDecoder.decode(in, w, h, RawFrameDecoder.Format.BGR24)).value();
+    }
+
+    private Path script(String body) throws IOException {
+        Path f = dir.resolve("stub-" + System.nanoTime() + ".sh");
+        Files.writeString(f, "#!/bin/sh\n" + body + "\n");
+        f.toFile().setExecutable(true);
+        return f;
+    }
+}
@@ -0,0 +1,116 @@
+package me.jling.imagedemo.image.core.sdr;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SdrEncoderTests {
+
+    @Test
+    void pngStripsRoundTripLosslessly() throws IOException {
+        BufferedImage src = pattern(97, 61);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (SdrEncoder.Writer w = SdrEncoder.writer(out, SdrEncoder.Options.of(SdrEncoder.Format.PNG))) {
+            w.begin(97, 61);
+            for (int y = 0; y < 61; y += 16) w.strip(y, src.getSubimage(0, y, 97, Math.min(16, 61 - y)));
+            w.finish();
+        }
+
+        BufferedImage back = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        for (int y = 0; y < 61; y++)
+            for (int x = 0; x < 97; x++)
+                assertThat(back.getRGB(x, y) & 0xffffff).isEqualTo(src.getRGB(x, y) & 0xffffff);
+    }
+
+    @Test
+    void pngReadsSubimagesOfAWiderParentWithTheParentStride() throws IOException {
+        // 条带取自更宽的父图：平移为 0 时行步长仍是父图宽度
+        for (BufferedImage parent : new BufferedImage[]{toBgr(pattern(97, 61)), pattern(97, 61)}) {
+            for (int x0 : new int[]{0, 13}) {
+                BufferedImage src = parent.getSubimage(x0, 0, 60, 61);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+                try (SdrEncoder.Writer w = SdrEncoder.writer(out, SdrEncoder.Options.of(SdrEncoder.Format.PNG))) {
+                    w.begin(60, 61);
+                    for (int y = 0; y < 61; y += 16) w.strip(y, src.getSubimage(0, y, 60, Math.min(16, 61 - y)));
+                    w.finish();
+                }
+
+                BufferedImage back = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+                for (int y = 0; y < 61; y++)
+                    for (int x = 0; x < 60; x++)
+                        assertThat(back.getRGB(x, y) & 0xffffff).isEqualTo(src.getRGB(x, y) & 0xffffff);
+            }
+        }
+    }
+
+    @Test
+    void jpegStripsProduceTheSameImageAsOneShot() throws IOException {
+        BufferedImage src = toBgr(pattern(130, 90));
+        SdrEncoder.Options opt = SdrEncoder.Options.of(SdrEncoder.Format.JPEG);
+        ByteArrayOutputStream whole = new ByteArrayOutputStream();
+        SdrEncoder.write(src, whole, opt);
+
+        ByteArrayOutputStream strips = new ByteArrayOutputStream();
+        try (SdrEncoder.Writer w = SdrEncoder.writer(strips, opt)) {
+            w.begin(130, 90);
+            for (int y = 0; y < 90; y += 7) w.strip(y, toBgr(src.getSubimage(0, y, 130, Math.min(7, 90 - y))));
+            w.finish();
+        }
+
+        assertThat(strips.toByteArray()).isEqualTo(whole.toByteArray());
+        BufferedImage back = ImageIO.read(new ByteArrayInputStream(strips.toByteArray()));
+        assertThat(back.getWidth()).isEqualTo(130);
+        assertThat(back.getHeight()).isEqualTo(90);
+    }
+
+    @Test
+    void fullFrameJpegModesAreOptIn() throws IOException {
+        BufferedImage src = toBgr(pattern(130, 90));
+        SdrEncoder.Options streaming = SdrEncoder.Options.of(SdrEncoder.Format.JPEG);
+        SdrEncoder.Options optimized = new SdrEncoder.Options(SdrEncoder.Format.JPEG, 0.9f, false, true, 6);
+        assertThat(streaming.jpegFullFrame()).isFalse();
+        assertThat(optimized.jpegFullFrame()).isTrue();
+
+        ByteArrayOutputStream a = new ByteArrayOutputStream(), b = new ByteArrayOutputStream();
+        SdrEncoder.write(src, a, streaming);
+        SdrEncoder.write(src, b, optimized);
+
+        assertThat(b.toByteArray()).isNotEqualTo(a.toByteArray());
+        assertThat(b.size()).isLessThan(a.size());
+        assertThat(ImageIO.read(new ByteArrayInputStream(b.toByteArray())).getWidth()).isEqualTo(130);
+    }
+
+    @Test
+    void rejectsOutOfOrderStripsAndIncompleteImages() throws IOException {
+        for (SdrEncoder.Format f : SdrEncoder.Format.values()) {
+            try (SdrEncoder.Writer w = SdrEncoder.writer(new ByteArrayOutputStream(), SdrEncoder.Options.of(f))) {
+                w.begin(10, 10);
+                w.strip(0, new BufferedImage(10, 4, BufferedImage.TYPE_3BYTE_BGR));
+                assertThatThrownBy(() -> w.strip(5, new BufferedImage(10, 4, BufferedImage.TYPE_3BYTE_BGR)))
+                        .isInstanceOf(IllegalArgumentException.class);
+                assertThatThrownBy(w::finish).isInstanceOf(IOException.class);
+            }
+        }
+    }
+
+    private static BufferedImage pattern(int w, int h) {
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < h; y++) for (int x = 0; x < w; x++) img.setRGB(x, y, (x * 2) << 16 | (y * 3) << 8 | (x + y) & 0xff);
+        return img;
+    }
+
+    private static BufferedImage toBgr(BufferedImage img) {
+        BufferedImage out = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        out.getGraphics().drawImage(img, 0, 0, null);
+        return out;
+    }
+}
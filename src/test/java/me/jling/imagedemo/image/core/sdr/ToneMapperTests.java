@@ -0,0 +1,69 @@
+package me.jling.imagedemo.image.core.sdr;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ToneMapperTests {
+
+    @Test
+    void pqReferenceWhiteMapsToSdrWhiteWithLinearOperator() {
+        short code = (short) Math.round(pqInverse(203) * 65535);
+        BufferedImage src = solid(4, 4, code, code, code);
+
+        BufferedImage out = ToneMapper.map(src, ToneMapper.Options.of(ToneMapper.Transfer.PQ, ToneMapper.Operator.LINEAR));
+
+        assertThat(out.getType()).isEqualTo(BufferedImage.TYPE_3BYTE_BGR);
+        int rgb = out.getRGB(2, 2) & 0xffffff;
+        assertThat((rgb >> 16) & 0xff).isBetween(253, 255);
+        assertThat(rgb & 0xff).isBetween(253, 255);
+    }
+
+    @Test
+    void blackStaysBlackAndHighlightsAreCompressed() {
+        BufferedImage black = solid(2, 2, (short) 0, (short) 0, (short) 0);
+        short peak = (short) Math.round(pqInverse(1000) * 65535);
+        BufferedImage bright = solid(2, 2, peak, peak, peak);
+
+        var hable = ToneMapper.Options.of(ToneMapper.Transfer.PQ, ToneMapper.Operator.HABLE);
+        var reinhard = ToneMapper.Options.of(ToneMapper.Transfer.PQ, ToneMapper.Operator.REINHARD);
+
+        assertThat(ToneMapper.map(black, hable).getRGB(0, 0) & 0xffffff).isZero();
+        assertThat(ToneMapper.map(bright, hable).getRGB(0, 0) & 0xff).isGreaterThan(250);
+        assertThat(ToneMapper.map(bright, reinhard).getRGB(0, 0) & 0xff).isGreaterThan(250);
+    }
+
+    @Test
+    void parallelBandsMatchRowByRowResult() {
+        int w = 257, h = 301;
+        short[] data = new short[w * h * 3];
+        for (int i = 0; i < data.length; i++) data[i] = (short) (i * 7919);
+        var opt = ToneMapper.Options.of(ToneMapper.Transfer.HLG, ToneMapper.Operator.REINHARD);
+
+        BufferedImage all = ToneMapper.map(data, 0, 1, 2, 3, w * 3, w, h, opt);
+        for (int y = 0; y < h; y += 37) {
+            BufferedImage row = ToneMapper.map(data, y * w * 3, 1, 2, 3, w * 3, w, 1, opt);
+            assertThat(row.getRGB(0, 0, w, 1, null, 0, w)).isEqualTo(all.getRGB(0, y, w, 1, null, 0, w));
+        }
+    }
+
+    private static BufferedImage solid(int w, int h, short r, short g, short b) {
+        short[] data = new short[w * h * 3];
+        for (int i = 0; i < data.length; i += 3) {
+            data[i] = r;
+            data[i + 1] = g;
+            data[i + 2] = b;
+        }
+        return RawFrameDecoder.wrapRgb48(Arrays.copyOf(data, data.length), w, h);
+    }
+
+    private static double pqInverse(double nits) {
+        final double m1 = 2610.0 / 16384, m2 = 2523.0 / 4096 * 128;
+        final double c1 = 3424.0 / 4096, c2 = 2413.0 / 4096 * 32, c3 = 2392.0 / 4096 * 32;
+        double y = Math.pow(nits / 10000.0, m1);
+        return Math.pow((c1 + c2 * y) / (1 + c3 * y), m2);
+    }
+}
@@ -0,0 +1,114 @@
+package me.jling.imagedemo.image.core.store;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DerivedStoreTests {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void entriesSurviveReopen() throws Exception {
+        DerivedStore store = new DerivedStore(dir.toString(), 1 << 20, false);
+        Path src = Files.writeString(dir.resolve("out.part"), "converted");
+        Path stored = store.putFile("abc123-0.jpg", src);
+        store.putBytes("abc123.ffprobe.json", "{}".getBytes(StandardCharsets.UTF_8));
+        store.destroy();
+
+        assertThat(src).doesNotExist();
+        DerivedStore reopened = new DerivedStore(dir.toString(), 1 << 20, false);
+        try {
+            assertThat(reopened.get("abc123-0.jpg")).isEqualTo(stored);
+            assertThat(Files.readString(stored)).isEqualTo("converted");
+            assertThat(new String(reopened.getBytes("abc123.ffprobe.json"), StandardCharsets.UTF_8)).isEqualTo("{}");
+            assertThat(reopened.get("missing-0.jpg")).isNull();
+            assertThat(reopened.stats().entries()).isEqualTo(2);
+            assertThat(reopened.stats().bytes()).isEqualTo(11);
+        } finally {
+            reopened.destroy();
+        }
+    }
+
+    @Test
+    void resetDiscardsPreviousEntries() throws Exception {
+        DerivedStore store = new DerivedStore(dir.toString(), 1 << 20, false);
+        store.putBytes("k1", new byte[10]);
+        store.destroy();
+
+        DerivedStore reset = new DerivedStore(dir.toString(), 1 << 20, true);
+        try {
+            assertThat(reset.get("k1")).isNull();
+            assertThat(reset.stats().entries()).isZero();
+        } finally {
+            reset.destroy();
+        }
+    }
+
+    @Test
+    void evictsLeastRecentlyAccessedOverCap() throws Exception {
+        DerivedStore store = new DerivedStore(dir.toString(), 250, false);
+        try {
+            for (int i = 0; i < 3; i++) {
+                Path p = store.putBytes("k" + i, new byte[100]);
+                // 写入时间早于宽限期，才可被淘汰
+                store.touch("k" + i, System.currentTimeMillis() - DerivedStore.EVICT_GRACE_MS - 1000 + i);
+                assertThat(p).exists();
+            }
+            store.evictNow();
+
+            // 300 > 250，删到不超过 90%（225）为止：只需删掉最旧的 k0
+            assertThat(store.get("k0")).isNull();
+            assertThat(store.get("k1")).isNotNull();
+            assertThat(store.get("k2")).isNotNull();
+            assertThat(store.stats().bytes()).isEqualTo(200);
+        } finally {
+            store.destroy();
+        }
+    }
+
+    @Test
+    void reconcileRemovesOrphansAndStaleEntries() throws Exception {
+        DerivedStore store = new DerivedStore(dir.toString(), 1 << 20, false);
+        Path kept = store.putBytes("kept", new byte[5]);
+        Path gone = store.putBytes("gone", new byte[5]);
+        store.destroy();
+        Files.delete(gone);
+        Path orphan = dir.resolve("objects").resolve("or").resolve("orphan");
+        Files.createDirectories(orphan.getParent());
+        Files.writeString(orphan, "x");
+        Files.setLastModifiedTime(orphan, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+
+        DerivedStore reopened = new DerivedStore(dir.toString(), 1 << 20, false);
+        try {
+            reopened.reconcileNow();
+            assertThat(orphan).doesNotExist();
+            assertThat(kept).exists();
+            assertThat(reopened.stats().entries()).isEqualTo(1);
+            assertThat(reopened.stats().bytes()).isEqualTo(5);
+        } finally {
+            reopened.destroy();
+        }
+    }
+
+    @Test
+    void rejectsUnsafeKeysAndDisabledStoreIsANoop() throws Exception {
+        DerivedStore store = new DerivedStore(dir.toString(), 1 << 20, false);
+        try {
+            assertThatThrownBy(() -> store.putBytes("../escape", new byte[1])).isInstanceOf(IllegalArgumentException.class);
+        } finally {
+            store.destroy();
+        }
+        DerivedStore off = DerivedStore.disabled();
+        assertThat(off.putBytes("k1", new byte[1])).isNull();
+        assertThat(off.get("k1")).isNull();
+    }
+}
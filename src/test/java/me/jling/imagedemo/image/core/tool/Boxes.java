@@ -0,0 +1,45 @@
+package me.jling.imagedemo.image.core.tool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * 测试用 ISOBMFF 盒子拼装。
+ */
+final class Boxes {
+
+    interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private Boxes() {}
+
+    static byte[] bytes(Writer w) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        w.write(new DataOutputStream(bos));
+        return bos.toByteArray();
+    }
+
+    static byte[] box(String type, byte[] body) throws IOException {
+        return bytes(out -> {
+            out.writeInt(8 + body.length);
+            out.writeBytes(type);
+            out.write(body);
+        });
+    }
+
+    static byte[] fullBox(String type, int version, int flags, byte[] body) throws IOException {
+        return box(type, concat(new byte[]{(byte) version, (byte) (flags >> 16), (byte) (flags >> 8), (byte) flags}, body));
+    }
+
+    static byte[] ispe(int w, int h) throws IOException {
+        return fullBox("ispe", 0, 0, bytes(out -> { out.writeInt(w); out.writeInt(h); }));
+    }
+
+    static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (byte[] p : parts) bos.writeBytes(p);
+        return bos.toByteArray();
+    }
+}
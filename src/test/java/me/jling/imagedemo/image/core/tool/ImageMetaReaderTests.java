@@ -0,0 +1,68 @@
+package me.jling.imagedemo.image.core.tool;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static me.jling.imagedemo.image.core.tool.Boxes.box;
+import static me.jling.imagedemo.image.core.tool.Boxes.bytes;
+import static me.jling.imagedemo.image.core.tool.Boxes.concat;
+import static me.jling.imagedemo.image.core.tool.Boxes.fullBox;
+import static me.jling.imagedemo.image.core.tool.Boxes.ispe;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ImageMetaReaderTests {
+
+    @Test
+    void readsJpegSizeFromHeaderForBytesAndStreams() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(321, 123, BufferedImage.TYPE_3BYTE_BGR), "jpg", bos);
+
+        assertThat(ImageMetaReader.read(bos.toByteArray()))
+                .extracting(ImageInfo::width, ImageInfo::height).containsExactly(321, 123);
+        assertThat(ImageMetaReader.read(new ByteArrayInputStream(bos.toByteArray())))
+                .extracting(ImageInfo::width, ImageInfo::height).containsExactly(321, 123);
+    }
+
+    @Test
+    void readsPrimaryItemSizeFromHeifIspe() throws IOException {
+        // ipco: [1]=ispe 512x512（网格切片）, [2]=ispe 4032x3024（主图）；ipma: item 1 → 属性 2
+        byte[] ipco = box("ipco", concat(ispe(512, 512), ispe(4032, 3024)));
+        byte[] ipma = fullBox("ipma", 0, 0, bytes(out -> {
+            out.writeInt(1);
+            out.writeShort(1);
+            out.writeByte(1);
+            out.writeByte(0x80 | 2);
+        }));
+        byte[] meta = fullBox("meta", 0, 0, concat(
+                fullBox("pitm", 0, 0, bytes(out -> out.writeShort(1))),
+                box("iprp", concat(ipco, ipma))));
+        byte[] file = concat(box("ftyp", "heicmif1heic".getBytes(StandardCharsets.ISO_8859_1)), meta);
+
+        assertThat(ImageMetaReader.read(file))
+                .extracting(ImageInfo::width, ImageInfo::height).containsExactly(4032, 3024);
+
+        // 流式读取不跟着后面的大 mdat 一路缓存下去
+        byte[] large = concat(file, box("mdat", new byte[3 * ImageMetaReader.HEADER_LIMIT]));
+        AtomicLong consumed = new AtomicLong();
+        InputStream counting = new FilterInputStream(new ByteArrayInputStream(large)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) consumed.addAndGet(n);
+                return n;
+            }
+        };
+        assertThat(ImageMetaReader.read(counting))
+                .extracting(ImageInfo::width, ImageInfo::height).containsExactly(4032, 3024);
+        assertThat(consumed.get()).isLessThanOrEqualTo(ImageMetaReader.HEADER_LIMIT);
+    }
+}
@@ -0,0 +1,99 @@
+package me.jling.imagedemo.image.core.tool;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.stream.ImageInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static me.jling.imagedemo.image.core.tool.Boxes.box;
+import static me.jling.imagedemo.image.core.tool.Boxes.bytes;
+import static me.jling.imagedemo.image.core.tool.Boxes.concat;
+import static me.jling.imagedemo.image.core.tool.Boxes.fullBox;
+import static me.jling.imagedemo.image.core.tool.Boxes.ispe;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IsoBmffTests {
+
+    @Test
+    void parsesPrimaryGridFromIinfIrefIlocAndIdat() throws IOException {
+        // item 1 = grid（2×2，1000×700），item 2..5 = hvc1 切片（512×512），iinf 里切片排在 grid 前面
+        byte[] iinf = fullBox("iinf", 0, 0, concat(
+                bytes(out -> out.writeShort(5)),
+                infe(2, "hvc1"), infe(3, "hvc1"), infe(1, "grid"), infe(4, "hvc1"), infe(5, "hvc1")));
+        byte[] iref = fullBox("iref", 0, 0, box("dimg", bytes(out -> {
+            out.writeShort(1);
+            out.writeShort(4);
+            for (int id : new int[]{2, 3, 5, 4}) out.writeShort(id);
+        })));
+        byte[] ipco = box("ipco", concat(ispe(1000, 700), ispe(512, 512)));
+        byte[] ipma = fullBox("ipma", 0, 0, bytes(out -> {
+            out.writeInt(5);
+            for (int id = 1; id <= 5; id++) {
+                out.writeShort(id);
+                out.writeByte(1);
+                out.writeByte(id == 1 ? 1 : 2);
+            }
+        }));
+        // iloc v1：grid 的数据在 idat 内（construction_method=1），偏移 4 字节
+        byte[] iloc = fullBox("iloc", 1, 0, bytes(out -> {
+            out.writeByte(0x44);
+            out.writeByte(0x00);
+            out.writeShort(1);
+            out.writeShort(1);
+            out.writeShort(1);
+            out.writeShort(0);
+            out.writeShort(1);
+            out.writeInt(4);
+            out.writeInt(8);
+        }));
+        byte[] idat = box("idat", bytes(out -> {
+            out.writeInt(0xdeadbeef);
+            out.writeByte(0);
+            out.writeByte(0);
+            out.writeByte(1);
+            out.writeByte(1);
+            out.writeShort(1000);
+            out.writeShort(700);
+        }));
+        byte[] meta = fullBox("meta", 0, 0, concat(
+                fullBox("pitm", 0, 0, bytes(out -> out.writeShort(1))),
+                iinf, iref, box("iprp", concat(ipco, ipma)), iloc, idat));
+        byte[] file = concat(box("ftyp", "heicmif1heic".getBytes(StandardCharsets.ISO_8859_1)), meta);
+
+        try (ImageInputStream in = SourceImage.of(null, file).newImageInputStream()) {
+            IsoBmff.Grid g = IsoBmff.primaryGrid(in);
+
+            assertThat(g).isNotNull();
+            assertThat(g.rows()).isEqualTo(2);
+            assertThat(g.columns()).isEqualTo(2);
+            assertThat(g.outputWidth()).isEqualTo(1000);
+            assertThat(g.outputHeight()).isEqualTo(700);
+            assertThat(g.tileWidth()).isEqualTo(512);
+            assertThat(g.tileAt(1, 0)).isEqualTo(5);
+            assertThat(g.codedItems()).containsExactly(2, 3, 4, 5);
+            assertThat(IsoBmff.primaryImageSize(in)).containsExactly(1000, 700);
+        }
+    }
+
+    @Test
+    void nonGridPrimaryHasNoGrid() throws IOException {
+        byte[] meta = fullBox("meta", 0, 0, concat(
+                fullBox("pitm", 0, 0, bytes(out -> out.writeShort(1))),
+                fullBox("iinf", 0, 0, concat(bytes(out -> out.writeShort(1)), infe(1, "hvc1")))));
+        byte[] file = concat(box("ftyp", "heicmif1heic".getBytes(StandardCharsets.ISO_8859_1)), meta);
+
+        try (ImageInputStream in = SourceImage.of(null, file).newImageInputStream()) {
+            assertThat(IsoBmff.primaryGrid(in)).isNull();
+        }
+    }
+
+    private static byte[] infe(int id, String type) throws IOException {
+        return fullBox("infe", 2, 0, bytes(out -> {
+            out.writeShort(id);
+            out.writeShort(0);
+            out.writeBytes(type);
+            out.writeByte(0);
+        }));
+    }
+}
@@ -0,0 +1,32 @@
+package me.jling.imagedemo.image.core.tool;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SourceImageTests {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void subsampledDecodeKeepsLongEdgeAtOrAboveTarget() throws IOException {
+        Path p = dir.resolve("wide.png");
+        ImageIO.write(new BufferedImage(1000, 500, BufferedImage.TYPE_INT_RGB), "png", p.toFile());
+
+        try (SourceImage src = SourceImage.open(p)) {
+            BufferedImage img = src.decodeImageIO(256);
+            assertThat(img.getWidth()).isBetween(256, 511);
+            assertThat(img.getHeight()).isEqualTo((500 + 2) / 3);
+
+            assertThat(src.decodeImageIO(4096).getWidth()).isEqualTo(1000);
+            assertThat(src.decodeImageIO(0).getWidth()).isEqualTo(1000);
+        }
+    }
+}